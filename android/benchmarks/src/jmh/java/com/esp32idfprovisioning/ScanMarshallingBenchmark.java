@@ -0,0 +1,66 @@
+package com.esp32idfprovisioning;
+
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.WritableArray;
+import com.facebook.react.bridge.WritableMap;
+
+import com.espressif.provisioning.WiFiAccessPoint;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+// Cost of turning one device scan into bridge values, from a single access
+// point up to a crowded site
+@State(Scope.Benchmark)
+public class ScanMarshallingBenchmark {
+  @Param({ "1", "10", "50", "200" })
+  public int accessPoints;
+
+  private List<WiFiAccessPoint> wifiList;
+  private List<ScannedAccessPoint> scannedList;
+
+  @Setup
+  public void setUp() {
+    Random random = new Random(42);
+    wifiList = new ArrayList<>();
+    scannedList = new ArrayList<>();
+    for (int i = 0; i < accessPoints; i++) {
+      WiFiAccessPoint accessPoint = new WiFiAccessPoint();
+      accessPoint.setWifiName("site-network-" + i);
+      accessPoint.setRssi(-30 - random.nextInt(60));
+      accessPoint.setSecurity(random.nextInt(8));
+      wifiList.add(accessPoint);
+      scannedList.add(new ScannedAccessPoint(accessPoint.getWifiName(), "24:0a:c4:00:00:" + (i % 100),
+          1 + random.nextInt(13), accessPoint.getRssi(), accessPoint.getSecurity()));
+    }
+  }
+
+  // onWifiListReceived -> doScanNetworks result
+  @Benchmark
+  public WritableArray wifiAccessPoints() {
+    return WifiAccessPointMarshaller.toWritableArray(wifiList);
+  }
+
+  // Same scan in the packed encoding, one base64 string for the bridge
+  @Benchmark
+  public WritableMap packedWifiAccessPoints() {
+    return PackedScanEncoder.toWritableMap(PackedScanEncoder.pack(wifiList));
+  }
+
+  // Streaming / ranked scans, which also carry BSSID and channel
+  @Benchmark
+  public WritableArray scannedAccessPoints() {
+    WritableArray res = Arguments.createArray();
+    for (ScannedAccessPoint accessPoint : scannedList) {
+      res.pushMap(accessPoint.toWritableMap());
+    }
+    return res;
+  }
+}
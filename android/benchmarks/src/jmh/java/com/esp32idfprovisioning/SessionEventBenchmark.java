@@ -0,0 +1,151 @@
+package com.esp32idfprovisioning;
+
+import android.bluetooth.BluetoothDevice;
+
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.WritableMap;
+
+import com.espressif.provisioning.ESPConstants;
+import com.espressif.provisioning.listeners.ProvisionListener;
+import com.espressif.provisioning.listeners.ResponseListener;
+import com.espressif.provisioning.listeners.WiFiScanListener;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+// Per-event cost of the session state machine: connection events as delivered
+// by onEvent, and the provisioning callbacks ending in the result map the
+// module resolves with
+@State(Scope.Benchmark)
+public class SessionEventBenchmark {
+  private static final int EVENTS = 1000;
+
+  private ScheduledExecutorService scheduler;
+  private ProvisioningSession session;
+
+  // Device whose calls return immediately, the benchmark plays the SDK's part
+  private static class IdleDevice implements ProvisioningDevice {
+    @Override
+    public void connectWiFiDevice(String ssid, String password) {
+    }
+
+    @Override
+    public void connectWiFiDevice() {
+    }
+
+    @Override
+    public void connectBLEDevice(BluetoothDevice bleDevice, String primaryServiceUuid) {
+    }
+
+    @Override
+    public void disconnectDevice() {
+    }
+
+    @Override
+    public void setProofOfPossession(String pop) {
+    }
+
+    @Override
+    public String getProofOfPossession() {
+      return null;
+    }
+
+    @Override
+    public void initSession(ResponseListener listener) {
+    }
+
+    @Override
+    public void scanNetworks(WiFiScanListener listener) {
+    }
+
+    @Override
+    public void provision(String ssid, String passphrase, ProvisionListener listener) {
+    }
+
+    @Override
+    public void sendDataToCustomEndPoint(String path, byte[] data, ResponseListener listener) {
+    }
+
+    @Override
+    public String getVersionInfo() {
+      return null;
+    }
+
+    @Override
+    public List<String> getDeviceCapabilities() {
+      return Collections.emptyList();
+    }
+
+    @Override
+    public int getSecurityVersion() {
+      return 1;
+    }
+  }
+
+  private static class ResultCallback implements SessionCallback<Void> {
+    private final Blackhole blackhole;
+
+    ResultCallback(Blackhole blackhole) {
+      this.blackhole = blackhole;
+    }
+
+    @Override
+    public void onSuccess(Void result) {
+      WritableMap res = Arguments.createMap();
+      res.putBoolean("success", true);
+      blackhole.consume(res);
+    }
+
+    @Override
+    public void onFailure(String code, String message, Exception e) {
+      blackhole.consume(code);
+    }
+  }
+
+  @Setup
+  public void setUp() {
+    scheduler = Executors.newSingleThreadScheduledExecutor();
+    session = new ProvisioningSession("bench", new IdleDevice(), new ProvisioningTimings(),
+        new RetryEngine(scheduler));
+  }
+
+  @TearDown
+  public void tearDown() {
+    scheduler.shutdownNow();
+  }
+
+  // connect followed by EVENT_DEVICE_CONNECTED, then a disconnect
+  @Benchmark
+  @OperationsPerInvocation(EVENTS)
+  public void connectionEvents(Blackhole blackhole) {
+    ResultCallback callback = new ResultCallback(blackhole);
+    for (int i = 0; i < EVENTS; i++) {
+      session.connectWifiDevice("PROV_BENCH", "password", callback);
+      session.onConnectionEvent(ESPConstants.EVENT_DEVICE_CONNECTED);
+      session.onConnectionEvent(ESPConstants.EVENT_DEVICE_DISCONNECTED);
+    }
+  }
+
+  // provision -> sent -> applied -> success -> { success: true }
+  @Benchmark
+  @OperationsPerInvocation(EVENTS)
+  public void provisioningSuccess(Blackhole blackhole) {
+    ResultCallback callback = new ResultCallback(blackhole);
+    for (int i = 0; i < EVENTS; i++) {
+      session.provision("site-wifi", "site-password", callback);
+      session.provisionListener.wifiConfigSent();
+      session.provisionListener.wifiConfigApplied();
+      session.provisionListener.deviceProvisioningSuccess();
+    }
+  }
+}
@@ -0,0 +1,7 @@
+package android.bluetooth;
+
+public class BluetoothDevice {
+  public String getAddress() {
+    return null;
+  }
+}
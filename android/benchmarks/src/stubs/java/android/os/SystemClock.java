@@ -0,0 +1,14 @@
+package android.os;
+
+public final class SystemClock {
+  private SystemClock() {
+  }
+
+  public static long elapsedRealtime() {
+    return System.nanoTime() / 1000000;
+  }
+
+  public static long elapsedRealtimeNanos() {
+    return System.nanoTime();
+  }
+}
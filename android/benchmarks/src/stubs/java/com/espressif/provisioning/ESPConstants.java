@@ -0,0 +1,19 @@
+package com.espressif.provisioning;
+
+public class ESPConstants {
+  public static final short EVENT_DEVICE_CONNECTED = 1;
+  public static final short EVENT_DEVICE_CONNECTION_FAILED = 2;
+  public static final short EVENT_DEVICE_DISCONNECTED = 3;
+
+  public enum TransportType {
+    TRANSPORT_BLE,
+    TRANSPORT_SOFTAP
+  }
+
+  public enum ProvisionFailureReason {
+    AUTH_FAILED,
+    NETWORK_NOT_FOUND,
+    DEVICE_DISCONNECTED,
+    UNKNOWN
+  }
+}
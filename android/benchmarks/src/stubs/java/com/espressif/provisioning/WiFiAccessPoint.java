@@ -0,0 +1,40 @@
+package com.espressif.provisioning;
+
+public class WiFiAccessPoint {
+  private String wifiName;
+  private int rssi;
+  private int security;
+  private String password;
+
+  public String getWifiName() {
+    return wifiName;
+  }
+
+  public void setWifiName(String wifiName) {
+    this.wifiName = wifiName;
+  }
+
+  public int getRssi() {
+    return rssi;
+  }
+
+  public void setRssi(int rssi) {
+    this.rssi = rssi;
+  }
+
+  public int getSecurity() {
+    return security;
+  }
+
+  public void setSecurity(int security) {
+    this.security = security;
+  }
+
+  public String getPassword() {
+    return password;
+  }
+
+  public void setPassword(String password) {
+    this.password = password;
+  }
+}
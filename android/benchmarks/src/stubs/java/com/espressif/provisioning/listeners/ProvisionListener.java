@@ -0,0 +1,21 @@
+package com.espressif.provisioning.listeners;
+
+import com.espressif.provisioning.ESPConstants;
+
+public interface ProvisionListener {
+  void createSessionFailed(Exception e);
+
+  void wifiConfigSent();
+
+  void wifiConfigFailed(Exception e);
+
+  void wifiConfigApplied();
+
+  void wifiConfigApplyFailed(Exception e);
+
+  void provisioningFailedFromDevice(ESPConstants.ProvisionFailureReason failureReason);
+
+  void deviceProvisioningSuccess();
+
+  void onProvisioningFailed(Exception e);
+}
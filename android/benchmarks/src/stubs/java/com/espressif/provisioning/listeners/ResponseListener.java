@@ -0,0 +1,7 @@
+package com.espressif.provisioning.listeners;
+
+public interface ResponseListener {
+  void onSuccess(byte[] returnData);
+
+  void onFailure(Exception e);
+}
@@ -0,0 +1,11 @@
+package com.espressif.provisioning.listeners;
+
+import com.espressif.provisioning.WiFiAccessPoint;
+
+import java.util.ArrayList;
+
+public interface WiFiScanListener {
+  void onWifiListReceived(ArrayList<WiFiAccessPoint> wifiList);
+
+  void onWiFiScanFailed(Exception e);
+}
@@ -0,0 +1,86 @@
+package com.facebook.react.bridge;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+// Allocates HashMap / ArrayList backed values, like JavaOnlyMap and
+// JavaOnlyArray, so the benchmarks see a realistic allocation pattern without
+// the native bridge
+public class Arguments {
+  public static WritableMap createMap() {
+    return new JavaOnlyMap();
+  }
+
+  public static WritableArray createArray() {
+    return new JavaOnlyArray();
+  }
+
+  static class JavaOnlyMap extends HashMap<String, Object> implements WritableMap {
+    @Override
+    public boolean hasKey(String key) {
+      return containsKey(key);
+    }
+
+    @Override
+    public boolean isNull(String key) {
+      return get(key) == null;
+    }
+
+    @Override
+    public double getDouble(String key) {
+      return ((Number) get(key)).doubleValue();
+    }
+
+    @Override
+    public void putBoolean(String key, boolean value) {
+      put(key, value);
+    }
+
+    @Override
+    public void putDouble(String key, double value) {
+      put(key, value);
+    }
+
+    @Override
+    public void putInt(String key, int value) {
+      put(key, (double) value);
+    }
+
+    @Override
+    public void putString(String key, String value) {
+      put(key, value);
+    }
+
+    @Override
+    public void putArray(String key, ReadableArray value) {
+      put(key, value);
+    }
+
+    @Override
+    public void putMap(String key, ReadableMap value) {
+      put(key, value);
+    }
+  }
+
+  static class JavaOnlyArray extends ArrayList<Object> implements WritableArray {
+    @Override
+    public void pushInt(int value) {
+      add((double) value);
+    }
+
+    @Override
+    public void pushDouble(double value) {
+      add(value);
+    }
+
+    @Override
+    public void pushString(String value) {
+      add(value);
+    }
+
+    @Override
+    public void pushMap(ReadableMap value) {
+      add(value);
+    }
+  }
+}
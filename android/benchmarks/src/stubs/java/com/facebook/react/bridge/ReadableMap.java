@@ -0,0 +1,9 @@
+package com.facebook.react.bridge;
+
+public interface ReadableMap {
+  boolean hasKey(String name);
+
+  boolean isNull(String name);
+
+  double getDouble(String name);
+}
@@ -0,0 +1,11 @@
+package com.facebook.react.bridge;
+
+public interface WritableArray extends ReadableArray {
+  void pushInt(int value);
+
+  void pushDouble(double value);
+
+  void pushString(String value);
+
+  void pushMap(ReadableMap value);
+}
@@ -0,0 +1,366 @@
+package com.esp32idfprovisioning;
+
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.ReadableArray;
+import com.facebook.react.bridge.ReadableMap;
+import com.facebook.react.bridge.WritableArray;
+import com.facebook.react.bridge.WritableMap;
+
+import com.espressif.provisioning.WiFiAccessPoint;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Runs connect -> proof of possession -> session -> network -> provision for a list of devices
+// natively, without a bridge round trip between the stages. Every stage change
+// is streamed to JS as an EVENT_BATCH_PROGRESS event and the batch callback is
+// completed with a summary once every job has finished.
+class BatchProvisioner {
+  static final String STAGE_CONNECT = "connect";
+  static final String STAGE_POP = "pop";
+  // Security handshake, its own stage so a slow key exchange shows in progress
+  // events instead of inflating the provision stage
+  static final String STAGE_SESSION = "session";
+  // Only for jobs without wifiSsid: scan and pick one of the site networks
+  static final String STAGE_NETWORK = "network";
+  static final String STAGE_PROVISION = "provision";
+
+  static final String STATUS_STARTED = "started";
+  static final String STATUS_COMPLETED = "completed";
+  static final String STATUS_FAILED = "failed";
+  // The journal shows the job was provisioned by an earlier run
+  static final String STATUS_SKIPPED = "skipped";
+
+  // Networks of the site, most preferred first, for jobs that leave the choice
+  // to the device's scan
+  static class SiteNetworks {
+    final NetworkRanker.Options ranking;
+    final Map<String, String> passwords;
+
+    SiteNetworks(NetworkRanker.Options ranking, Map<String, String> passwords) {
+      this.ranking = ranking;
+      this.passwords = passwords;
+    }
+
+    // From the batch options { networks: [{ ssid, password }], minRssi }, null
+    // without networks
+    static SiteNetworks fromReadableMap(ReadableMap options) {
+      if (options == null || !options.hasKey("networks") || options.isNull("networks")) {
+        return null;
+      }
+      ReadableArray networks = options.getArray("networks");
+      List<String> preferred = new ArrayList<>();
+      Map<String, String> passwords = new HashMap<>();
+      for (int i = 0; i < networks.size(); i++) {
+        ReadableMap network = networks.getMap(i);
+        String ssid = network.getString("ssid");
+        preferred.add(ssid);
+        passwords.put(ssid, network.hasKey("password") && !network.isNull("password")
+            ? network.getString("password")
+            : null);
+      }
+      if (preferred.isEmpty()) {
+        throw new IllegalArgumentException("networks is empty");
+      }
+      int minRssi = options.hasKey("minRssi") ? options.getInt("minRssi") : NetworkRanker.DEFAULT_MIN_RSSI;
+      return new SiteNetworks(new NetworkRanker.Options(preferred, preferred.size(), minRssi, true), passwords);
+    }
+  }
+
+  interface SessionFactory {
+    // Opens a session on the transport of the job
+    ProvisioningSession openSession(ProvisioningJob job);
+  }
+
+  private final ProvisioningSessions sessions;
+  private final SessionFactory sessionFactory;
+  private final BleDiscoveryIndex bleDevices;
+  private final ProvisioningJournal journal;
+  private final PhoneWifi phoneWifi;
+  private final ProvisioningEventEmitter eventEmitter;
+  // The phone can only be joined to one softAP at a time, so a softAP job holds
+  // the radio from the moment it starts joining until the device reports back.
+  // BLE jobs leave the phone's Wi-Fi alone and never take it.
+  private final Semaphore softApRadio = new Semaphore(1, true);
+  // Connection events do not say which device they are about, so only one job
+  // of any transport may be connecting at a time. BLE jobs release it once
+  // connected and provision in parallel.
+  private final Semaphore connecting = new Semaphore(1, true);
+  private final AtomicInteger batchCounter = new AtomicInteger();
+
+  BatchProvisioner(ProvisioningSessions sessions, SessionFactory sessionFactory, BleDiscoveryIndex bleDevices,
+      ProvisioningJournal journal, PhoneWifi phoneWifi, ProvisioningEventEmitter eventEmitter) {
+    this.sessions = sessions;
+    this.sessionFactory = sessionFactory;
+    this.bleDevices = bleDevices;
+    this.journal = journal;
+    this.phoneWifi = phoneWifi;
+    this.eventEmitter = eventEmitter;
+  }
+
+  // With resume, jobs the journal shows as provisioned are skipped. siteNetworks
+  // may be null when every job names its network.
+  String run(final List<ProvisioningJob> jobs, int parallelism, final long stageTimeoutMs, final boolean resume,
+      final SiteNetworks siteNetworks, final SessionCallback<WritableMap> callback) {
+    final String batchId = "batch-" + batchCounter.incrementAndGet();
+    final JobResult[] results = new JobResult[jobs.size()];
+    if (jobs.isEmpty()) {
+      callback.onSuccess(summary(batchId, results));
+      return batchId;
+    }
+
+    final ExecutorService workers = Executors.newFixedThreadPool(Math.max(1, Math.min(parallelism, jobs.size())));
+    final AtomicInteger remaining = new AtomicInteger(jobs.size());
+    for (final ProvisioningJob job : jobs) {
+      workers.execute(new Runnable() {
+        @Override
+        public void run() {
+          results[job.index] = runJob(batchId, job, stageTimeoutMs, resume, siteNetworks);
+          if (remaining.decrementAndGet() == 0) {
+            workers.shutdown();
+            final WritableMap summary = summary(batchId, results);
+            // The last progress events may still wait in a batch
+            eventEmitter.afterSent(new Runnable() {
+              @Override
+              public void run() {
+                callback.onSuccess(summary);
+              }
+            });
+          }
+        }
+      });
+    }
+    return batchId;
+  }
+
+  private JobResult runJob(String batchId, ProvisioningJob job, long stageTimeoutMs, boolean resume,
+      SiteNetworks siteNetworks) {
+    if (resume) {
+      ProvisioningJournal.JobState state = journal.get(job.key());
+      if (state != null && state.is(STAGE_PROVISION, STATUS_COMPLETED)) {
+        ProvisioningLog.d(batchId, "batch", "job_skipped", job.key());
+        progress(batchId, job, null, STAGE_PROVISION, STATUS_SKIPPED, null, null);
+        return JobResult.skipped(job);
+      }
+    }
+
+    String stage = STAGE_CONNECT;
+    ProvisioningSession session = null;
+    boolean radioHeld = false;
+    boolean connectingHeld = false;
+    try {
+      BleDiscoveryIndex.DiscoveredDevice bleDevice = null;
+      if (job.isBle()) {
+        bleDevice = bleDevices.get(job.bleDeviceId);
+        if (bleDevice == null) {
+          throw new StageWaiter.StageException("Unknown BLE device",
+              "BLE device " + job.bleDeviceId + " has not been discovered or stopped advertising", null);
+        }
+      }
+      session = sessionFactory.openSession(job);
+      if (!job.isBle()) {
+        softApRadio.acquire();
+        radioHeld = true;
+      }
+      connecting.acquire();
+      connectingHeld = true;
+
+      progress(batchId, job, session, stage, STATUS_STARTED, null, null);
+      StageWaiter<Void> connected = new StageWaiter<>();
+      if (bleDevice != null) {
+        sessions.connectBleDevice(session, bleDevice.device, bleDevice.serviceUuid, connected);
+      } else if (phoneWifi.isJoinedTo(job.deviceSsid)) {
+        // Typically a job resumed after a restart: the phone never left the
+        // device's softAP, so only the transport needs to be set up again
+        ProvisioningLog.d(batchId, "batch", "already_joined", job.deviceSsid);
+        sessions.connectJoinedWifiDevice(session, job.deviceSsid, connected);
+      } else {
+        sessions.connectWifiDevice(session, job.deviceSsid, job.devicePassword, connected);
+      }
+      connected.await(stageTimeoutMs);
+      connecting.release();
+      connectingHeld = false;
+      progress(batchId, job, session, stage, STATUS_COMPLETED, null, null);
+
+      stage = STAGE_POP;
+      if (job.pop != null) {
+        session.device.setProofOfPossession(job.pop);
+        progress(batchId, job, session, stage, STATUS_COMPLETED, null, null);
+      }
+
+      stage = STAGE_SESSION;
+      progress(batchId, job, session, stage, STATUS_STARTED, null, null);
+      StageWaiter<Void> established = new StageWaiter<>();
+      session.establish(established);
+      established.await(stageTimeoutMs);
+      progress(batchId, job, session, stage, STATUS_COMPLETED, null, null);
+
+      String wifiSsid = job.wifiSsid;
+      String wifiPassword = job.wifiPassword;
+      if (wifiSsid == null) {
+        stage = STAGE_NETWORK;
+        progress(batchId, job, session, stage, STATUS_STARTED, null, null);
+        List<String> capabilities = session.device.getDeviceCapabilities();
+        if (!capabilities.isEmpty() && !capabilities.contains(DeviceCapabilityCache.CAP_WIFI_SCAN)) {
+          // The firmware cannot scan, asking would only wait for an error
+          wifiSsid = siteNetworks.ranking.preferred.get(0);
+        } else {
+          StageWaiter<List<WiFiAccessPoint>> scanned = new StageWaiter<>();
+          session.scanNetworks(scanned);
+          NetworkRanker.Result ranked = NetworkRanker.rank(scanned.await(stageTimeoutMs), siteNetworks.ranking);
+          if (ranked.selected == null) {
+            throw new StageWaiter.StageException("No site network",
+                "The device sees none of the site networks with a usable signal", null);
+          }
+          wifiSsid = ranked.selected.ssid;
+        }
+        wifiPassword = siteNetworks.passwords.get(wifiSsid);
+        progress(batchId, job, session, stage, STATUS_COMPLETED, null, "Selected " + wifiSsid);
+      }
+
+      stage = STAGE_PROVISION;
+      progress(batchId, job, session, stage, STATUS_STARTED, null, null);
+      StageWaiter<Void> provisioned = new StageWaiter<>();
+      session.provision(wifiSsid, wifiPassword, provisioned);
+      provisioned.await(stageTimeoutMs);
+      progress(batchId, job, session, stage, STATUS_COMPLETED, null, null);
+      return JobResult.success(job, wifiSsid);
+    } catch (StageWaiter.StageException e) {
+      ProvisioningLog.w(batchId, stage, "job_failed", job.key(), e);
+      progress(batchId, job, session, stage, STATUS_FAILED, e.code, e.getMessage());
+      return JobResult.failure(job, stage, e.code, e.getMessage());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      progress(batchId, job, session, stage, STATUS_FAILED, "Interrupted", "Batch was interrupted");
+      return JobResult.failure(job, stage, "Interrupted", "Batch was interrupted");
+    } catch (Exception e) {
+      ProvisioningLog.w(batchId, stage, "job_failed", job.key(), e);
+      progress(batchId, job, session, stage, STATUS_FAILED, "Batch job error", e.toString());
+      return JobResult.failure(job, stage, "Batch job error", e.toString());
+    } finally {
+      if (session != null) {
+        sessions.remove(session.id);
+        // A stage that timed out may still be pending on the device
+        session.cancel("Cancelled", "Batch job has ended");
+      }
+      if (connectingHeld) {
+        connecting.release();
+      }
+      if (radioHeld) {
+        softApRadio.release();
+      }
+    }
+  }
+
+  private void progress(String batchId, ProvisioningJob job, ProvisioningSession session, String stage,
+      String status, String code, String message) {
+    if (!STATUS_SKIPPED.equals(status)) {
+      journal.record(job.key(), stage, status);
+    }
+    WritableMap event = Arguments.createMap();
+    event.putString("batchId", batchId);
+    event.putInt("index", job.index);
+    event.putString("jobKey", job.key());
+    event.putString("ssid", job.deviceSsid);
+    if (job.isBle()) {
+      event.putString("bleDeviceId", job.bleDeviceId);
+    }
+    if (session != null) {
+      event.putString("sessionId", session.id);
+    }
+    event.putString("stage", stage);
+    event.putString("status", status);
+    if (code != null) {
+      event.putString("code", code);
+    }
+    if (message != null) {
+      event.putString("message", message);
+    }
+    eventEmitter.emit(ProvisioningEventEmitter.EVENT_BATCH_PROGRESS, event);
+  }
+
+  private static WritableMap summary(String batchId, JobResult[] results) {
+    int succeeded = 0;
+    int skipped = 0;
+    WritableArray jobs = Arguments.createArray();
+    for (JobResult result : results) {
+      if (result.success) {
+        succeeded++;
+      }
+      if (result.skipped) {
+        skipped++;
+      }
+      jobs.pushMap(result.toWritableMap());
+    }
+    WritableMap res = Arguments.createMap();
+    res.putString("batchId", batchId);
+    res.putInt("succeeded", succeeded);
+    res.putInt("failed", results.length - succeeded);
+    res.putInt("skipped", skipped);
+    res.putArray("results", jobs);
+    return res;
+  }
+
+  private static class JobResult {
+    final ProvisioningJob job;
+    final boolean success;
+    final boolean skipped;
+    // The network provisioned, chosen by the batch when the job had none
+    final String wifiSsid;
+    final String stage;
+    final String code;
+    final String message;
+
+    private JobResult(ProvisioningJob job, boolean success, boolean skipped, String wifiSsid, String stage,
+        String code, String message) {
+      this.job = job;
+      this.success = success;
+      this.skipped = skipped;
+      this.wifiSsid = wifiSsid;
+      this.stage = stage;
+      this.code = code;
+      this.message = message;
+    }
+
+    static JobResult success(ProvisioningJob job, String wifiSsid) {
+      return new JobResult(job, true, false, wifiSsid, null, null, null);
+    }
+
+    static JobResult skipped(ProvisioningJob job) {
+      return new JobResult(job, true, true, job.wifiSsid, null, null, null);
+    }
+
+    static JobResult failure(ProvisioningJob job, String stage, String code, String message) {
+      return new JobResult(job, false, false, job.wifiSsid, stage, code, message);
+    }
+
+    WritableMap toWritableMap() {
+      WritableMap res = Arguments.createMap();
+      res.putInt("index", job.index);
+      res.putString("jobKey", job.key());
+      res.putString("ssid", job.deviceSsid);
+      if (job.isBle()) {
+        res.putString("bleDeviceId", job.bleDeviceId);
+      }
+      if (wifiSsid != null) {
+        res.putString("wifiSsid", wifiSsid);
+      }
+      res.putBoolean("success", success);
+      if (skipped) {
+        res.putBoolean("skipped", true);
+      }
+      if (!success) {
+        res.putString("stage", stage);
+        res.putString("code", code);
+        res.putString("message", message);
+      }
+      return res;
+    }
+  }
+}
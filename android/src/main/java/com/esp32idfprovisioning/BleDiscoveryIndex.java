@@ -0,0 +1,154 @@
+package com.esp32idfprovisioning;
+
+import android.bluetooth.BluetoothDevice;
+
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.WritableMap;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// ESP devices found by BLE scans, keyed by MAC address. A device advertises
+// several times per second, so advertisements are merged into one entry whose
+// RSSI is smoothed, and only new devices or a clear change of signal are
+// reported to JS.
+//
+// Entries are kept in the order of their last advertisement: devices that stop
+// advertising for staleMs are dropped, and the least recently seen device is
+// evicted once more than maxDevices are known.
+class BleDiscoveryIndex {
+  static final int DEFAULT_MAX_DEVICES = 64;
+  static final long DEFAULT_STALE_MS = 30 * 1000;
+  // Weight of a new advertisement in the smoothed RSSI
+  static final double RSSI_SMOOTHING = 0.3;
+  // Change of the smoothed RSSI, in dBm, that is reported again
+  static final double RSSI_REPORT_DELTA = 4;
+
+  // Immutable, every advertisement replaces the entry
+  static class DiscoveredDevice {
+    final String id;
+    final BluetoothDevice device;
+    final String name;
+    final String serviceUuid;
+    final double rssi;
+    final int lastRssi;
+    final int advertisements;
+    final long firstSeenMs;
+    final long lastSeenMs;
+    // Smoothed RSSI at the time the device was last reported to JS
+    final double reportedRssi;
+
+    DiscoveredDevice(String id, BluetoothDevice device, String name, String serviceUuid, double rssi,
+        int lastRssi, int advertisements, long firstSeenMs, long lastSeenMs, double reportedRssi) {
+      this.id = id;
+      this.device = device;
+      this.name = name;
+      this.serviceUuid = serviceUuid;
+      this.rssi = rssi;
+      this.lastRssi = lastRssi;
+      this.advertisements = advertisements;
+      this.firstSeenMs = firstSeenMs;
+      this.lastSeenMs = lastSeenMs;
+      this.reportedRssi = reportedRssi;
+    }
+
+    WritableMap toWritableMap(long nowMs) {
+      WritableMap res = Arguments.createMap();
+      res.putString("id", id);
+      res.putString("name", name);
+      res.putString("serviceUuid", serviceUuid);
+      res.putInt("rssi", (int) Math.round(rssi));
+      res.putInt("lastRssi", lastRssi);
+      res.putInt("advertisements", advertisements);
+      res.putDouble("ageMs", nowMs - lastSeenMs);
+      return res;
+    }
+  }
+
+  private static final Comparator<DiscoveredDevice> BY_SIGNAL = new Comparator<DiscoveredDevice>() {
+    @Override
+    public int compare(DiscoveredDevice a, DiscoveredDevice b) {
+      return Double.compare(b.rssi, a.rssi);
+    }
+  };
+
+  private int maxDevices = DEFAULT_MAX_DEVICES;
+  private long staleMs = DEFAULT_STALE_MS;
+  private final LinkedHashMap<String, DiscoveredDevice> devices = new LinkedHashMap<String, DiscoveredDevice>() {
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, DiscoveredDevice> eldest) {
+      return size() > maxDevices;
+    }
+  };
+
+  synchronized void configure(int maxDevices, long staleMs) {
+    this.maxDevices = Math.max(1, maxDevices);
+    this.staleMs = staleMs;
+    while (devices.size() > this.maxDevices) {
+      devices.remove(devices.keySet().iterator().next());
+    }
+  }
+
+  // Merges an advertisement into the index. Returns the updated entry when it
+  // should be reported to JS, null when nothing worth reporting changed.
+  synchronized DiscoveredDevice onAdvertisement(String id, BluetoothDevice device, String name, String serviceUuid,
+      int rssi, long nowMs) {
+    evictStale(nowMs);
+    DiscoveredDevice previous = devices.remove(id);
+    DiscoveredDevice updated;
+    boolean report;
+    if (previous == null) {
+      updated = new DiscoveredDevice(id, device, name, serviceUuid, rssi, rssi, 1, nowMs, nowMs, rssi);
+      report = true;
+    } else {
+      double smoothed = previous.rssi + RSSI_SMOOTHING * (rssi - previous.rssi);
+      // Names and service UUIDs are not in every advertisement, keep the known ones
+      String knownName = name != null ? name : previous.name;
+      String knownUuid = serviceUuid != null ? serviceUuid : previous.serviceUuid;
+      report = Math.abs(smoothed - previous.reportedRssi) >= RSSI_REPORT_DELTA
+          || (knownName != null && !knownName.equals(previous.name))
+          || (knownUuid != null && !knownUuid.equals(previous.serviceUuid));
+      updated = new DiscoveredDevice(id, device, knownName, knownUuid, smoothed, rssi,
+          previous.advertisements + 1, previous.firstSeenMs, nowMs, report ? smoothed : previous.reportedRssi);
+    }
+    // Re-inserting moves the device to the most recently seen end
+    devices.put(id, updated);
+    return report ? updated : null;
+  }
+
+  synchronized DiscoveredDevice get(String id) {
+    return devices.get(id);
+  }
+
+  // Devices that are still advertising, strongest signal first
+  synchronized List<DiscoveredDevice> devices(long nowMs) {
+    evictStale(nowMs);
+    List<DiscoveredDevice> res = new ArrayList<>(devices.values());
+    Collections.sort(res, BY_SIGNAL);
+    return res;
+  }
+
+  synchronized int size() {
+    return devices.size();
+  }
+
+  synchronized void clear() {
+    devices.clear();
+  }
+
+  // The map is ordered by last advertisement, so stale devices are at the head
+  private void evictStale(long nowMs) {
+    Iterator<DiscoveredDevice> it = devices.values().iterator();
+    while (it.hasNext()) {
+      if (nowMs - it.next().lastSeenMs <= staleMs) {
+        return;
+      }
+      it.remove();
+    }
+  }
+}
@@ -0,0 +1,224 @@
+package com.esp32idfprovisioning;
+
+import com.espressif.provisioning.listeners.ResponseListener;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+
+// Sends a payload that does not fit a single custom endpoint request (device
+// certificates, config blobs) as a sequence of chunks sized to the transport.
+//
+// Every chunk starts with a 5 byte header the firmware uses to reassemble it:
+//   bytes 0-3  offset of the chunk in the payload, big endian
+//   byte  4    flags, FLAG_FINAL on the last chunk
+//
+// The session encryption is a stream cipher shared by both ends, so requests
+// must reach the device in order and only one can be in flight. What does
+// overlap is the I/O: the next chunk is read from the source while the current
+// one is on the air, so the link never waits for the disk.
+//
+// The custom data deadline of the session applies to the whole payload, not
+// to each chunk, and doCancelSession stops the send between chunks. Chunks
+// are answered through a listener of their own rather than the session's
+// custom data slot, so a sendCustomData call made meanwhile does not take
+// their responses.
+class ChunkedPayloadSender {
+  static final int HEADER_SIZE = 5;
+  static final byte FLAG_FINAL = 0x01;
+  // SoftAP requests go over HTTP to the device's httpd
+  static final int SOFTAP_CHUNK_SIZE = 4096;
+  // The SDK asks for a 512 byte ATT MTU, 3 bytes of which are ATT overhead
+  static final int BLE_CHUNK_SIZE = 509;
+
+  interface Listener {
+    void onProgress(int chunk, long sentBytes);
+
+    void onComplete(int chunks, long sentBytes, byte[] lastResponse);
+
+    void onFailure(String code, String message, Exception e);
+  }
+
+  private final ProvisioningSession session;
+  private final String path;
+  private final PushbackInputStream source;
+  private final int payloadSize;
+  private final Listener listener;
+
+  private int chunk;
+  private long sentBytes;
+  // Chunk read ahead of time, or null while it is being read
+  private byte[] next;
+  // The device answered before the next chunk was read, so the reader sends it
+  private boolean responseWaiting;
+  private ProvisioningSession.Operation operation;
+
+  ChunkedPayloadSender(ProvisioningSession session, String path, InputStream source, int chunkSize,
+      Listener listener) {
+    checkChunkSize(chunkSize);
+    this.session = session;
+    this.path = path;
+    this.source = new PushbackInputStream(source, 1);
+    this.payloadSize = chunkSize - HEADER_SIZE;
+    this.listener = listener;
+  }
+
+  static void checkChunkSize(int chunkSize) {
+    if (chunkSize <= HEADER_SIZE) {
+      throw new IllegalArgumentException("Chunk size must be larger than the " + HEADER_SIZE + " byte header");
+    }
+  }
+
+  void start() {
+    operation = session.startOperation("Custom data", session.deadlines().customDataMs,
+        new ProvisioningSession.OperationOwner() {
+          @Override
+          public void onCancelled(String code, String message, Exception reason) {
+            ProvisioningLog.w(session.id, "custom", "chunked_send_cancelled", message, reason);
+            close();
+            listener.onFailure(code, message, reason);
+          }
+        });
+    session.withSecureSession(new Runnable() {
+      @Override
+      public void run() {
+        byte[] first;
+        try {
+          first = readChunk(0);
+        } catch (IOException e) {
+          fail("Custom data read error", "Could not read the payload", e);
+          return;
+        }
+        send(first);
+      }
+    });
+  }
+
+  private void send(final byte[] current) {
+    final boolean last = (current[4] & FLAG_FINAL) != 0;
+    final int length = current.length - HEADER_SIZE;
+    if (operation.isDone()) {
+      return;
+    }
+    ResponseListener responseListener = new ResponseListener() {
+      @Override
+      public void onSuccess(byte[] response) {
+        session.onSecureResponse(true);
+        if (operation.isDone()) {
+          return;
+        }
+        chunk++;
+        sentBytes += length;
+        listener.onProgress(chunk, sentBytes);
+        if (last) {
+          if (operation.finish()) {
+            close();
+            listener.onComplete(chunk, sentBytes, response);
+          }
+          return;
+        }
+        byte[] ready;
+        synchronized (ChunkedPayloadSender.this) {
+          ready = next;
+          next = null;
+          responseWaiting = ready == null;
+        }
+        if (ready != null) {
+          send(ready);
+        }
+      }
+
+      @Override
+      public void onFailure(Exception e) {
+        session.onSecureResponse(false);
+        fail("Error in response listener", "Chunk " + chunk + " of " + path + " failed", e);
+      }
+    };
+    try {
+      session.device.sendDataToCustomEndPoint(path, current, responseListener);
+    } catch (Exception e) {
+      responseListener.onFailure(e);
+    }
+
+    if (last) {
+      return;
+    }
+    // Read ahead while the current chunk is being sent
+    byte[] prefetched;
+    try {
+      prefetched = readChunk(offsetOf(current) + length);
+    } catch (IOException e) {
+      fail("Custom data read error", "Could not read the payload", e);
+      return;
+    }
+    boolean sendNow;
+    synchronized (this) {
+      sendNow = responseWaiting;
+      responseWaiting = false;
+      if (!sendNow) {
+        next = prefetched;
+      }
+    }
+    if (sendNow) {
+      send(prefetched);
+    }
+  }
+
+  private static long offsetOf(byte[] framed) {
+    return ((framed[0] & 0xffL) << 24) | ((framed[1] & 0xffL) << 16) | ((framed[2] & 0xffL) << 8)
+        | (framed[3] & 0xffL);
+  }
+
+  // Reads up to payloadSize bytes and frames them. A chunk is final when the
+  // source is exhausted, which is only known after trying to read one more byte.
+  private byte[] readChunk(long offset) throws IOException {
+    byte[] buffer = new byte[HEADER_SIZE + payloadSize];
+    int read = 0;
+    while (read < payloadSize) {
+      int n = source.read(buffer, HEADER_SIZE + read, payloadSize - read);
+      if (n < 0) {
+        break;
+      }
+      read += n;
+    }
+    boolean last = read < payloadSize;
+    if (!last) {
+      int peek = source.read();
+      if (peek < 0) {
+        last = true;
+      } else {
+        source.unread(peek);
+      }
+    }
+    byte[] framed;
+    if (read == payloadSize) {
+      framed = buffer;
+    } else {
+      framed = new byte[HEADER_SIZE + read];
+      System.arraycopy(buffer, HEADER_SIZE, framed, HEADER_SIZE, read);
+    }
+    framed[0] = (byte) (offset >>> 24);
+    framed[1] = (byte) (offset >>> 16);
+    framed[2] = (byte) (offset >>> 8);
+    framed[3] = (byte) offset;
+    framed[4] = last ? FLAG_FINAL : 0;
+    return framed;
+  }
+
+  private void fail(String code, String message, Exception e) {
+    if (!operation.finish()) {
+      return;
+    }
+    ProvisioningLog.w(session.id, "custom", "chunked_send_failed", message, e);
+    close();
+    listener.onFailure(code, message, e);
+  }
+
+  private void close() {
+    try {
+      source.close();
+    } catch (IOException e) {
+      ProvisioningLog.w(session.id, "custom", "source_close_failed", e);
+    }
+  }
+}
@@ -0,0 +1,155 @@
+package com.esp32idfprovisioning;
+
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+// Hashed timer wheel for the deadlines of session operations. Almost every
+// deadline is cancelled because its operation finishes in time, so arming and
+// cancelling are O(1) list operations on a bucket instead of scheduling and
+// cancelling a task on the executor for every call.
+//
+// Time is cut into ticks of tickMs, and a deadline goes to the bucket of its
+// tick modulo the wheel size. Every tick walks one bucket and expires the
+// deadlines that are due; the others are a full turn or more away. Deadlines
+// fire up to one tick late. The ticker only runs while deadlines are armed.
+class DeadlineWheel {
+  static final long DEFAULT_TICK_MS = 100;
+  // 512 ticks of 100 ms, so deadlines up to about 51 s are found on their first pass
+  static final int DEFAULT_WHEEL_SIZE = 512;
+
+  final class Timeout {
+    private final Runnable task;
+    private final long deadlineTick;
+    private Timeout prev;
+    private Timeout next;
+    // Still in a bucket, neither expired nor cancelled
+    private boolean armed = true;
+
+    private Timeout(Runnable task, long deadlineTick) {
+      this.task = task;
+      this.deadlineTick = deadlineTick;
+    }
+
+    // Returns false when the deadline has already fired or been cancelled
+    boolean cancel() {
+      synchronized (DeadlineWheel.this) {
+        if (!armed) {
+          return false;
+        }
+        unlink(this);
+        return true;
+      }
+    }
+  }
+
+  private final ScheduledExecutorService scheduler;
+  private final long tickMs;
+  private final Timeout[] buckets;
+  private final long startMs;
+  // Ticks whose bucket has been walked
+  private long processedTicks;
+  private int armedCount;
+  private ScheduledFuture<?> ticker;
+
+  DeadlineWheel(ScheduledExecutorService scheduler) {
+    this(scheduler, DEFAULT_TICK_MS, DEFAULT_WHEEL_SIZE, SystemClock.elapsedRealtime());
+  }
+
+  // scheduler may be null, the wheel then only moves on advance
+  DeadlineWheel(ScheduledExecutorService scheduler, long tickMs, int wheelSize, long startMs) {
+    this.scheduler = scheduler;
+    this.tickMs = tickMs;
+    this.buckets = new Timeout[wheelSize];
+    this.startMs = startMs;
+  }
+
+  Timeout schedule(Runnable task, long delayMs) {
+    return schedule(task, delayMs, SystemClock.elapsedRealtime());
+  }
+
+  synchronized Timeout schedule(Runnable task, long delayMs, long nowMs) {
+    if (armedCount == 0) {
+      // Nothing to expire in the ticks the wheel was idle
+      processedTicks = Math.max(processedTicks, (nowMs - startMs) / tickMs);
+    }
+    // Rounded up so a deadline never fires early
+    long deadlineTick = Math.max(processedTicks + 1, (nowMs + delayMs - startMs + tickMs - 1) / tickMs);
+    Timeout timeout = new Timeout(task, deadlineTick);
+    int bucket = (int) (deadlineTick % buckets.length);
+    timeout.next = buckets[bucket];
+    if (timeout.next != null) {
+      timeout.next.prev = timeout;
+    }
+    buckets[bucket] = timeout;
+    armedCount++;
+    if (ticker == null && scheduler != null) {
+      ticker = scheduler.scheduleAtFixedRate(new Runnable() {
+        @Override
+        public void run() {
+          advance(SystemClock.elapsedRealtime());
+        }
+      }, tickMs, tickMs, TimeUnit.MILLISECONDS);
+    }
+    return timeout;
+  }
+
+  // Walks the buckets of the ticks up to nowMs and runs the expired deadlines,
+  // outside the lock so they may arm or cancel others
+  void advance(long nowMs) {
+    List<Timeout> expired = new ArrayList<>();
+    synchronized (this) {
+      long targetTick = (nowMs - startMs) / tickMs;
+      // One turn visits every bucket, further turns would find nothing new
+      processedTicks = Math.max(processedTicks, targetTick - buckets.length);
+      while (processedTicks < targetTick && armedCount > 0) {
+        processedTicks++;
+        int bucket = (int) (processedTicks % buckets.length);
+        Timeout timeout = buckets[bucket];
+        while (timeout != null) {
+          Timeout next = timeout.next;
+          if (timeout.deadlineTick <= processedTicks) {
+            unlink(timeout);
+            expired.add(timeout);
+          }
+          timeout = next;
+        }
+      }
+      processedTicks = Math.max(processedTicks, targetTick);
+      if (armedCount == 0 && ticker != null) {
+        ticker.cancel(false);
+        ticker = null;
+      }
+    }
+    for (Timeout timeout : expired) {
+      try {
+        timeout.task.run();
+      } catch (Exception e) {
+        ProvisioningLog.e(null, "deadline", "task_failed", e);
+      }
+    }
+  }
+
+  synchronized int size() {
+    return armedCount;
+  }
+
+  private void unlink(Timeout timeout) {
+    if (timeout.prev != null) {
+      timeout.prev.next = timeout.next;
+    } else {
+      buckets[(int) (timeout.deadlineTick % buckets.length)] = timeout.next;
+    }
+    if (timeout.next != null) {
+      timeout.next.prev = timeout.prev;
+    }
+    timeout.prev = null;
+    timeout.next = null;
+    timeout.armed = false;
+    armedCount--;
+  }
+}
@@ -0,0 +1,245 @@
+package com.esp32idfprovisioning;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import com.espressif.provisioning.ESPConstants;
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.WritableArray;
+import com.facebook.react.bridge.WritableMap;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// What each device reported the last time the phone connected to it: its
+// protocol version, capabilities and security scheme, keyed by device identity
+// ("softap:<SSID>" or "ble:<MAC>", see ProvisioningSession.deviceKey). A line
+// reconnects to the same boards several times, so later sessions can be
+// created with the right transport and security before connecting, and JS can
+// plan a flow (no_pop, wifi_scan, ...) without connecting at all.
+//
+// Entries are rewritten whenever a connection reports something else, e.g.
+// after a board was reflashed, and dropped after MAX_AGE_MS. The least
+// recently used entry is evicted once more than maxEntries are cached. They
+// are kept in SharedPreferences, loaded on first use.
+class DeviceCapabilityCache {
+  static final String PREFERENCES_NAME = "esp32-provisioning-devices";
+  static final int DEFAULT_MAX_ENTRIES = 256;
+  static final long MAX_AGE_MS = 30L * 24 * 60 * 60 * 1000;
+  // Devices without it cannot scan for networks
+  static final String CAP_WIFI_SCAN = "wifi_scan";
+
+  static class DeviceInfo {
+    final String key;
+    final ESPConstants.TransportType transport;
+    final int securityVersion;
+    final String versionInfo;
+    final List<String> capabilities;
+    // Wall clock, entries outlive reboots
+    final long updatedAt;
+
+    DeviceInfo(String key, ESPConstants.TransportType transport, int securityVersion, String versionInfo,
+        List<String> capabilities, long updatedAt) {
+      this.key = key;
+      this.transport = transport;
+      this.securityVersion = securityVersion;
+      this.versionInfo = versionInfo;
+      this.capabilities = capabilities;
+      this.updatedAt = updatedAt;
+    }
+
+    boolean has(String capability) {
+      return capabilities.contains(capability);
+    }
+
+    boolean sameAs(DeviceInfo other) {
+      return transport == other.transport && securityVersion == other.securityVersion
+          && equal(versionInfo, other.versionInfo) && capabilities.equals(other.capabilities);
+    }
+
+    // securityVersion;transport;updatedAt;cap,cap;versionInfo, the version
+    // goes last as the only free-form field
+    String encode() {
+      StringBuilder caps = new StringBuilder();
+      for (String capability : capabilities) {
+        if (caps.length() > 0) {
+          caps.append(',');
+        }
+        caps.append(capability);
+      }
+      return securityVersion + ";" + transport.name() + ";" + updatedAt + ";" + caps + ";"
+          + (versionInfo != null ? versionInfo : "");
+    }
+
+    static DeviceInfo decode(String key, String value) {
+      String[] fields = value.split(";", 5);
+      if (fields.length < 5) {
+        throw new IllegalArgumentException("Malformed device entry " + key);
+      }
+      List<String> capabilities = fields[3].isEmpty()
+          ? Collections.<String>emptyList()
+          : Arrays.asList(fields[3].split(","));
+      return new DeviceInfo(key, ESPConstants.TransportType.valueOf(fields[1]), Integer.parseInt(fields[0]),
+          fields[4].isEmpty() ? null : fields[4], capabilities, Long.parseLong(fields[2]));
+    }
+
+    WritableMap toWritableMap() {
+      WritableMap res = Arguments.createMap();
+      res.putString("device", key);
+      res.putString("transport", transport == ESPConstants.TransportType.TRANSPORT_BLE ? "ble" : "softap");
+      res.putInt("security", securityVersion);
+      res.putString("version", versionInfo);
+      WritableArray caps = Arguments.createArray();
+      for (String capability : capabilities) {
+        caps.pushString(capability);
+      }
+      res.putArray("capabilities", caps);
+      res.putDouble("updatedAt", updatedAt);
+      return res;
+    }
+
+    private static boolean equal(String a, String b) {
+      return a == null ? b == null : a.equals(b);
+    }
+  }
+
+  private final Context context;
+  private final int maxEntries;
+  private SharedPreferences preferences;
+  private int hits;
+  private int misses;
+  private int invalidations;
+  private final LinkedHashMap<String, DeviceInfo> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+  DeviceCapabilityCache(Context context) {
+    this(context, DEFAULT_MAX_ENTRIES);
+  }
+
+  DeviceCapabilityCache(Context context, int maxEntries) {
+    this.context = context;
+    this.maxEntries = Math.max(1, maxEntries);
+  }
+
+  // null when the device is unknown or its entry is too old
+  synchronized DeviceInfo get(String key) {
+    load();
+    DeviceInfo info = key != null ? entries.get(key) : null;
+    if (info != null && System.currentTimeMillis() - info.updatedAt > MAX_AGE_MS) {
+      remove(key);
+      info = null;
+    }
+    if (info != null) {
+      hits++;
+    } else {
+      misses++;
+    }
+    return info;
+  }
+
+  // Records what a connection reported. Returns the entry it replaced when
+  // that one did not match, null when the device was unknown or unchanged.
+  synchronized DeviceInfo observe(String key, ESPConstants.TransportType transport, int securityVersion,
+      String versionInfo, List<String> capabilities) {
+    load();
+    DeviceInfo observed = new DeviceInfo(key, transport, securityVersion, versionInfo,
+        capabilities != null ? new ArrayList<>(capabilities) : Collections.<String>emptyList(),
+        System.currentTimeMillis());
+    DeviceInfo previous = entries.put(key, observed);
+    DeviceInfo mismatch = previous != null && !previous.sameAs(observed) ? previous : null;
+    if (mismatch != null) {
+      invalidations++;
+      // The new entry is in the cache, the event keeps the version and security it replaced
+      ProvisioningLog.i(key, "capabilities", "mismatch", previous.versionInfo, previous.securityVersion);
+    }
+    SharedPreferences.Editor editor = preferences.edit().putString(key, observed.encode());
+    while (entries.size() > maxEntries) {
+      String eldest = entries.keySet().iterator().next();
+      entries.remove(eldest);
+      editor.remove(eldest);
+    }
+    editor.apply();
+    return mismatch;
+  }
+
+  // Drops one device, or every device when key is null
+  synchronized void invalidate(String key) {
+    load();
+    if (key == null) {
+      entries.clear();
+      preferences.edit().clear().apply();
+    } else {
+      remove(key);
+    }
+  }
+
+  synchronized List<DeviceInfo> all() {
+    load();
+    return new ArrayList<>(entries.values());
+  }
+
+  synchronized WritableMap metricsToWritableMap() {
+    WritableMap res = Arguments.createMap();
+    res.putInt("entries", entries.size());
+    res.putInt("hits", hits);
+    res.putInt("misses", misses);
+    res.putInt("invalidations", invalidations);
+    return res;
+  }
+
+  private void remove(String key) {
+    if (entries.remove(key) != null) {
+      preferences.edit().remove(key).apply();
+    }
+  }
+
+  private void load() {
+    if (preferences != null) {
+      return;
+    }
+    preferences = context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+    long now = System.currentTimeMillis();
+    List<DeviceInfo> loaded = new ArrayList<>();
+    SharedPreferences.Editor cleanup = null;
+    for (Map.Entry<String, ?> entry : preferences.getAll().entrySet()) {
+      DeviceInfo info = null;
+      try {
+        info = DeviceInfo.decode(entry.getKey(), String.valueOf(entry.getValue()));
+      } catch (Exception e) {
+        ProvisioningLog.w(entry.getKey(), "capabilities", "entry_unreadable", e);
+      }
+      if (info != null && now - info.updatedAt <= MAX_AGE_MS) {
+        loaded.add(info);
+      } else {
+        cleanup = cleanup != null ? cleanup : preferences.edit();
+        cleanup.remove(entry.getKey());
+      }
+    }
+    // Oldest first, the least recently used end of the map
+    Collections.sort(loaded, new Comparator<DeviceInfo>() {
+      @Override
+      public int compare(DeviceInfo a, DeviceInfo b) {
+        return Long.compare(a.updatedAt, b.updatedAt);
+      }
+    });
+    for (DeviceInfo info : loaded) {
+      entries.put(info.key, info);
+    }
+    Iterator<String> it = entries.keySet().iterator();
+    while (entries.size() > maxEntries && it.hasNext()) {
+      String eldest = it.next();
+      it.remove();
+      cleanup = cleanup != null ? cleanup : preferences.edit();
+      cleanup.remove(eldest);
+    }
+    if (cleanup != null) {
+      cleanup.apply();
+    }
+    ProvisioningLog.d(null, "capabilities", "loaded", entries.size());
+  }
+}
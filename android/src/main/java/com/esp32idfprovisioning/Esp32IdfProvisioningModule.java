@@ -1,16 +1,18 @@
 package com.esp32idfprovisioning;
 
 import androidx.annotation.NonNull;
-import android.util.Log;
 import android.provider.Settings;
 // import android.os.Handler;
 import android.bluetooth.BluetoothDevice;
+import android.bluetooth.le.ScanResult;
+import android.os.ParcelUuid;
+import android.os.SystemClock;
 import android.content.Intent;
 import android.app.Activity;
+import android.net.Uri;
 
 // React Native SDK Imports
 import com.facebook.react.bridge.ReactApplicationContext;
-import com.facebook.react.bridge.ReactContextBaseJavaModule;
 import com.facebook.react.bridge.ReactMethod;
 import com.facebook.react.module.annotations.ReactModule;
 import com.facebook.react.bridge.Promise;
@@ -24,19 +26,26 @@ import com.facebook.react.bridge.WritableArray;
 // ESP Provisioning SDK Import
 import com.espressif.provisioning.DeviceConnectionEvent;
 import com.espressif.provisioning.ESPConstants;
+import com.espressif.provisioning.ESPDevice;
 import com.espressif.provisioning.ESPProvisionManager;
 import com.espressif.provisioning.WiFiAccessPoint;
-import com.espressif.provisioning.device_scanner.WiFiScanner;
 import com.espressif.provisioning.listeners.BleScanListener;
-import com.espressif.provisioning.listeners.ProvisionListener;
-import com.espressif.provisioning.listeners.ResponseListener;
-import com.espressif.provisioning.listeners.WiFiScanListener;
 
 // Java Imports
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
 import java.util.List;
 import java.util.Map;
-import java.util.HashMap;
 import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
 
 // Pub/Sub Event Bus 
 // https://github.com/greenrobot/EventBus
@@ -45,40 +54,137 @@ import org.greenrobot.eventbus.Subscribe;
 import org.greenrobot.eventbus.ThreadMode;
 
 @ReactModule(name = Esp32IdfProvisioningModule.NAME)
-public class Esp32IdfProvisioningModule extends ReactContextBaseJavaModule {
+public class Esp32IdfProvisioningModule extends Esp32IdfProvisioningSpec {
   public static final String NAME = "Esp32IdfProvisioning";
-  private static final String TAG = "FTLABS";
+  static final String DEFAULT_SESSION_ID = ProvisioningConstants.DEFAULT_SESSION_ID;
+  private static final long DEFAULT_STAGE_TIMEOUT_MS = 60000;
 
   // React Native variables
   private ReactApplicationContext reactContext;
+  // Created on first use or by doPrewarm
   private ESPProvisionManager provisionManager;
   // private Handler handler;
-  private HashMap<String, BluetoothDevice> listDevicesByUuid;
-  private WritableArray listDeviceNamesByUuid;
 
-  private WiFiScanner wifiScanner;
-
-  // Status variables
-  private boolean deviceConnected = false;
-  private boolean promiseConnectionFinished = false;
-
-  private String deviceName;
-  private Promise promiseScan;
-  private Promise promiseConnection;
-  private Promise promiseNetworkScan;
-  private Promise promiseNetworkProvision;
-  private Promise promiseCustomDataProvision;
+  // One session per ESP device, keyed by the session id handed out to JS
+  private final ProvisioningSessions sessions = new ProvisioningSessions();
+  private final ProvisioningEventEmitter eventEmitter;
+  private final BatchProvisioner batchProvisioner;
+  private final ScanResultCache scanResultCache = new ScanResultCache();
+  // ESP devices found by BLE scans, keyed by MAC address
+  private final BleDiscoveryIndex bleDevices = new BleDiscoveryIndex();
+  private boolean bleScanning = false;
+  // ESP device softAPs found by the phone's Wi-Fi scans, keyed by SSID
+  private final SoftApIndex softApDevices = new SoftApIndex();
+  private final SoftApDiscovery softApDiscovery;
+  private final ProvisioningTimings timings = new ProvisioningTimings();
+  // Delayed work of the sessions, such as retries
+  private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+    @Override
+    public Thread newThread(Runnable runnable) {
+      return new Thread(runnable, "esp32-provisioning-scheduler");
+    }
+  });
+  private final RetryEngine retryEngine = new RetryEngine(scheduler);
+  // Wi-Fi status polling after the credentials are applied, off until a policy is set
+  private final WiFiConfigProvisioner configProvisioner = new WiFiConfigProvisioner(scheduler);
+  // Deadlines of session operations
+  private final DeadlineWheel deadlineWheel = new DeadlineWheel(scheduler);
+  // Deadlines of the sessions that were not given their own
+  private volatile OperationDeadlines defaultDeadlines = OperationDeadlines.NONE;
+  // Pings idle sessions so repeated operations skip the handshake, off until doConfigureKeepAlive
+  private final SessionKeepAlive keepAlive = new SessionKeepAlive(sessions, scheduler);
+  // Stage transitions of batch jobs, kept across app restarts
+  private final ProvisioningJournal journal;
+  // Journal writes, apart from the scheduler so a slow fsync does not delay timers
+  private final ScheduledExecutorService journalWriter = Executors.newSingleThreadScheduledExecutor(
+      new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+          return new Thread(runnable, "esp32-provisioning-journal");
+        }
+      });
+  // What devices reported on earlier connections, kept across app restarts
+  private final DeviceCapabilityCache deviceCache;
+  private final ProvisioningSession.ConnectListener deviceCacheRecorder = new ProvisioningSession.ConnectListener() {
+    @Override
+    public void onConnected(ProvisioningSession session) {
+      String key = session.deviceKey();
+      if (key == null) {
+        return;
+      }
+      try {
+        deviceCache.observe(key, session.transport, session.device.getSecurityVersion(),
+            session.device.getVersionInfo(), session.device.getDeviceCapabilities());
+      } catch (Exception e) {
+        ProvisioningLog.w(session.id, "capabilities", "record_failed", e);
+      }
+    }
+  };
+  // Security handshakes, off the native modules thread: the SRP6a key exchange
+  // of Security2 takes hundreds of milliseconds of CPU on slow phones
+  private final ExecutorService handshakes = Executors.newFixedThreadPool(
+      Math.max(1, Runtime.getRuntime().availableProcessors() - 1), new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+          return new Thread(runnable, "esp32-provisioning-handshake");
+        }
+      });
+  // Single thread, so connection events are handled in the order the SDK posted them
+  private final ExecutorService connectionEvents = Executors.newSingleThreadExecutor(new ThreadFactory() {
+    @Override
+    public Thread newThread(Runnable runnable) {
+      return new Thread(runnable, "esp32-provisioning-events");
+    }
+  });
 
   // Required for React Native Module
   public Esp32IdfProvisioningModule(ReactApplicationContext context) {
     super(context);
-
-    // // Log.d(TAG, reactContext.toString());
-    // Log.d(TAG, "Constructor");
-    // Log.d(TAG, context.toString());
     reactContext = context;
-    // Log.d(TAG, "Constructor finished");
-    // Log.d(TAG, reactContext.toString());
+    eventEmitter = new ProvisioningEventEmitter(context, scheduler);
+    journal = new ProvisioningJournal(new File(context.getFilesDir(), "esp32-provisioning"), journalWriter);
+    deviceCache = new DeviceCapabilityCache(context);
+    batchProvisioner = new BatchProvisioner(sessions, new BatchProvisioner.SessionFactory() {
+      @Override
+      public ProvisioningSession openSession(ProvisioningJob job) {
+        SessionSecurity security = job.security;
+        if (security == SessionSecurity.DEFAULT) {
+          // Jobs that leave security out get the scheme the device reported last time
+          DeviceCapabilityCache.DeviceInfo known = deviceCache.get(job.isBle()
+              ? ProvisioningSession.bleDeviceKey(job.bleDeviceId)
+              : ProvisioningSession.softApDeviceKey(job.deviceSsid));
+          if (known != null) {
+            security = SessionSecurity.forVersion(known.securityVersion, null);
+          }
+        }
+        return createSession(sessions.nextId(), job.isBle()
+            ? ESPConstants.TransportType.TRANSPORT_BLE
+            : ESPConstants.TransportType.TRANSPORT_SOFTAP, security);
+      }
+    }, bleDevices, journal, new PhoneWifi(context), eventEmitter);
+    softApDiscovery = new SoftApDiscovery(context, scheduler, softApDevices, journal, new SoftApDiscovery.Listener() {
+      @Override
+      public void onDeviceFound(SoftApIndex.SoftAp device, long nowMs) {
+        eventEmitter.emitLatest(ProvisioningEventEmitter.EVENT_SOFTAP_DEVICE_FOUND, device.ssid,
+            device.toWritableMap(nowMs));
+      }
+    });
+    retryEngine.setListener(new RetryEngine.Listener() {
+      @Override
+      public void onRetryScheduled(String sessionId, String stage, int attempt, int maxAttempts, long delayMs,
+          Exception reason) {
+        WritableMap event = Arguments.createMap();
+        event.putString("sessionId", sessionId);
+        event.putString("stage", stage);
+        event.putInt("attempt", attempt);
+        event.putInt("maxAttempts", maxAttempts);
+        event.putDouble("delayMs", delayMs);
+        if (reason != null) {
+          event.putString("reason", reason.toString());
+        }
+        eventEmitter.emitDroppable(ProvisioningEventEmitter.EVENT_RETRY, event);
+      }
+    });
   }
 
   // This method is **required** to be implemented by React Native
@@ -88,183 +194,489 @@ public class Esp32IdfProvisioningModule extends ReactContextBaseJavaModule {
     return NAME;
   }
 
-  // Will scan for wifi networks and then return a list of them
-  // The promise will be resolved with the list of networks
-  WiFiScanListener wiFiScanListener = new WiFiScanListener() {
-    // @TargetApi(Build.VERSION_CODES.N)
-    @Override
-    public void onWifiListReceived(ArrayList<WiFiAccessPoint> wifiList) {
-      WritableArray listOfNetworks = Arguments.createArray();
-      wifiList.forEach((wiFiAccessPoint) -> {
-        WritableMap newElement = Arguments.createMap();
-        newElement.putString("ssid", wiFiAccessPoint.getWifiName());
-        newElement.putString("password", wiFiAccessPoint.getPassword());
-        newElement.putInt("rssi", wiFiAccessPoint.getRssi());
-        newElement.putInt("security", wiFiAccessPoint.getSecurity());
-        listOfNetworks.pushMap(newElement);
-      });
-      promiseNetworkScan.resolve(listOfNetworks);
-    }
+  private ProvisioningSession createSession(String sessionId) {
+    return createSession(sessionId, ESPConstants.TransportType.TRANSPORT_SOFTAP, SessionSecurity.DEFAULT);
+  }
 
-    @Override
-    public void onWiFiScanFailed(Exception e) {
-      promiseNetworkScan.reject("Network Scan Error", "WiFi networks scan has failed", e);
+  private synchronized ESPProvisionManager provisionManager() {
+    if (provisionManager == null) {
+      provisionManager = ESPProvisionManager.getInstance(reactContext);
     }
-  };
+    return provisionManager;
+  }
 
-  // Native method to provision using SoftAP and it's callbacks
-  ProvisionListener provisionListener = new ProvisionListener() {
-    @Override
-    public void createSessionFailed(Exception e) {
-      Log.d(TAG, "Session creation is failed", e);
-      promiseNetworkProvision.reject("Error in provision listener", "Session creation is failed", e);
+  private ProvisioningSession createSession(String sessionId, ESPConstants.TransportType transport,
+      SessionSecurity security) {
+    ESPDevice espDevice = provisionManager().createESPDevice(transport, security.type);
+    if (security.username != null) {
+      espDevice.setUserName(security.username);
     }
+    ProvisioningSession session = new ProvisioningSession(sessionId, new EspDeviceAdapter(espDevice), transport,
+        timings, retryEngine);
+    session.setReuseListener(keepAlive);
+    session.setConnectListener(deviceCacheRecorder);
+    session.setHandshakeExecutor(handshakes);
+    session.setProvisioner(configProvisioner);
+    session.setDeadlineWheel(deadlineWheel);
+    session.setDeadlines(defaultDeadlines, false);
+    sessions.put(session);
+    keepAlive.start();
+    ProvisioningLog.d(sessionId, "session", "created");
 
-    @Override
-    public void wifiConfigSent() {
-      Log.d(TAG, "Wi-Fi credentials successfully sent to the device");
-    }
+    registerEventBus();
+    return session;
+  }
 
-    @Override
-    public void wifiConfigFailed(Exception e) {
-      Log.d(TAG, "Wi-Fi credentials failed to send to the device", e);
-      promiseNetworkProvision.reject("Error in provision listener", "Wi-Fi credentials failed to send to the device",
-          e);
+  // The first registration looks up the @Subscribe methods by reflection
+  private synchronized void registerEventBus() {
+    if (!EventBus.getDefault().isRegistered(this)) {
+      EventBus.getDefault().register(this);
+      ProvisioningLog.d(null, "events", "event_bus_registered");
     }
+  }
 
-    @Override
-    public void wifiConfigApplied() {
-      Log.d(TAG, "Wi-Fi credentials successfully applied to the device");
+  // Looks up a session, rejecting the promise when it does not exist
+  private ProvisioningSession getSession(String sessionId, Promise promise) {
+    ProvisioningSession session = sessions.get(sessionId);
+    if (session == null) {
+      promise.reject("Unknown session",
+          "No ESP device has been created for session " + sessionId,
+          new Exception());
     }
+    return session;
+  }
 
-    @Override
-    public void wifiConfigApplyFailed(Exception e) {
-      Log.d(TAG, "Wi-Fi credentials failed to apply to the device", e);
-      promiseNetworkProvision.reject("Error in provision listener", "Wi-Fi credentials failed to apply to the device",
-          e);
+  // Get this to see the status of the connection
+  @ReactMethod
+  public void doGetStatus(Promise promise) {
+    ProvisioningSession session = sessions.get(DEFAULT_SESSION_ID);
+    WritableMap res = Arguments.createMap();
+    res.putBoolean("deviceConnected", session != null && session.deviceConnected);
+    promise.resolve(res);
+  }
+
+  // Status of one session created with doCreateESPDeviceSession
+  @ReactMethod
+  public void doGetSessionStatus(String sessionId, Promise promise) {
+    ProvisioningSession session = getSession(sessionId, promise);
+    if (session == null) {
+      return;
     }
+    WritableMap res = Arguments.createMap();
+    res.putString("sessionId", session.id);
+    res.putBoolean("deviceConnected", session.deviceConnected);
+    promise.resolve(res);
+  }
 
-    @Override
-    public void provisioningFailedFromDevice(ESPConstants.ProvisionFailureReason failureReason) {
-      Log.d(TAG, "provisioningFailedFromDevice: " + failureReason.toString());
-      promiseNetworkProvision.reject("Error in provision listener",
-          "provisioningFailedFromDevice: " + failureReason.toString(), new Exception());
+  // Synchronous variants of the status reads. They only read a volatile flag,
+  // so answering on the JS thread is cheaper than a promise round trip.
+  @ReactMethod(isBlockingSynchronousMethod = true)
+  public WritableMap doGetStatusSync() {
+    return doGetSessionStatusSync(DEFAULT_SESSION_ID);
+  }
+
+  // { sessionId, open, deviceConnected }, open is false for unknown sessions
+  @ReactMethod(isBlockingSynchronousMethod = true)
+  public WritableMap doGetSessionStatusSync(String sessionId) {
+    ProvisioningSession session = sessions.get(sessionId);
+    WritableMap res = Arguments.createMap();
+    res.putString("sessionId", sessionId);
+    res.putBoolean("open", session != null);
+    res.putBoolean("deviceConnected", session != null && session.deviceConnected);
+    return res;
+  }
+
+  // Ids of every session that is currently open
+  @ReactMethod
+  public void doListSessions(Promise promise) {
+    WritableArray res = Arguments.createArray();
+    for (String sessionId : sessions.ids()) {
+      res.pushString(sessionId);
     }
+    promise.resolve(res);
+  }
 
-    @Override
-    public void deviceProvisioningSuccess() {
-      Log.d(TAG, "Device is provisioned successfully");
-      WritableMap res = Arguments.createMap();
-      res.putBoolean("success", true);
-      promiseNetworkProvision.resolve(res);
+  // First method to be called before any other method
+  @ReactMethod
+  public void doCreateESPDevice(Promise promise) {
+    try {
+      createSession(DEFAULT_SESSION_ID);
+      promise.resolve("Provisioning Manager created successfully");
+    } catch (Exception e) {
+      ProvisioningLog.e(DEFAULT_SESSION_ID, "session", "create_failed", e);
+      promise.reject("Error on Create method", e);
     }
+  }
 
-    @Override
-    public void onProvisioningFailed(Exception e) {
-      Log.d(TAG, "Provisioning is failed", e);
-      promiseNetworkProvision.reject("Error in provision listener", "Provisioning is failed", e);
+  // Multi-device variant of doCreateESPDevice. Resolves with the id of the new
+  // session, which is then passed to the *ForSession methods
+  @ReactMethod
+  public void doCreateESPDeviceSession(Promise promise) {
+    try {
+      ProvisioningSession session = createSession(sessions.nextId());
+      promise.resolve(session.id);
+    } catch (Exception e) {
+      ProvisioningLog.e(null, "session", "create_failed", e);
+      promise.reject("Error on Create session method", e);
     }
-  };
+  }
 
-  // Response listener for custom data
-  ResponseListener responseListener = new ResponseListener() {
-    @Override
-    public void onSuccess(byte[] data) {
-      Log.d(TAG, "Custom data sent successfully");
-      WritableMap res = Arguments.createMap();
-      res.putBoolean("success", true);
-      promiseCustomDataProvision.resolve(res);
+  // Variant of doCreateESPDeviceSession that picks the transport and security.
+  // Options: { transport: "softap" | "ble", security: 0 | 1 | 2, username,
+  // deadlines, ssid, bleDeviceId }, softap and security 1 by default. With
+  // security 2 the proof of possession is the SRP6a password and username
+  // defaults to "wifiprov". deadlines are the session's own, see
+  // doSetOperationDeadlines. When ssid or bleDeviceId names a device that has
+  // been connected before, transport and security default to what it reported
+  // then (see doGetDeviceCache).
+  @ReactMethod
+  public void doCreateESPDeviceSessionWithOptions(ReadableMap options, Promise promise) {
+    DeviceCapabilityCache.DeviceInfo known = null;
+    if (options != null && options.hasKey("bleDeviceId") && !options.isNull("bleDeviceId")) {
+      known = deviceCache.get(ProvisioningSession.bleDeviceKey(options.getString("bleDeviceId")));
+    } else if (options != null && options.hasKey("ssid") && !options.isNull("ssid")) {
+      known = deviceCache.get(ProvisioningSession.softApDeviceKey(options.getString("ssid")));
+    }
+    ESPConstants.TransportType transport = known != null
+        ? known.transport
+        : ESPConstants.TransportType.TRANSPORT_SOFTAP;
+    if (options != null && options.hasKey("transport")) {
+      transport = "ble".equals(options.getString("transport"))
+          ? ESPConstants.TransportType.TRANSPORT_BLE
+          : ESPConstants.TransportType.TRANSPORT_SOFTAP;
     }
+    try {
+      OperationDeadlines deadlines = options != null && options.hasKey("deadlines") && !options.isNull("deadlines")
+          ? OperationDeadlines.fromReadableMap(options.getMap("deadlines"), defaultDeadlines)
+          : null;
+      SessionSecurity security = known != null && (!options.hasKey("security") || options.isNull("security"))
+          ? SessionSecurity.forVersion(known.securityVersion,
+              options.hasKey("username") && !options.isNull("username") ? options.getString("username") : null)
+          : SessionSecurity.fromReadableMap(options);
+      ProvisioningSession session = createSession(sessions.nextId(), transport, security);
+      if (deadlines != null) {
+        session.setDeadlines(deadlines, true);
+      }
+      promise.resolve(session.id);
+    } catch (Exception e) {
+      ProvisioningLog.e(null, "session", "create_failed", e);
+      promise.reject("Error on Create session method", e);
+    }
+  }
 
-    @Override
-    public void onFailure(Exception e) {
-      Log.d(TAG, "Custom data sending failed", e);
-      promiseCustomDataProvision.reject("Error in response listener", "Custom data sending failed", e);
+  // Disconnects the device of a session and forgets about it. Pending
+  // operations of the session are rejected with "Cancelled".
+  @ReactMethod
+  public void doCloseSession(String sessionId, Promise promise) {
+    ProvisioningSession session = sessions.remove(sessionId);
+    if (session == null) {
+      promise.resolve(false);
+      return;
     }
-  };
+    session.cancel("Cancelled", "Session " + sessionId + " has been closed");
+    promise.resolve(true);
+  }
 
-  // Get this to see the status of the connection
+  // Gives up on whatever the session's device is doing: pending connect,
+  // scan, provision and custom data promises are rejected with "Cancelled"
+  // and the device is disconnected. The session stays open for a new
+  // connection. Resolves with whether an operation was pending.
   @ReactMethod
-  public void doGetStatus(Promise promise) {
-    WritableMap res = Arguments.createMap();
-    res.putBoolean("deviceConnected", deviceConnected);
-    promise.resolve(res);
+  public void doCancelSession(String sessionId, Promise promise) {
+    ProvisioningSession session = getSession(sessionId, promise);
+    if (session == null) {
+      return;
+    }
+    promise.resolve(session.cancel("Cancelled", "Cancelled by the app"));
   }
 
-  // First method to be called before any other method
+  // Sets how long operations may take before they are rejected with
+  // "Timeout" and the device is disconnected.
+  // Options: { connectMs, scanMs, provisionMs, customDataMs }, 0 for none,
+  // which is the default. With a sessionId the deadlines are that session's
+  // own, without they apply to every session that has none of its own, open
+  // or created later. Operations already running keep their deadline.
   @ReactMethod
-  public void doCreateESPDevice(Promise promise) {
+  public void doSetOperationDeadlines(String sessionId, ReadableMap options, Promise promise) {
     try {
-      // if (reactContext == null) {
-      // Log.d(TAG, "React Context is null");
-      // } else {
-      // Log.d(TAG, "React Context is not null");
-      // Log.d(TAG, reactContext.toString());
-      // }
-      provisionManager = ESPProvisionManager.getInstance(reactContext);
-      provisionManager.createESPDevice(ESPConstants.TransportType.TRANSPORT_SOFTAP,
-          ESPConstants.SecurityType.SECURITY_1);
-      // EventBus.getDefault().register(this);
-      Log.d(TAG, "Create method");
-      // return available methods on the module
-      promise.resolve("Provisioning Manager created successfully");
-      if (!EventBus.getDefault().isRegistered(this)) {
-        EventBus.getDefault().register(this);
-        Log.d(TAG, "Event Bus Registered");
+      if (sessionId != null) {
+        ProvisioningSession session = getSession(sessionId, promise);
+        if (session == null) {
+          return;
+        }
+        session.setDeadlines(OperationDeadlines.fromReadableMap(options, session.deadlines()), true);
       } else {
-        Log.d(TAG, "Event Bus Already Registered");
+        OperationDeadlines deadlines = OperationDeadlines.fromReadableMap(options, defaultDeadlines);
+        defaultDeadlines = deadlines;
+        for (ProvisioningSession session : sessions.all()) {
+          if (!session.hasCustomDeadlines()) {
+            session.setDeadlines(deadlines, false);
+          }
+        }
       }
-
+      promise.resolve(true);
     } catch (Exception e) {
-      Log.d(TAG, "Error on Create method", e);
-      promise.reject("Error on Create method", e);
+      promise.reject("Invalid deadlines", e.getMessage(), e);
     }
-
   }
 
   // if the QR code is scanned and we have an SSID and password, we will call this
   // method to first connect to Semi
   @ReactMethod
   public void doConnectWifiDevice(String ssid, String password, Promise promise) {
-    Log.d(TAG, "Connecting to device using SoftAP" + "--" + ssid + "--" + password);
-
-    // try {
-    // if (provisionManager == null) {
-    // Log.d(TAG, "Provision Manager is null");
-    // provisionManager = ESPProvisionManager.getInstance(reactContext);
-    // Log.d(TAG, "Connection successful");
-    // }
-    // } catch (Exception e) {
-    // promise.reject("Error initializing provisionManager",
-    // "An error has occurred in initializing provision manager",
-    // e);
-    // Log.d(TAG, "Connection failed");
-    // Log.d(TAG, e.toString());
-    // }
+    ProvisioningLog.d(DEFAULT_SESSION_ID, "connect",
+        password == null || password.isEmpty() ? "softap_connect_open" : "softap_connect", ssid);
+    doConnectWifiDeviceForSession(DEFAULT_SESSION_ID, ssid, password, promise);
+  }
+
+  @ReactMethod
+  public void doConnectWifiDeviceForSession(String sessionId, String ssid, String password, Promise promise) {
+    ProvisioningSession session = getSession(sessionId, promise);
+    if (session == null) {
+      return;
+    }
+    try {
+      sessions.connectWifiDevice(session, ssid, password, new PromiseCallback<Void>(promise) {
+        @Override
+        protected Object toJs(Void result) {
+          WritableMap res = Arguments.createMap();
+          res.putBoolean("Success", true);
+          return res;
+        }
+      });
+    } catch (Exception e) {
+      promise.reject("Error connecting to device",
+          "An error has occurred in connecting to the device",
+          e);
+      ProvisioningLog.w(sessionId, "connect", "connect_failed", e);
+    }
+  }
+
+  // Scans for ESP devices advertising over BLE. Devices are merged into the
+  // discovery index and emitted as Esp32IdfProvisioningBleDeviceFound events
+  // when they first appear or their signal changes noticeably. The promise
+  // resolves with every known device, strongest first, once the SDK ends the
+  // scan or doStopBleScan is called.
+  // Options: { prefix, maxDevices, staleMs }
+  @ReactMethod
+  public void doStartBleScan(ReadableMap options, final Promise promise) {
+    synchronized (this) {
+      if (bleScanning) {
+        promise.reject("BLE scan error", "A BLE scan is already running", new Exception());
+        return;
+      }
+      bleScanning = true;
+    }
+    String prefix = options != null && options.hasKey("prefix") ? options.getString("prefix") : null;
+    int maxDevices = options != null && options.hasKey("maxDevices")
+        ? options.getInt("maxDevices")
+        : BleDiscoveryIndex.DEFAULT_MAX_DEVICES;
+    long staleMs = options != null && options.hasKey("staleMs")
+        ? (long) options.getDouble("staleMs")
+        : BleDiscoveryIndex.DEFAULT_STALE_MS;
+    bleDevices.configure(maxDevices, staleMs);
+
+    BleScanListener listener = new BleScanListener() {
+      @Override
+      public void scanStartFailed() {
+        endBleScan();
+        promise.reject("BLE scan error", "BLE scan could not be started, is Bluetooth enabled?", new Exception());
+      }
+
+      @Override
+      public void onPeripheralFound(BluetoothDevice device, ScanResult scanResult) {
+        onBleAdvertisement(device, scanResult);
+      }
+
+      @Override
+      public void scanCompleted() {
+        endBleScan();
+        WritableArray res = bleDevicesToJs();
+        WritableMap event = Arguments.createMap();
+        event.putInt("count", res.size());
+        eventEmitter.emit(ProvisioningEventEmitter.EVENT_BLE_SCAN_COMPLETE, event);
+        promise.resolve(res);
+      }
+
+      @Override
+      public void onFailure(Exception e) {
+        endBleScan();
+        ProvisioningLog.w(null, "ble", "scan_failed", e);
+        promise.reject("BLE scan error", "BLE scan has failed", e);
+      }
+    };
+    try {
+      if (prefix != null) {
+        provisionManager().searchBleEspDevices(prefix, listener);
+      } else {
+        provisionManager().searchBleEspDevices(listener);
+      }
+    } catch (Exception e) {
+      endBleScan();
+      promise.reject("BLE scan error", "An error has occurred in starting the BLE scan", e);
+    }
+  }
 
+  @ReactMethod
+  public void doStopBleScan() {
+    try {
+      provisionManager().stopBleScan();
+    } catch (Exception e) {
+      ProvisioningLog.w(null, "ble", "stop_scan_failed", e);
+    }
+  }
+
+  // Devices of the discovery index that are still advertising, strongest first
+  @ReactMethod
+  public void doGetBleDevices(Promise promise) {
+    promise.resolve(bleDevicesToJs());
+  }
+
+  // Connects the session, created with transport "ble", to a device found by
+  // doStartBleScan. deviceId is the id of the discovered device.
+  @ReactMethod
+  public void doConnectBleDeviceForSession(String sessionId, String deviceId, Promise promise) {
+    ProvisioningSession session = getSession(sessionId, promise);
+    if (session == null) {
+      return;
+    }
+    BleDiscoveryIndex.DiscoveredDevice bleDevice = bleDevices.get(deviceId);
+    if (bleDevice == null) {
+      promise.reject("Unknown BLE device",
+          "BLE device " + deviceId + " has not been discovered or stopped advertising",
+          new Exception());
+      return;
+    }
     try {
-      // Create a WiFiAccessPoint object with the provided SSID and password
-      // WiFiAccessPoint wifiAccessPoint = new WiFiAccessPoint(ssid, password);
-      // Connect to the device using WiFi transport
-      // provisionManager = ESPProvisionManager.getInstance(reactContext);
-      provisionManager.getEspDevice().connectWiFiDevice(ssid, password);
-      this.promiseConnection = promise;
-      // Log.d(TAG, "Connection successful to device");
+      sessions.connectBleDevice(session, bleDevice.device, bleDevice.serviceUuid, new PromiseCallback<Void>(promise) {
+        @Override
+        protected Object toJs(Void result) {
+          WritableMap res = Arguments.createMap();
+          res.putBoolean("Success", true);
+          return res;
+        }
+      });
     } catch (Exception e) {
       promise.reject("Error connecting to device",
           "An error has occurred in connecting to the device",
           e);
-      Log.d(TAG, "Connection failed");
-      Log.d(TAG, e.toString());
+    }
+  }
+
+  private synchronized void endBleScan() {
+    bleScanning = false;
+  }
+
+  private void onBleAdvertisement(BluetoothDevice device, ScanResult scanResult) {
+    String name = null;
+    String serviceUuid = null;
+    if (scanResult.getScanRecord() != null) {
+      name = scanResult.getScanRecord().getDeviceName();
+      List<ParcelUuid> uuids = scanResult.getScanRecord().getServiceUuids();
+      if (uuids != null && !uuids.isEmpty()) {
+        serviceUuid = uuids.get(0).toString();
+      }
+    }
+    long now = SystemClock.elapsedRealtime();
+    BleDiscoveryIndex.DiscoveredDevice changed = bleDevices.onAdvertisement(device.getAddress(), device, name,
+        serviceUuid, scanResult.getRssi(), now);
+    if (changed != null) {
+      eventEmitter.emitLatest(ProvisioningEventEmitter.EVENT_BLE_DEVICE_FOUND, changed.id, changed.toWritableMap(now));
+    }
+  }
+
+  private WritableArray bleDevicesToJs() {
+    long now = SystemClock.elapsedRealtime();
+    WritableArray res = Arguments.createArray();
+    for (BleDiscoveryIndex.DiscoveredDevice bleDevice : bleDevices.devices(now)) {
+      res.pushMap(bleDevice.toWritableMap(now));
+    }
+    return res;
+  }
+
+  // Looks for ESP device softAPs with the phone's own Wi-Fi scans until
+  // doStopSoftApDiscovery is called. Devices whose SSID starts with prefix are
+  // emitted as Esp32IdfProvisioningSoftApDeviceFound events when they first
+  // appear or their signal changes noticeably. Scans are rationed to what
+  // Android allows (see SoftApDiscovery), cached system results are read every
+  // intervalMs. Needs the location permission. Calling it again while running
+  // changes the options.
+  // Options: { prefix, intervalMs, staleMs }
+  @ReactMethod
+  public void doStartSoftApDiscovery(ReadableMap options, Promise promise) {
+    String prefix = options != null && options.hasKey("prefix") ? options.getString("prefix") : null;
+    long intervalMs = options != null && options.hasKey("intervalMs")
+        ? (long) options.getDouble("intervalMs")
+        : SoftApDiscovery.DEFAULT_INTERVAL_MS;
+    long staleMs = options != null && options.hasKey("staleMs")
+        ? (long) options.getDouble("staleMs")
+        : SoftApIndex.DEFAULT_STALE_MS;
+    try {
+      softApDiscovery.start(prefix, intervalMs, staleMs);
+      promise.resolve(true);
+    } catch (Exception e) {
+      promise.reject("Discovery error", "An error has occurred in starting the softAP discovery", e);
+    }
+  }
+
+  @ReactMethod
+  public void doStopSoftApDiscovery() {
+    softApDiscovery.stop();
+  }
+
+  // Discovered softAPs, strongest first:
+  // [{ ssid, bssid, rssi, frequency, secured, ageMs, provisioned }]
+  @ReactMethod
+  public void doGetSoftApDevices(Promise promise) {
+    long now = SystemClock.elapsedRealtime();
+    WritableArray res = Arguments.createArray();
+    for (SoftApIndex.SoftAp device : softApDevices.devices(now)) {
+      WritableMap item = device.toWritableMap(now);
+      item.putBoolean("provisioned", softApDevices.isProvisioned(device.ssid));
+      res.pushMap(item);
+    }
+    promise.resolve(res);
+  }
+
+  // Claims the closest softAP that is not provisioned yet, so the next
+  // doConnectWifiDevice goes to it. Resolves with null when none is in range.
+  // The claim runs out after claimMs unless released earlier.
+  // Options: { claimMs }
+  @ReactMethod
+  public void doNextSoftApDevice(ReadableMap options, Promise promise) {
+    long claimMs = options != null && options.hasKey("claimMs")
+        ? (long) options.getDouble("claimMs")
+        : SoftApIndex.DEFAULT_CLAIM_MS;
+    long now = SystemClock.elapsedRealtime();
+    SoftApIndex.SoftAp device = softApDevices.claimNext(now, claimMs);
+    promise.resolve(device != null ? device.toWritableMap(now) : null);
+  }
+
+  // Ends the claim of doNextSoftApDevice. With provisioned the device is not
+  // handed out again, otherwise it may be picked by the next call.
+  @ReactMethod
+  public void doReleaseSoftApDevice(String ssid, boolean provisioned) {
+    if (provisioned) {
+      softApDevices.markProvisioned(ssid);
+    } else {
+      softApDevices.release(ssid);
     }
   }
 
   // Set POP to Semi
   @ReactMethod
   public void doSetProofOfPossession(String POP, Promise promise) {
+    doSetProofOfPossessionForSession(DEFAULT_SESSION_ID, POP, promise);
+  }
+
+  @ReactMethod
+  public void doSetProofOfPossessionForSession(String sessionId, String POP, Promise promise) {
+    ProvisioningSession session = getSession(sessionId, promise);
+    if (session == null) {
+      return;
+    }
     try {
-      // provisionManager = ESPProvisionManager.getInstance(reactContext);
-      provisionManager.getEspDevice().setProofOfPossession(POP);
+      session.device.setProofOfPossession(POP);
       promise.resolve("Proof of possession set successfully");
     } catch (Exception e) {
       promise.reject("Error setting proof of possession", e);
@@ -274,7 +686,37 @@ public class Esp32IdfProvisioningModule extends ReactContextBaseJavaModule {
   // Get method is also available not sure if we need it
   @ReactMethod
   public void doGetProofOfPossession(Promise promise) {
-    promise.resolve(provisionManager.getEspDevice().getProofOfPossession());
+    doGetProofOfPossessionForSession(DEFAULT_SESSION_ID, promise);
+  }
+
+  @ReactMethod
+  public void doGetProofOfPossessionForSession(String sessionId, Promise promise) {
+    ProvisioningSession session = getSession(sessionId, promise);
+    if (session == null) {
+      return;
+    }
+    promise.resolve(session.device.getProofOfPossession());
+  }
+
+  // Runs the security handshake of a connected device right away instead of
+  // with its first scan or provisioning, on a background thread. Call it once
+  // the proof of possession is set. Resolves with { sessionId, durationMs }.
+  @ReactMethod
+  public void doEstablishSessionForSession(String sessionId, final Promise promise) {
+    final ProvisioningSession session = getSession(sessionId, promise);
+    if (session == null) {
+      return;
+    }
+    final long start = SystemClock.elapsedRealtime();
+    session.establish(new PromiseCallback<Void>(promise) {
+      @Override
+      protected Object toJs(Void result) {
+        WritableMap res = Arguments.createMap();
+        res.putString("sessionId", session.id);
+        res.putDouble("durationMs", SystemClock.elapsedRealtime() - start);
+        return res;
+      }
+    });
   }
 
   // Will open the Network Settings panel so that the user can connect to Semi's
@@ -288,7 +730,7 @@ public class Esp32IdfProvisioningModule extends ReactContextBaseJavaModule {
       // Start the activity to open the network settings
       getCurrentActivity().startActivity(intent);
     } catch (Exception e) {
-      Log.d(TAG, "Error opening network settings", e);
+      ProvisioningLog.w(null, "wifi", "open_settings_failed", e);
     }
   }
 
@@ -296,26 +738,238 @@ public class Esp32IdfProvisioningModule extends ReactContextBaseJavaModule {
   // networks visible to Semi
   @ReactMethod
   public void doScanNetworks(Promise promise) {
-    // TODO: We need to reactive this check later
-    // if (!deviceConnected) {
-    // Log.d(TAG, "No Semi connected");
-    // promise.reject("No Semi connected",
-    // "Please connect a Semi first",
-    // new Exception());
-    // return;
-    // }
+    doScanNetworksForSession(DEFAULT_SESSION_ID, promise);
+  }
+
+  @ReactMethod
+  public void doScanNetworksForSession(String sessionId, Promise promise) {
+    // TODO: We need to reactive the deviceConnected check later
+    ProvisioningSession session = getSession(sessionId, promise);
+    if (session == null) {
+      return;
+    }
     try {
-      if (provisionManager == null) {
-        Log.d(TAG, "Provision Manager is null");
-        // provisionManager = ESPProvisionManager.getInstance(reactContext);
-        provisionManager.getEspDevice().scanNetworks(wiFiScanListener);
-        Log.d(TAG, "Wifi scan successful");
-      } else {
-        Log.d(TAG, "Provision Manager is not null");
-        provisionManager.getEspDevice().scanNetworks(wiFiScanListener);
-        Log.d(TAG, "Wifi scan successful");
+      session.scanNetworks(new PromiseCallback<List<WiFiAccessPoint>>(promise) {
+        @Override
+        protected Object toJs(List<WiFiAccessPoint> wifiList) {
+          return WifiAccessPointMarshaller.toWritableArray(wifiList);
+        }
+      });
+      ProvisioningLog.d(sessionId, "scan", "started");
+    } catch (Exception e) {
+      promise.reject("Networks scan init error",
+          "An error has occurred in initialization of networks scan",
+          e);
+    }
+  }
+
+  // Scans and ranks the networks the device sees, see NetworkRanker.
+  // Options: { preferred: string[], topN, minRssi, autoSelect }. Resolves with
+  // { networks: [{ ssid, rssi, security, accessPoints, preferred, score }],
+  //   selected } where selected is the auto-selected SSID or null.
+  @ReactMethod
+  public void doRankNetworksForSession(String sessionId, ReadableMap options, Promise promise) {
+    ProvisioningSession session = getSession(sessionId, promise);
+    if (session == null) {
+      return;
+    }
+    final NetworkRanker.Options rankOptions;
+    try {
+      rankOptions = NetworkRanker.Options.fromReadableMap(options);
+    } catch (Exception e) {
+      promise.reject("Invalid ranking options", e.getMessage(), e);
+      return;
+    }
+    try {
+      session.scanNetworks(new PromiseCallback<List<WiFiAccessPoint>>(promise) {
+        @Override
+        protected Object toJs(List<WiFiAccessPoint> wifiList) {
+          return NetworkRanker.rank(wifiList, rankOptions).toWritableMap();
+        }
+      });
+    } catch (Exception e) {
+      promise.reject("Networks scan init error",
+          "An error has occurred in initialization of networks scan",
+          e);
+    }
+  }
+
+  // Same scan as doScanNetworksForSession, resolved as one array per field
+  // instead of one map per access point: { count, ssid, rssi, security }.
+  // The JS side turns the numeric columns into typed arrays.
+  @ReactMethod
+  public void doScanNetworksColumnsForSession(String sessionId, Promise promise) {
+    ProvisioningSession session = getSession(sessionId, promise);
+    if (session == null) {
+      return;
+    }
+    try {
+      session.scanNetworks(new PromiseCallback<List<WiFiAccessPoint>>(promise) {
+        @Override
+        protected Object toJs(List<WiFiAccessPoint> wifiList) {
+          return WifiAccessPointMarshaller.toColumns(wifiList);
+        }
+      });
+    } catch (Exception e) {
+      promise.reject("Networks scan init error",
+          "An error has occurred in initialization of networks scan",
+          e);
+    }
+  }
+
+  // Same scan as doScanNetworksForSession, packed into one buffer (see
+  // PackedScanEncoder) and resolved as { count, data } with data in base64.
+  // decodePackedNetworks on the JS side reads it back.
+  @ReactMethod
+  public void doScanNetworksPackedForSession(String sessionId, Promise promise) {
+    ProvisioningSession session = getSession(sessionId, promise);
+    if (session == null) {
+      return;
+    }
+    try {
+      session.scanNetworks(new PromiseCallback<List<WiFiAccessPoint>>(promise) {
+        @Override
+        protected Object toJs(List<WiFiAccessPoint> wifiList) {
+          return PackedScanEncoder.toWritableMap(PackedScanEncoder.pack(wifiList));
+        }
+      });
+    } catch (Exception e) {
+      promise.reject("Networks scan init error",
+          "An error has occurred in initialization of networks scan",
+          e);
+    }
+  }
+
+  // Streaming variant of doScanNetworksForSession. Access points are emitted as
+  // Esp32IdfProvisioningScanResult events while the device hands out its scan
+  // pages (deduplicated by SSID, keeping the strongest signal), followed by one
+  // Esp32IdfProvisioningScanComplete event. The promise resolves with the final
+  // list sorted by signal strength. Options: { pageSize, packed }, with packed
+  // the networks of the events and of the promise are { count, data } buffers
+  // as resolved by doScanNetworksPackedForSession.
+  @ReactMethod
+  public void doScanNetworksStreaming(final String sessionId, ReadableMap options, final Promise promise) {
+    ProvisioningSession session = getSession(sessionId, promise);
+    if (session == null) {
+      return;
+    }
+    int pageSize = options != null && options.hasKey("pageSize")
+        ? options.getInt("pageSize")
+        : PagedWiFiScanner.DEFAULT_PAGE_SIZE;
+    final boolean packed = options != null && options.hasKey("packed") && options.getBoolean("packed");
+    try {
+      new PagedWiFiScanner(session, pageSize, new PagedWiFiScanner.Listener() {
+        @Override
+        public void onPage(List<ScannedAccessPoint> changed) {
+          WritableMap event = Arguments.createMap();
+          event.putString("sessionId", sessionId);
+          if (packed) {
+            event.putMap("networks", PackedScanEncoder.toWritableMap(PackedScanEncoder.packScanned(changed)));
+          } else {
+            WritableArray networks = Arguments.createArray();
+            for (ScannedAccessPoint accessPoint : changed) {
+              networks.pushMap(accessPoint.toWritableMap());
+            }
+            event.putArray("networks", networks);
+          }
+          eventEmitter.emit(ProvisioningEventEmitter.EVENT_SCAN_RESULT, event);
+        }
+
+        @Override
+        public void onComplete(List<ScannedAccessPoint> networks) {
+          WritableMap event = Arguments.createMap();
+          event.putString("sessionId", sessionId);
+          event.putInt("count", networks.size());
+          eventEmitter.emit(ProvisioningEventEmitter.EVENT_SCAN_COMPLETE, event);
+
+          final Object res;
+          if (packed) {
+            res = PackedScanEncoder.toWritableMap(PackedScanEncoder.packScanned(networks));
+          } else {
+            WritableArray array = Arguments.createArray();
+            for (ScannedAccessPoint accessPoint : networks) {
+              array.pushMap(accessPoint.toWritableMap());
+            }
+            res = array;
+          }
+          // Batched events may still be queued, the pages reach JS first
+          eventEmitter.afterSent(new Runnable() {
+            @Override
+            public void run() {
+              promise.resolve(res);
+            }
+          });
+        }
+
+        @Override
+        public void onFailure(final String code, final String message, final Exception e) {
+          ProvisioningLog.w(sessionId, "scan", "streaming_scan_failed", e);
+          eventEmitter.afterSent(new Runnable() {
+            @Override
+            public void run() {
+              promise.reject(code, message, e);
+            }
+          });
+        }
+      }).start();
+    } catch (Exception e) {
+      promise.reject("Networks scan init error",
+          "An error has occurred in initialization of networks scan",
+          e);
+    }
+  }
+
+  // Sets how long cached scans stay valid and how many sites are remembered.
+  // Options: { ttlMs, maxEntries }
+  @ReactMethod
+  public void doConfigureScanCache(ReadableMap options) {
+    long ttlMs = options.hasKey("ttlMs") ? (long) options.getDouble("ttlMs") : ScanResultCache.DEFAULT_TTL_MS;
+    int maxEntries = options.hasKey("maxEntries") ? options.getInt("maxEntries") : ScanResultCache.DEFAULT_MAX_ENTRIES;
+    scanResultCache.configure(ttlMs, maxEntries);
+  }
+
+  // Forgets the cached scan of one site, or of every site when siteKey is null
+  @ReactMethod
+  public void doClearScanCache(String siteKey) {
+    scanResultCache.clear(siteKey);
+  }
+
+  // Scan that is shared between all devices of a site. Resolves with
+  // { networks, cached, ageMs }. Options:
+  // - forceRefresh: ignore the cache and scan through the device
+  // - refreshInBackground: return the cached list right away and rescan through
+  //   the device, the new list is emitted as Esp32IdfProvisioningScanCacheUpdated
+  // - packed: networks is a { count, data } buffer as resolved by
+  //   doScanNetworksPackedForSession
+  @ReactMethod
+  public void doScanNetworksCached(final String sessionId, final String siteKey, ReadableMap options,
+      final Promise promise) {
+    ProvisioningSession session = getSession(sessionId, promise);
+    if (session == null) {
+      return;
+    }
+    boolean forceRefresh = options != null && options.hasKey("forceRefresh") && options.getBoolean("forceRefresh");
+    boolean refreshInBackground = options != null && options.hasKey("refreshInBackground")
+        && options.getBoolean("refreshInBackground");
+    final boolean packed = options != null && options.hasKey("packed") && options.getBoolean("packed");
+
+    ScanResultCache.CachedScan cached = forceRefresh ? null : scanResultCache.get(siteKey);
+    if (cached != null) {
+      ProvisioningLog.d(sessionId, "scan", "cache_hit", siteKey);
+      promise.resolve(cachedScanResult(cached, true, packed));
+      if (refreshInBackground && scanResultCache.beginRefresh(siteKey)) {
+        refreshScanCache(session, siteKey, packed);
       }
-      this.promiseNetworkScan = promise;
+      return;
+    }
+
+    try {
+      session.scanNetworks(new PromiseCallback<List<WiFiAccessPoint>>(promise) {
+        @Override
+        protected Object toJs(List<WiFiAccessPoint> wifiList) {
+          return cachedScanResult(scanResultCache.put(siteKey, wifiList), false, packed);
+        }
+      });
     } catch (Exception e) {
       promise.reject("Networks scan init error",
           "An error has occurred in initialization of networks scan",
@@ -323,62 +977,519 @@ public class Esp32IdfProvisioningModule extends ReactContextBaseJavaModule {
     }
   }
 
+  private void refreshScanCache(final ProvisioningSession session, final String siteKey, final boolean packed) {
+    SessionCallback<List<WiFiAccessPoint>> callback = new SessionCallback<List<WiFiAccessPoint>>() {
+      @Override
+      public void onSuccess(List<WiFiAccessPoint> wifiList) {
+        scanResultCache.endRefresh(siteKey);
+        WritableMap event = cachedScanResult(scanResultCache.put(siteKey, wifiList), false, packed);
+        event.putString("siteKey", siteKey);
+        event.putString("sessionId", session.id);
+        eventEmitter.emitLatest(ProvisioningEventEmitter.EVENT_SCAN_CACHE_UPDATED, siteKey, event);
+      }
+
+      @Override
+      public void onFailure(String code, String message, Exception e) {
+        scanResultCache.endRefresh(siteKey);
+        ProvisioningLog.w(session.id, "scan", "cache_refresh_failed", siteKey, e);
+      }
+    };
+    try {
+      // Skipped while a scan started from JS is pending, the cache keeps its list
+      if (!session.scanNetworksIfIdle(callback)) {
+        scanResultCache.endRefresh(siteKey);
+        ProvisioningLog.d(session.id, "scan", "cache_refresh_skipped", siteKey);
+      }
+    } catch (Exception e) {
+      callback.onFailure("Networks scan init error", e.toString(), e);
+    }
+  }
+
+  private static WritableMap cachedScanResult(ScanResultCache.CachedScan entry, boolean cached, boolean packed) {
+    WritableMap res = Arguments.createMap();
+    if (packed) {
+      res.putMap("networks", PackedScanEncoder.toWritableMap(PackedScanEncoder.pack(entry.networks)));
+    } else {
+      res.putArray("networks", WifiAccessPointMarshaller.toWritableArray(entry.networks));
+    }
+    res.putBoolean("cached", cached);
+    res.putDouble("ageMs", cached ? entry.ageMs() : 0);
+    return res;
+  }
+
   // Once the wifi network is selected we will call this method for provisioning
   @ReactMethod
   public void doProvisioning(String ssid, String pass, Promise promise) {
+    doProvisioningForSession(DEFAULT_SESSION_ID, ssid, pass, promise);
+  }
+
+  @ReactMethod
+  public void doProvisioningForSession(String sessionId, String ssid, String pass, Promise promise) {
+    ProvisioningSession session = getSession(sessionId, promise);
+    if (session == null) {
+      return;
+    }
     try {
-      provisionManager = ESPProvisionManager.getInstance(reactContext);
-      provisionManager.getEspDevice().provision(ssid, pass, provisionListener);
-      this.promiseNetworkProvision = promise;
+      session.provision(ssid, pass, new PromiseCallback<Void>(promise) {
+        @Override
+        protected Object toJs(Void result) {
+          WritableMap res = Arguments.createMap();
+          res.putBoolean("success", true);
+          return res;
+        }
+      });
     } catch (Exception e) {
       promise.reject("Credentials provision init error",
           "An error has occurred in init of provisioning of credentials", e);
     }
   }
 
-  // Events that we can watch to see if the device is connected or not
-  // These events are fired by the ESP Provisioning SDK
-  @Subscribe(threadMode = ThreadMode.MAIN)
-  public void onEvent(DeviceConnectionEvent event) {
+  // Sends a string to a custom endpoint registered by the firmware and resolves
+  // with { success, response } where response is the device's answer as UTF-8
+  @ReactMethod
+  public void doSendCustomData(String sessionId, String path, String data, Promise promise) {
+    ProvisioningSession session = getSession(sessionId, promise);
+    if (session == null) {
+      return;
+    }
+    try {
+      session.sendCustomData(path, data.getBytes(StandardCharsets.UTF_8), new PromiseCallback<byte[]>(promise) {
+        @Override
+        protected Object toJs(byte[] response) {
+          WritableMap res = Arguments.createMap();
+          res.putBoolean("success", true);
+          res.putString("response", response != null ? new String(response, StandardCharsets.UTF_8) : null);
+          return res;
+        }
+      });
+    } catch (Exception e) {
+      promise.reject("Custom data init error", "An error has occurred in sending custom data", e);
+    }
+  }
+
+  // Sends a large payload to a custom endpoint in chunks (see ChunkedPayloadSender
+  // for the framing the firmware has to reassemble). The payload is read natively
+  // so binary data never crosses the bridge. Source: { uri } for a file path,
+  // file:// or content:// URI, or { text } for a UTF-8 string.
+  // Options: { chunkSize }. Progress is emitted as
+  // Esp32IdfProvisioningCustomDataProgress events and the promise resolves with
+  // { success, chunks, bytesSent, response } once the last chunk is acknowledged.
+  @ReactMethod
+  public void doSendCustomDataChunked(final String sessionId, final String path, ReadableMap source,
+      ReadableMap options, final Promise promise) {
+    ProvisioningSession session = getSession(sessionId, promise);
+    if (session == null) {
+      return;
+    }
+    int chunkSize = options != null && options.hasKey("chunkSize")
+        ? options.getInt("chunkSize")
+        : session.transport == ESPConstants.TransportType.TRANSPORT_BLE
+            ? ChunkedPayloadSender.BLE_CHUNK_SIZE
+            : ChunkedPayloadSender.SOFTAP_CHUNK_SIZE;
+    // Checked before the source is opened, which the sender closes only once it exists
+    try {
+      ChunkedPayloadSender.checkChunkSize(chunkSize);
+    } catch (IllegalArgumentException e) {
+      promise.reject("Invalid chunk size", e.getMessage(), e);
+      return;
+    }
+    try {
+      InputStream input = openCustomDataSource(source);
+      new ChunkedPayloadSender(session, path, input, chunkSize, new ChunkedPayloadSender.Listener() {
+        @Override
+        public void onProgress(int chunk, long sentBytes) {
+          WritableMap event = Arguments.createMap();
+          event.putString("sessionId", sessionId);
+          event.putString("path", path);
+          event.putInt("chunk", chunk);
+          event.putDouble("sentBytes", sentBytes);
+          eventEmitter.emitLatest(ProvisioningEventEmitter.EVENT_CUSTOM_DATA_PROGRESS, sessionId + "/" + path,
+              event);
+        }
 
-    Log.d(TAG, "ON Device Prov Event RECEIVED : " + event.getEventType());
-    switch (event.getEventType()) {
-      case ESPConstants.EVENT_DEVICE_CONNECTED:
-        Log.d(TAG, "Device Connected Event Received");
-        deviceConnected = true;
-        if (promiseConnectionFinished) {
-          break;
+        @Override
+        public void onComplete(int chunks, long sentBytes, byte[] lastResponse) {
+          WritableMap res = Arguments.createMap();
+          res.putBoolean("success", true);
+          res.putInt("chunks", chunks);
+          res.putDouble("bytesSent", sentBytes);
+          res.putString("response",
+              lastResponse != null ? new String(lastResponse, StandardCharsets.UTF_8) : null);
+          promise.resolve(res);
         }
-        // The following code to navigate back to the provisioning screen from the
-        // network settings screen once the device is connected
-        // Activity currentActivity = getCurrentActivity();
-        // if (currentActivity != null) {
-        // currentActivity.finish();
-        // }
-        // break;
 
-        WritableMap res = Arguments.createMap();
-        res.putBoolean("Success", true);
-        promiseConnectionFinished = true;
-        promiseConnection.resolve(res);
-        break;
-
-      case ESPConstants.EVENT_DEVICE_DISCONNECTED:
-        Log.d(TAG, "Device disconnected");
-        deviceConnected = false;
-        break;
-
-      case ESPConstants.EVENT_DEVICE_CONNECTION_FAILED:
-        Log.d(TAG, "Device connection failed");
-        if (promiseConnectionFinished) {
-          break;
+        @Override
+        public void onFailure(String code, String message, Exception e) {
+          promise.reject(code, message, e);
+        }
+      }).start();
+    } catch (Exception e) {
+      promise.reject("Custom data init error", "An error has occurred in sending custom data", e);
+    }
+  }
+
+  private InputStream openCustomDataSource(ReadableMap source) throws IOException {
+    if (source.hasKey("uri")) {
+      String uri = source.getString("uri");
+      if (uri.startsWith("/")) {
+        return new FileInputStream(uri);
+      }
+      InputStream input = reactContext.getContentResolver().openInputStream(Uri.parse(uri));
+      if (input == null) {
+        throw new FileNotFoundException("Cannot open " + uri);
+      }
+      return input;
+    }
+    if (source.hasKey("text")) {
+      return new ByteArrayInputStream(source.getString("text").getBytes(StandardCharsets.UTF_8));
+    }
+    throw new IllegalArgumentException("Custom data source needs a uri or a text");
+  }
+
+  // Provisions a list of devices natively, one job per device:
+  // { ssid, password, pop, wifiSsid, wifiPassword } for softAP devices or
+  // { bleDeviceId, pop, wifiSsid, wifiPassword } for devices found by doStartBleScan.
+  // Every job may carry a jobId naming it in the journal, and security and
+  // username as in doCreateESPDeviceSessionWithOptions.
+  // Jobs may leave wifiSsid out when options.networks lists the site networks
+  // as [{ ssid, password }], most preferred first: each of them then provisions
+  // the best listed network its device can see (see NetworkRanker), stronger
+  // than options.minRssi.
+  // Options: { parallelism, stageTimeoutMs, resume, networks, minRssi }. Progress of every job is
+  // emitted as Esp32IdfProvisioningBatchProgress events and recorded in the
+  // journal, the promise resolves with a summary once all jobs have finished.
+  // With resume, jobs the journal shows as provisioned by an earlier run, even
+  // one before an app restart, are skipped.
+  @ReactMethod
+  public void doBatchProvision(ReadableArray jobs, ReadableMap options, Promise promise) {
+    List<ProvisioningJob> batch = new ArrayList<>();
+    BatchProvisioner.SiteNetworks siteNetworks;
+    try {
+      siteNetworks = BatchProvisioner.SiteNetworks.fromReadableMap(options);
+      for (int i = 0; i < jobs.size(); i++) {
+        batch.add(ProvisioningJob.fromReadableMap(i, jobs.getMap(i), siteNetworks != null));
+      }
+    } catch (Exception e) {
+      promise.reject("Invalid batch", e.getMessage(), e);
+      return;
+    }
+    int parallelism = options != null && options.hasKey("parallelism") ? options.getInt("parallelism") : 1;
+    long stageTimeoutMs = options != null && options.hasKey("stageTimeoutMs")
+        ? (long) options.getDouble("stageTimeoutMs")
+        : DEFAULT_STAGE_TIMEOUT_MS;
+    boolean resume = options != null && options.hasKey("resume") && options.getBoolean("resume");
+    String batchId = batchProvisioner.run(batch, parallelism, stageTimeoutMs, resume, siteNetworks,
+        new PromiseCallback<WritableMap>(promise));
+    ProvisioningLog.d(batchId, "batch", "started", batch.size());
+  }
+
+  // What devices reported on their last connection:
+  // { devices: [{ device, transport, security, version, capabilities, updatedAt }],
+  //   entries, hits, misses, invalidations } where device is "softap:<SSID>"
+  // or "ble:<MAC>" and invalidations counts entries a connection contradicted
+  @ReactMethod
+  public void doGetDeviceCache(Promise promise) {
+    WritableArray devices = Arguments.createArray();
+    for (DeviceCapabilityCache.DeviceInfo info : deviceCache.all()) {
+      devices.pushMap(info.toWritableMap());
+    }
+    WritableMap res = deviceCache.metricsToWritableMap();
+    res.putArray("devices", devices);
+    promise.resolve(res);
+  }
+
+  // Forgets one device ("softap:<SSID>" or "ble:<MAC>"), or all with null
+  @ReactMethod
+  public void doClearDeviceCache(String device) {
+    deviceCache.invalidate(device);
+  }
+
+  // Last recorded stage of every journaled job:
+  // [{ jobKey, stage, status, updatedAt }], least recently updated first
+  @ReactMethod
+  public void doGetJournal(final Promise promise) {
+    // Reading the journal the first time loads it from disk
+    scheduler.execute(new Runnable() {
+      @Override
+      public void run() {
+        WritableArray res = Arguments.createArray();
+        for (ProvisioningJournal.JobState state : journal.jobs()) {
+          WritableMap job = Arguments.createMap();
+          job.putString("jobKey", state.key);
+          job.putString("stage", state.stage);
+          job.putString("status", state.status);
+          job.putDouble("updatedAt", state.updatedAt);
+          res.pushMap(job);
         }
-        promiseConnectionFinished = true;
-        promiseConnection.reject("Device connection failed",
-            "The device connection has failed",
-            new Exception());
-        break;
+        promise.resolve(res);
+      }
+    });
+  }
+
+  @ReactMethod
+  public void doClearJournal() {
+    scheduler.execute(new Runnable() {
+      @Override
+      public void run() {
+        journal.clear();
+      }
+    });
+  }
+
+  // Retries failed stages natively instead of rejecting right away.
+  // Options: { connect: StagePolicy, provision: StagePolicy } where a StagePolicy is
+  // { maxAttempts, baseDelayMs, maxDelayMs, jitter }. The delay doubles with every
+  // attempt up to maxDelayMs and jitter (0..1) randomizes that fraction of it.
+  // Every scheduled attempt is emitted as an Esp32IdfProvisioningRetry event.
+  @ReactMethod
+  public void doSetRetryPolicy(ReadableMap options) {
+    for (String stage : new String[] { RetryEngine.STAGE_CONNECT, RetryEngine.STAGE_PROVISION }) {
+      if (options.hasKey(stage)) {
+        retryEngine.setPolicy(stage, stagePolicyFromReadableMap(options.getMap(stage)));
+      }
     }
   }
 
+  // Polls the device's Wi-Fi status natively once credentials are applied,
+  // instead of leaving it to the SDK. Options: { enabled, initialDelayMs,
+  // maxDelayMs, backoff, deadlineMs }: the first poll comes after
+  // initialDelayMs, every next delay is backoff times longer up to maxDelayMs,
+  // and provisioning fails once deadlineMs have passed without a final state.
+  @ReactMethod
+  public void doSetStatusPollPolicy(ReadableMap options) {
+    if (options.hasKey("enabled") && !options.getBoolean("enabled")) {
+      configProvisioner.setPolicy(null);
+      return;
+    }
+    WiFiConfigProvisioner.PollPolicy defaults = WiFiConfigProvisioner.DEFAULT_POLICY;
+    configProvisioner.setPolicy(new WiFiConfigProvisioner.PollPolicy(
+        options.hasKey("initialDelayMs") ? (long) options.getDouble("initialDelayMs") : defaults.initialDelayMs,
+        options.hasKey("maxDelayMs") ? (long) options.getDouble("maxDelayMs") : defaults.maxDelayMs,
+        options.hasKey("backoff") ? options.getDouble("backoff") : defaults.backoff,
+        options.hasKey("deadlineMs") ? (long) options.getDouble("deadlineMs") : defaults.deadlineMs));
+  }
+
+  private static RetryEngine.StagePolicy stagePolicyFromReadableMap(ReadableMap policy) {
+    return new RetryEngine.StagePolicy(
+        policy.hasKey("maxAttempts") ? policy.getInt("maxAttempts") : 1,
+        policy.hasKey("baseDelayMs") ? (long) policy.getDouble("baseDelayMs") : 500,
+        policy.hasKey("maxDelayMs") ? (long) policy.getDouble("maxDelayMs") : 8000,
+        policy.hasKey("jitter") ? policy.getDouble("jitter") : 0.5);
+  }
+
+  // Keeps the encrypted session of connected devices alive between operations,
+  // off until this is called. Options: { enabled, intervalMs, idleTimeoutMs },
+  // enabled defaults to true. An idle session is pinged
+  // every intervalMs; after idleTimeoutMs without operations pings stop and the
+  // next operation runs the handshake again.
+  @ReactMethod
+  public void doConfigureKeepAlive(ReadableMap options) {
+    keepAlive.configure(
+        !options.hasKey("enabled") || options.getBoolean("enabled"),
+        options.hasKey("intervalMs") ? (long) options.getDouble("intervalMs") : SessionKeepAlive.DEFAULT_INTERVAL_MS,
+        options.hasKey("idleTimeoutMs")
+            ? (long) options.getDouble("idleTimeoutMs")
+            : SessionKeepAlive.DEFAULT_IDLE_TIMEOUT_MS);
+  }
+
+  // How often operations found their session warm:
+  // { enabled, intervalMs, idleTimeoutMs, warmHits, coldStarts, hitRate, pings,
+  //   pingFailures, rewarms, rewarmFailures, idleExpirations }
+  @ReactMethod
+  public void doGetSessionReuseMetrics(Promise promise) {
+    promise.resolve(keepAlive.toWritableMap());
+  }
+
+  @ReactMethod
+  public void doResetSessionReuseMetrics() {
+    keepAlive.reset();
+  }
+
+  // Percentiles of every provisioning phase measured so far, in milliseconds:
+  // { [phase]: { count, failures, meanMs, p50Ms, p95Ms, p99Ms, maxMs } }
+  @ReactMethod
+  public void doGetTimingMetrics(Promise promise) {
+    promise.resolve(timings.toWritableMap());
+  }
+
+  @ReactMethod
+  public void doResetTimingMetrics() {
+    timings.reset();
+  }
+
+  // Does the one-time work of the first session ahead of time, meant to be
+  // called while the user is still on an earlier screen: the crypto providers
+  // of the handshakes, the EventBus subscription and the journal and device
+  // cache files are loaded on the handshake pool, the ESPProvisionManager on
+  // the native modules thread, whose Looper it needs. Resolves with how long
+  // each took, { cryptoMs, eventBusMs, storageMs, managerMs, totalMs }, close
+  // to 0 once warm. Calling it is optional, everything is otherwise loaded on
+  // first use.
+  @ReactMethod
+  public void doPrewarm(final Promise promise) {
+    final long start = SystemClock.elapsedRealtimeNanos();
+    handshakes.execute(new Runnable() {
+      @Override
+      public void run() {
+        final WritableMap res = Arguments.createMap();
+        try {
+          long phaseStart = SystemClock.elapsedRealtimeNanos();
+          SessionSecurity.warmUpCrypto();
+          long now = SystemClock.elapsedRealtimeNanos();
+          res.putDouble("cryptoMs", ProvisioningTimings.toMs(now - phaseStart));
+
+          phaseStart = now;
+          registerEventBus();
+          now = SystemClock.elapsedRealtimeNanos();
+          res.putDouble("eventBusMs", ProvisioningTimings.toMs(now - phaseStart));
+
+          phaseStart = now;
+          journal.jobs();
+          deviceCache.all();
+          now = SystemClock.elapsedRealtimeNanos();
+          res.putDouble("storageMs", ProvisioningTimings.toMs(now - phaseStart));
+        } catch (Exception e) {
+          ProvisioningLog.e(null, "prewarm", "failed", e);
+          promise.reject("Prewarm failed", e.getMessage(), e);
+          return;
+        }
+        reactContext.runOnNativeModulesQueueThread(new Runnable() {
+          @Override
+          public void run() {
+            try {
+              long phaseStart = SystemClock.elapsedRealtimeNanos();
+              provisionManager();
+              long now = SystemClock.elapsedRealtimeNanos();
+              double totalMs = ProvisioningTimings.toMs(now - start);
+              res.putDouble("managerMs", ProvisioningTimings.toMs(now - phaseStart));
+              res.putDouble("totalMs", totalMs);
+              ProvisioningLog.i(null, "prewarm", "done_ms", Math.round(totalMs));
+            } catch (Exception e) {
+              ProvisioningLog.e(null, "prewarm", "failed", e);
+              promise.reject("Prewarm failed", e.getMessage(), e);
+              return;
+            }
+            promise.resolve(res);
+          }
+        });
+      }
+    });
+  }
+
+  // Sends events in batches instead of one bridge call each, see
+  // ProvisioningEventEmitter. Options: { batched, intervalMs, maxQueue,
+  // maxBatch }. Batches arrive as Esp32IdfProvisioningEvents events and have
+  // to be acknowledged with doAckEvents, which the JS helper
+  // addProvisioningListener takes care of.
+  @ReactMethod
+  public void doConfigureEvents(ReadableMap options) {
+    eventEmitter.configure(
+        options.hasKey("batched") && options.getBoolean("batched"),
+        options.hasKey("intervalMs")
+            ? (long) options.getDouble("intervalMs")
+            : ProvisioningEventEmitter.DEFAULT_INTERVAL_MS,
+        options.hasKey("maxQueue") ? options.getInt("maxQueue") : ProvisioningEventEmitter.DEFAULT_MAX_QUEUE,
+        options.hasKey("maxBatch") ? options.getInt("maxBatch") : ProvisioningEventEmitter.DEFAULT_MAX_BATCH);
+  }
+
+  // JS has handled every event batch up to batch
+  @ReactMethod
+  public void doAckEvents(double batch) {
+    eventEmitter.acknowledge((long) batch);
+  }
+
+  // Emits an Esp32IdfProvisioningTiming event every time a phase completes
+  @ReactMethod
+  public void doSetTimingEventsEnabled(boolean enabled) {
+    if (!enabled) {
+      timings.setListener(null);
+      return;
+    }
+    timings.setListener(new ProvisioningTimings.Listener() {
+      @Override
+      public void onPhaseCompleted(String sessionId, String phase, long durationNanos, boolean success) {
+        WritableMap event = Arguments.createMap();
+        event.putString("sessionId", sessionId);
+        event.putString("phase", phase);
+        event.putDouble("durationMs", ProvisioningTimings.toMs(durationNanos));
+        event.putBoolean("success", success);
+        eventEmitter.emitDroppable(ProvisioningEventEmitter.EVENT_TIMING, event);
+      }
+    });
+  }
+
+  // Recent entries of the module's structured log, for support tickets:
+  // { capacity, recorded, dropped, events: [{ time, level, device, stage, code,
+  //   detail, value, error }] }, oldest first. Secrets are never logged.
+  @ReactMethod
+  public void doGetLogs(Promise promise) {
+    promise.resolve(ProvisioningLog.dump());
+  }
+
+  @ReactMethod
+  public void doClearLogs() {
+    ProvisioningLog.clear();
+  }
+
+  // Options: { level, logcatLevel, capacity } where levels are "debug", "info",
+  // "warn", "error" or "none". Events below level are not kept, events below
+  // logcatLevel are not written to logcat; they default to "debug" and "warn".
+  // A new capacity (1024 events by default) clears the log.
+  @ReactMethod
+  public void doConfigureLogging(ReadableMap options) {
+    ProvisioningLog.configure(
+        options.hasKey("level") ? ProvisioningLog.parseLevel(options.getString("level")) : ProvisioningLog.level(),
+        options.hasKey("logcatLevel")
+            ? ProvisioningLog.parseLevel(options.getString("logcatLevel"))
+            : ProvisioningLog.logcatLevel(),
+        options.hasKey("capacity") ? options.getInt("capacity") : 0);
+  }
+
+  // Required by NativeEventEmitter on the JS side
+  @ReactMethod
+  public void addListener(String eventName) {
+  }
+
+  @ReactMethod
+  public void removeListeners(double count) {
+  }
+
+  @Override
+  public void invalidate() {
+    if (EventBus.getDefault().isRegistered(this)) {
+      EventBus.getDefault().unregister(this);
+    }
+    softApDiscovery.stop();
+    keepAlive.stop();
+    connectionEvents.shutdown();
+    handshakes.shutdownNow();
+    scheduler.shutdownNow();
+    journal.close();
+    journalWriter.shutdown();
+    super.invalidate();
+  }
+
+  // Events that we can watch to see if the device is connected or not
+  // These events are fired by the ESP Provisioning SDK. They are received on the
+  // posting thread and handed to connectionEvents right away, so neither the
+  // SDK's thread nor the UI thread runs the session and promise handling.
+  @Subscribe(threadMode = ThreadMode.POSTING)
+  public void onEvent(DeviceConnectionEvent event) {
+    final short eventType = event.getEventType();
+    // Resolve the target now: it must be the session that was connecting when
+    // the SDK posted the event, not whichever one is connecting later
+    final ProvisioningSession session = sessions.connectionTarget();
+    if (session == null) {
+      ProvisioningLog.log(ProvisioningLog.WARN, null, "connect", "event_without_pending_connect", null, eventType, null);
+      return;
+    }
+    connectionEvents.execute(new Runnable() {
+      @Override
+      public void run() {
+        ProvisioningLog.d(session.id, "connect", "event_received", eventType);
+        session.onConnectionEvent(eventType);
+      }
+    });
+  }
+
 }
@@ -1,28 +1,45 @@
 package com.esp32idfprovisioning;
 
-import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 
-import com.facebook.react.ReactPackage;
+import com.facebook.react.TurboReactPackage;
 import com.facebook.react.bridge.NativeModule;
 import com.facebook.react.bridge.ReactApplicationContext;
-import com.facebook.react.uimanager.ViewManager;
+import com.facebook.react.module.model.ReactModuleInfo;
+import com.facebook.react.module.model.ReactModuleInfoProvider;
 
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.List;
+import java.util.HashMap;
+import java.util.Map;
 
-public class Esp32IdfProvisioningPackage implements ReactPackage {
-  @NonNull
+// Registers the module as a TurboModule on the new architecture and as a
+// bridge module on the old one
+public class Esp32IdfProvisioningPackage extends TurboReactPackage {
+  @Nullable
   @Override
-  public List<NativeModule> createNativeModules(@NonNull ReactApplicationContext reactContext) {
-    List<NativeModule> modules = new ArrayList<>();
-    modules.add(new Esp32IdfProvisioningModule(reactContext));
-    return modules;
+  public NativeModule getModule(String name, ReactApplicationContext reactContext) {
+    if (name.equals(Esp32IdfProvisioningModule.NAME)) {
+      return new Esp32IdfProvisioningModule(reactContext);
+    }
+    return null;
   }
 
-  @NonNull
   @Override
-  public List<ViewManager> createViewManagers(@NonNull ReactApplicationContext reactContext) {
-    return Collections.emptyList();
+  public ReactModuleInfoProvider getReactModuleInfoProvider() {
+    return new ReactModuleInfoProvider() {
+      @Override
+      public Map<String, ReactModuleInfo> getReactModuleInfos() {
+        Map<String, ReactModuleInfo> moduleInfos = new HashMap<>();
+        moduleInfos.put(Esp32IdfProvisioningModule.NAME, new ReactModuleInfo(
+            Esp32IdfProvisioningModule.NAME,
+            Esp32IdfProvisioningModule.NAME,
+            false, // canOverrideExistingModule
+            false, // needsEagerInit
+            false, // hasConstants
+            false, // isCxxModule
+            BuildConfig.IS_NEW_ARCHITECTURE_ENABLED // isTurboModule
+        ));
+        return moduleInfos;
+      }
+    };
   }
 }
@@ -0,0 +1,88 @@
+package com.esp32idfprovisioning;
+
+import android.bluetooth.BluetoothDevice;
+
+import com.espressif.provisioning.ESPConstants;
+import com.espressif.provisioning.ESPDevice;
+import com.espressif.provisioning.listeners.ProvisionListener;
+import com.espressif.provisioning.listeners.ResponseListener;
+import com.espressif.provisioning.listeners.WiFiScanListener;
+
+import java.util.Collections;
+import java.util.List;
+
+// ProvisioningDevice backed by the ESP Provisioning SDK
+class EspDeviceAdapter implements ProvisioningDevice {
+  final ESPDevice espDevice;
+
+  EspDeviceAdapter(ESPDevice espDevice) {
+    this.espDevice = espDevice;
+  }
+
+  @Override
+  public void connectWiFiDevice(String ssid, String password) {
+    espDevice.connectWiFiDevice(ssid, password);
+  }
+
+  @Override
+  public void connectWiFiDevice() {
+    espDevice.connectWiFiDevice();
+  }
+
+  @Override
+  public void connectBLEDevice(BluetoothDevice bleDevice, String primaryServiceUuid) {
+    espDevice.connectBLEDevice(bleDevice, primaryServiceUuid);
+  }
+
+  @Override
+  public void disconnectDevice() {
+    espDevice.disconnectDevice();
+  }
+
+  @Override
+  public void setProofOfPossession(String pop) {
+    espDevice.setProofOfPossession(pop);
+  }
+
+  @Override
+  public String getProofOfPossession() {
+    return espDevice.getProofOfPossession();
+  }
+
+  @Override
+  public void initSession(ResponseListener listener) {
+    espDevice.initSession(listener);
+  }
+
+  @Override
+  public void scanNetworks(WiFiScanListener listener) {
+    espDevice.scanNetworks(listener);
+  }
+
+  @Override
+  public void provision(String ssid, String passphrase, ProvisionListener listener) {
+    espDevice.provision(ssid, passphrase, listener);
+  }
+
+  @Override
+  public void sendDataToCustomEndPoint(String path, byte[] data, ResponseListener listener) {
+    espDevice.sendDataToCustomEndPoint(path, data, listener);
+  }
+
+  @Override
+  public String getVersionInfo() {
+    return espDevice.getVersionInfo();
+  }
+
+  @Override
+  public List<String> getDeviceCapabilities() {
+    List<String> capabilities = espDevice.getDeviceCapabilities();
+    return capabilities != null ? capabilities : Collections.<String>emptyList();
+  }
+
+  @Override
+  public int getSecurityVersion() {
+    ESPConstants.SecurityType type = espDevice.getSecurityType();
+    return type != null ? type.ordinal() : SessionSecurity.DEFAULT.version();
+  }
+}
@@ -0,0 +1,226 @@
+package com.esp32idfprovisioning;
+
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.ReadableArray;
+import com.facebook.react.bridge.ReadableMap;
+import com.facebook.react.bridge.WritableArray;
+import com.facebook.react.bridge.WritableMap;
+
+import com.espressif.provisioning.WiFiAccessPoint;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Ranks the networks a device sees, so a shortlist (or a single network) can
+// be offered instead of every access point of the site.
+//
+// Access points are merged by SSID, keeping the strongest signal and counting
+// how many there are. Each network is then scored:
+// - signal: RSSI from MIN_USABLE_RSSI to STRONG_RSSI maps to 0..SIGNAL_POINTS
+// - security: WPA2/WPA3 over WPA over WEP over open
+// - coverage: a bonus for networks served by several access points
+// - preference: networks of the operator's preferred list rank above every
+//   other one, in the order of the list
+// Networks weaker than minRssi and enterprise networks, which cannot be
+// provisioned with a passphrase, are left out.
+class NetworkRanker {
+  static final int DEFAULT_TOP_N = 5;
+  static final int DEFAULT_MIN_RSSI = -85;
+
+  private static final int MIN_USABLE_RSSI = -90;
+  private static final int STRONG_RSSI = -50;
+  private static final double SIGNAL_POINTS = 60;
+  private static final double COVERAGE_POINTS_PER_AP = 2;
+  private static final double MAX_COVERAGE_POINTS = 6;
+  private static final double PREFERRED_POINTS = 1000;
+
+  // wifi_auth_mode_t of the firmware, as in WiFiAccessPoint.getSecurity()
+  static final int SECURITY_OPEN = 0;
+  static final int SECURITY_WEP = 1;
+  static final int SECURITY_WPA_PSK = 2;
+  static final int SECURITY_WPA2_PSK = 3;
+  static final int SECURITY_WPA_WPA2_PSK = 4;
+  static final int SECURITY_WPA2_ENTERPRISE = 5;
+  static final int SECURITY_WPA3_PSK = 6;
+  static final int SECURITY_WPA2_WPA3_PSK = 7;
+
+  static class Options {
+    // Preferred SSIDs, most preferred first
+    final List<String> preferred;
+    final int topN;
+    final int minRssi;
+    // Pick a network without asking: the best preferred one when there is a
+    // preferred list, the best one otherwise
+    final boolean autoSelect;
+
+    Options(List<String> preferred, int topN, int minRssi, boolean autoSelect) {
+      this.preferred = preferred;
+      this.topN = Math.max(1, topN);
+      this.minRssi = minRssi;
+      this.autoSelect = autoSelect;
+    }
+
+    // { preferred: string[], topN, minRssi, autoSelect }
+    static Options fromReadableMap(ReadableMap options) {
+      List<String> preferred = new ArrayList<>();
+      if (options != null && options.hasKey("preferred") && !options.isNull("preferred")) {
+        ReadableArray ssids = options.getArray("preferred");
+        for (int i = 0; i < ssids.size(); i++) {
+          preferred.add(ssids.getString(i));
+        }
+      }
+      return new Options(preferred,
+          options != null && options.hasKey("topN") ? options.getInt("topN") : DEFAULT_TOP_N,
+          options != null && options.hasKey("minRssi") ? options.getInt("minRssi") : DEFAULT_MIN_RSSI,
+          options != null && options.hasKey("autoSelect") && options.getBoolean("autoSelect"));
+    }
+  }
+
+  static class Candidate {
+    final String ssid;
+    final int rssi;
+    final int security;
+    final int accessPoints;
+    // Position in the preferred list, -1 when not preferred
+    final int preferenceRank;
+    final double score;
+
+    Candidate(String ssid, int rssi, int security, int accessPoints, int preferenceRank, double score) {
+      this.ssid = ssid;
+      this.rssi = rssi;
+      this.security = security;
+      this.accessPoints = accessPoints;
+      this.preferenceRank = preferenceRank;
+      this.score = score;
+    }
+
+    boolean isPreferred() {
+      return preferenceRank >= 0;
+    }
+
+    WritableMap toWritableMap() {
+      WritableMap res = Arguments.createMap();
+      res.putString("ssid", ssid);
+      res.putInt("rssi", rssi);
+      res.putInt("security", security);
+      res.putInt("accessPoints", accessPoints);
+      res.putBoolean("preferred", isPreferred());
+      res.putDouble("score", score);
+      return res;
+    }
+  }
+
+  static class Result {
+    final List<Candidate> shortlist;
+    // null without autoSelect or when no network qualifies
+    final Candidate selected;
+
+    Result(List<Candidate> shortlist, Candidate selected) {
+      this.shortlist = shortlist;
+      this.selected = selected;
+    }
+
+    // { networks: Candidate[], selected: string | null }
+    WritableMap toWritableMap() {
+      WritableArray networks = Arguments.createArray();
+      for (Candidate candidate : shortlist) {
+        networks.pushMap(candidate.toWritableMap());
+      }
+      WritableMap res = Arguments.createMap();
+      res.putArray("networks", networks);
+      if (selected != null) {
+        res.putString("selected", selected.ssid);
+      } else {
+        res.putNull("selected");
+      }
+      return res;
+    }
+  }
+
+  private NetworkRanker() {
+  }
+
+  static Result rank(List<WiFiAccessPoint> accessPoints, Options options) {
+    Map<String, Integer> preferenceRanks = new HashMap<>();
+    for (int i = 0; i < options.preferred.size(); i++) {
+      if (!preferenceRanks.containsKey(options.preferred.get(i))) {
+        preferenceRanks.put(options.preferred.get(i), i);
+      }
+    }
+
+    // Strongest access point and access point count per SSID
+    Map<String, WiFiAccessPoint> strongest = new LinkedHashMap<>();
+    Map<String, Integer> counts = new HashMap<>();
+    for (WiFiAccessPoint accessPoint : accessPoints) {
+      String ssid = accessPoint.getWifiName();
+      if (ssid == null || ssid.isEmpty() || accessPoint.getSecurity() == SECURITY_WPA2_ENTERPRISE) {
+        continue;
+      }
+      WiFiAccessPoint known = strongest.get(ssid);
+      if (known == null || known.getRssi() < accessPoint.getRssi()) {
+        strongest.put(ssid, accessPoint);
+      }
+      Integer count = counts.get(ssid);
+      counts.put(ssid, count == null ? 1 : count + 1);
+    }
+
+    List<Candidate> candidates = new ArrayList<>();
+    for (WiFiAccessPoint accessPoint : strongest.values()) {
+      if (accessPoint.getRssi() < options.minRssi) {
+        continue;
+      }
+      String ssid = accessPoint.getWifiName();
+      Integer preferenceRank = preferenceRanks.get(ssid);
+      int rank = preferenceRank != null ? preferenceRank : -1;
+      int count = counts.get(ssid);
+      candidates.add(new Candidate(ssid, accessPoint.getRssi(), accessPoint.getSecurity(), count, rank,
+          score(accessPoint.getRssi(), accessPoint.getSecurity(), count, rank, options.preferred.size())));
+    }
+    Collections.sort(candidates, new Comparator<Candidate>() {
+      @Override
+      public int compare(Candidate a, Candidate b) {
+        return Double.compare(b.score, a.score);
+      }
+    });
+
+    List<Candidate> shortlist = new ArrayList<>(candidates.subList(0, Math.min(options.topN, candidates.size())));
+    Candidate selected = null;
+    if (options.autoSelect && !candidates.isEmpty()) {
+      Candidate best = candidates.get(0);
+      if (options.preferred.isEmpty() || best.isPreferred()) {
+        selected = best;
+      }
+    }
+    return new Result(shortlist, selected);
+  }
+
+  static double score(int rssi, int security, int accessPoints, int preferenceRank, int preferredCount) {
+    double signal = (double) (Math.max(MIN_USABLE_RSSI, Math.min(STRONG_RSSI, rssi)) - MIN_USABLE_RSSI)
+        / (STRONG_RSSI - MIN_USABLE_RSSI) * SIGNAL_POINTS;
+    double coverage = Math.min(MAX_COVERAGE_POINTS, (accessPoints - 1) * COVERAGE_POINTS_PER_AP);
+    double preference = preferenceRank >= 0 ? PREFERRED_POINTS * (preferredCount - preferenceRank) : 0;
+    return signal + securityPoints(security) + coverage + preference;
+  }
+
+  private static double securityPoints(int security) {
+    switch (security) {
+      case SECURITY_WPA3_PSK:
+      case SECURITY_WPA2_WPA3_PSK:
+      case SECURITY_WPA2_PSK:
+        return 20;
+      case SECURITY_WPA_WPA2_PSK:
+        return 15;
+      case SECURITY_WPA_PSK:
+        return 10;
+      case SECURITY_WEP:
+        return 5;
+      default:
+        return 0;
+    }
+  }
+}
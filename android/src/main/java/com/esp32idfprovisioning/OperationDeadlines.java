@@ -0,0 +1,46 @@
+package com.esp32idfprovisioning;
+
+import com.facebook.react.bridge.ReadableMap;
+
+// How long each session operation may take before its callback is failed
+// with "Timeout" and the device is disconnected, read from
+// { connectMs, scanMs, provisionMs, customDataMs }. 0 means no deadline,
+// which is the default: the module never timed operations out before.
+class OperationDeadlines {
+  static final OperationDeadlines NONE = new OperationDeadlines(0, 0, 0, 0);
+
+  final long connectMs;
+  final long scanMs;
+  final long provisionMs;
+  final long customDataMs;
+
+  OperationDeadlines(long connectMs, long scanMs, long provisionMs, long customDataMs) {
+    this.connectMs = connectMs;
+    this.scanMs = scanMs;
+    this.provisionMs = provisionMs;
+    this.customDataMs = customDataMs;
+  }
+
+  // Deadlines missing from options keep their value in base
+  static OperationDeadlines fromReadableMap(ReadableMap options, OperationDeadlines base) {
+    if (options == null) {
+      return base;
+    }
+    return new OperationDeadlines(
+        optMs(options, "connectMs", base.connectMs),
+        optMs(options, "scanMs", base.scanMs),
+        optMs(options, "provisionMs", base.provisionMs),
+        optMs(options, "customDataMs", base.customDataMs));
+  }
+
+  private static long optMs(ReadableMap options, String key, long fallback) {
+    if (!options.hasKey(key) || options.isNull(key)) {
+      return fallback;
+    }
+    long value = (long) options.getDouble(key);
+    if (value < 0) {
+      throw new IllegalArgumentException(key + " must not be negative");
+    }
+    return value;
+  }
+}
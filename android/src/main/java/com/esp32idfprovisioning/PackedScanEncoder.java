@@ -0,0 +1,105 @@
+package com.esp32idfprovisioning;
+
+import android.util.Base64;
+
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.WritableMap;
+
+import com.espressif.provisioning.WiFiAccessPoint;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+// Packs scan results into one buffer that crosses the bridge as a single base64
+// string, instead of a map of boxed values per access point. Layout:
+//   byte  0      format version
+//   bytes 1-2    number of records, big endian
+//   then per record:
+//     byte       RSSI in dBm, signed
+//     byte       security (WifiConstants.WifiAuthMode)
+//     byte       channel, 0 when unknown
+//     byte       SSID length n
+//     n bytes    SSID, UTF-8
+// decodePackedNetworks in src/packedNetworks.ts reads it back.
+final class PackedScanEncoder {
+  static final int VERSION = 1;
+  static final int HEADER_SIZE = 3;
+  static final int RECORD_HEADER_SIZE = 4;
+  static final int MAX_SSID_BYTES = 255;
+
+  private PackedScanEncoder() {
+  }
+
+  static byte[] pack(List<WiFiAccessPoint> wifiList) {
+    Packer packer = new Packer(wifiList.size());
+    for (WiFiAccessPoint wiFiAccessPoint : wifiList) {
+      packer.add(wiFiAccessPoint.getWifiName(), wiFiAccessPoint.getRssi(), wiFiAccessPoint.getSecurity(), 0);
+    }
+    return packer.toBytes();
+  }
+
+  static byte[] packScanned(List<ScannedAccessPoint> networks) {
+    Packer packer = new Packer(networks.size());
+    for (ScannedAccessPoint accessPoint : networks) {
+      packer.add(accessPoint.ssid, accessPoint.rssi, accessPoint.security, accessPoint.channel);
+    }
+    return packer.toBytes();
+  }
+
+  // { count, data } as resolved to JS
+  static WritableMap toWritableMap(byte[] packed) {
+    WritableMap res = Arguments.createMap();
+    res.putInt("count", ((packed[1] & 0xff) << 8) | (packed[2] & 0xff));
+    res.putString("data", Base64.encodeToString(packed, Base64.NO_WRAP));
+    return res;
+  }
+
+  // Encodes the SSIDs first so the buffer is allocated once at its final size
+  private static final class Packer {
+    private final byte[][] ssids;
+    private final int[] values;
+    private int count;
+    private int size = HEADER_SIZE;
+
+    Packer(int capacity) {
+      if (capacity > 0xffff) {
+        throw new IllegalArgumentException("Too many access points to pack: " + capacity);
+      }
+      ssids = new byte[capacity][];
+      values = new int[capacity * 3];
+    }
+
+    void add(String ssid, int rssi, int security, int channel) {
+      byte[] bytes = ssid != null ? ssid.getBytes(StandardCharsets.UTF_8) : new byte[0];
+      if (bytes.length > MAX_SSID_BYTES) {
+        byte[] truncated = new byte[MAX_SSID_BYTES];
+        System.arraycopy(bytes, 0, truncated, 0, MAX_SSID_BYTES);
+        bytes = truncated;
+      }
+      ssids[count] = bytes;
+      values[count * 3] = rssi;
+      values[count * 3 + 1] = security;
+      values[count * 3 + 2] = channel;
+      count++;
+      size += RECORD_HEADER_SIZE + bytes.length;
+    }
+
+    byte[] toBytes() {
+      byte[] packed = new byte[size];
+      packed[0] = VERSION;
+      packed[1] = (byte) (count >>> 8);
+      packed[2] = (byte) count;
+      int pos = HEADER_SIZE;
+      for (int i = 0; i < count; i++) {
+        byte[] ssid = ssids[i];
+        packed[pos++] = (byte) Math.max(Byte.MIN_VALUE, Math.min(Byte.MAX_VALUE, values[i * 3]));
+        packed[pos++] = (byte) values[i * 3 + 1];
+        packed[pos++] = (byte) values[i * 3 + 2];
+        packed[pos++] = (byte) ssid.length;
+        System.arraycopy(ssid, 0, packed, pos, ssid.length);
+        pos += ssid.length;
+      }
+      return packed;
+    }
+  }
+}
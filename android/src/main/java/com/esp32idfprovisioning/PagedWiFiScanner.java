@@ -0,0 +1,198 @@
+package com.esp32idfprovisioning;
+
+import com.espressif.provisioning.listeners.ResponseListener;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import espressif.Constants;
+import espressif.WifiScan;
+
+// Runs a Wi-Fi scan through the device's prov-scan endpoint and hands out the
+// result pages as they are fetched, instead of waiting for the whole list like
+// ESPDevice.scanNetworks does. Access points are deduplicated by SSID, keeping
+// the strongest RSSI, and only new or stronger entries are reported per page.
+//
+// The requests go through sendDataToCustomEndPoint, which uses the same
+// encrypted session as the SDK's own scan. The scan is registered with the
+// session, so doCancelSession and the scan deadline end it between pages.
+class PagedWiFiScanner {
+  static final String SCAN_ENDPOINT = "prov-scan";
+  // Same page size the SDK uses, small enough to fit a BLE characteristic write
+  static final int DEFAULT_PAGE_SIZE = 4;
+
+  interface Listener {
+    void onPage(List<ScannedAccessPoint> changed);
+
+    void onComplete(List<ScannedAccessPoint> networks);
+
+    void onFailure(String code, String message, Exception e);
+  }
+
+  private final ProvisioningSession session;
+  private final int pageSize;
+  private final Listener listener;
+  private final Map<String, ScannedAccessPoint> bySsid = new LinkedHashMap<>();
+  private int resultCount;
+  private int nextIndex;
+  private ProvisioningSession.Operation operation;
+
+  PagedWiFiScanner(ProvisioningSession session, int pageSize, Listener listener) {
+    this.session = session;
+    this.pageSize = Math.max(1, pageSize);
+    this.listener = listener;
+  }
+
+  void start() {
+    // Also keeps keep-alive pings out of the scan, the device can take seconds
+    // to answer the blocking start
+    operation = session.startOperation("Network scan", session.deadlines().scanMs,
+        new ProvisioningSession.OperationOwner() {
+          @Override
+          public void onCancelled(String code, String message, Exception reason) {
+            listener.onFailure(code, message, reason);
+          }
+        });
+    session.withSecureSession(new Runnable() {
+      @Override
+      public void run() {
+        startScan();
+      }
+    });
+  }
+
+  // Cheapest request of the endpoint, also used as keep-alive ping
+  static WifiScan.WiFiScanPayload statusRequest() {
+    return WifiScan.WiFiScanPayload.newBuilder()
+        .setMsg(WifiScan.WiFiScanMsgType.TypeCmdScanStatus)
+        .setCmdScanStatus(WifiScan.CmdScanStatus.newBuilder())
+        .build();
+  }
+
+  private void startScan() {
+    WifiScan.WiFiScanPayload payload = WifiScan.WiFiScanPayload.newBuilder()
+        .setMsg(WifiScan.WiFiScanMsgType.TypeCmdScanStart)
+        .setCmdScanStart(WifiScan.CmdScanStart.newBuilder()
+            .setBlocking(true)
+            .setPassive(false)
+            .setGroupChannels(0)
+            .setPeriodMs(120))
+        .build();
+    send(payload, new Step() {
+      @Override
+      public void onResponse(WifiScan.WiFiScanPayload response) {
+        requestStatus();
+      }
+    });
+  }
+
+  private void requestStatus() {
+    send(statusRequest(), new Step() {
+      @Override
+      public void onResponse(WifiScan.WiFiScanPayload response) {
+        resultCount = response.getRespScanStatus().getResultCount();
+        ProvisioningLog.d(session.id, "scan", "device_results", resultCount);
+        requestNextPage();
+      }
+    });
+  }
+
+  private void requestNextPage() {
+    if (nextIndex >= resultCount) {
+      List<ScannedAccessPoint> networks = sortedByRssi(new ArrayList<>(bySsid.values()));
+      if (operation.finish()) {
+        listener.onComplete(networks);
+      }
+      return;
+    }
+    int count = Math.min(pageSize, resultCount - nextIndex);
+    WifiScan.WiFiScanPayload payload = WifiScan.WiFiScanPayload.newBuilder()
+        .setMsg(WifiScan.WiFiScanMsgType.TypeCmdScanResult)
+        .setCmdScanResult(WifiScan.CmdScanResult.newBuilder()
+            .setStartIndex(nextIndex)
+            .setCount(count))
+        .build();
+    nextIndex += count;
+    send(payload, new Step() {
+      @Override
+      public void onResponse(WifiScan.WiFiScanPayload response) {
+        List<ScannedAccessPoint> changed = new ArrayList<>();
+        for (WifiScan.WiFiScanResult entry : response.getRespScanResult().getEntriesList()) {
+          String ssid = new String(entry.getSsid().toByteArray(), StandardCharsets.UTF_8);
+          if (ssid.isEmpty()) {
+            // Hidden networks cannot be picked from a list
+            continue;
+          }
+          ScannedAccessPoint accessPoint = new ScannedAccessPoint(ssid,
+              ScannedAccessPoint.formatBssid(entry.getBssid().toByteArray()),
+              entry.getChannel(), entry.getRssi(), entry.getAuthValue());
+          ScannedAccessPoint known = bySsid.get(ssid);
+          if (known == null || known.rssi < accessPoint.rssi) {
+            bySsid.put(ssid, accessPoint);
+            changed.add(accessPoint);
+          }
+        }
+        if (!changed.isEmpty()) {
+          listener.onPage(changed);
+        }
+        requestNextPage();
+      }
+    });
+  }
+
+  private void send(WifiScan.WiFiScanPayload payload, final Step step) {
+    if (operation.isDone()) {
+      // Cancelled, the device is not asked for anything more
+      return;
+    }
+    session.device.sendDataToCustomEndPoint(SCAN_ENDPOINT, payload.toByteArray(), new ResponseListener() {
+      @Override
+      public void onSuccess(byte[] data) {
+        session.onSecureResponse(true);
+        if (operation.isDone()) {
+          return;
+        }
+        try {
+          WifiScan.WiFiScanPayload response = WifiScan.WiFiScanPayload.parseFrom(data);
+          if (response.getStatus() != Constants.Status.Success) {
+            throw new IllegalStateException("Device answered " + response.getMsg() + " with " + response.getStatus());
+          }
+          step.onResponse(response);
+        } catch (Exception e) {
+          fail(e);
+        }
+      }
+
+      @Override
+      public void onFailure(Exception e) {
+        session.onSecureResponse(false);
+        fail(e);
+      }
+    });
+  }
+
+  private void fail(Exception e) {
+    if (operation.finish()) {
+      listener.onFailure("Network Scan Error", "WiFi networks scan has failed", e);
+    }
+  }
+
+  static List<ScannedAccessPoint> sortedByRssi(List<ScannedAccessPoint> networks) {
+    Collections.sort(networks, new Comparator<ScannedAccessPoint>() {
+      @Override
+      public int compare(ScannedAccessPoint a, ScannedAccessPoint b) {
+        return b.rssi - a.rssi;
+      }
+    });
+    return networks;
+  }
+
+  private interface Step {
+    void onResponse(WifiScan.WiFiScanPayload response) throws Exception;
+  }
+}
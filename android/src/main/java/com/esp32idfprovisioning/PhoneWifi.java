@@ -0,0 +1,41 @@
+package com.esp32idfprovisioning;
+
+import android.content.Context;
+import android.net.wifi.WifiInfo;
+import android.net.wifi.WifiManager;
+
+// The Wi-Fi network the phone itself is joined to
+class PhoneWifi {
+  // Reported when the app may not read the SSID (no location permission)
+  private static final String UNKNOWN_SSID = "<unknown ssid>";
+
+  private final Context context;
+
+  PhoneWifi(Context context) {
+    this.context = context;
+  }
+
+  // SSID of the current network, null when unknown or not connected
+  String currentSsid() {
+    try {
+      WifiManager wifiManager = (WifiManager) context.getApplicationContext().getSystemService(Context.WIFI_SERVICE);
+      WifiInfo info = wifiManager != null ? wifiManager.getConnectionInfo() : null;
+      String ssid = info != null ? info.getSSID() : null;
+      if (ssid == null || UNKNOWN_SSID.equals(ssid)) {
+        return null;
+      }
+      // Android quotes SSIDs that are valid UTF-8
+      if (ssid.length() >= 2 && ssid.startsWith("\"") && ssid.endsWith("\"")) {
+        ssid = ssid.substring(1, ssid.length() - 1);
+      }
+      return ssid;
+    } catch (Exception e) {
+      ProvisioningLog.w(null, "wifi", "current_network_unreadable", e);
+      return null;
+    }
+  }
+
+  boolean isJoinedTo(String ssid) {
+    return ssid != null && ssid.equals(currentSsid());
+  }
+}
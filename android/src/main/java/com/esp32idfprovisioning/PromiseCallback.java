@@ -0,0 +1,27 @@
+package com.esp32idfprovisioning;
+
+import com.facebook.react.bridge.Promise;
+
+// Resolves a React Native promise once a session operation completes.
+// Override toJs to convert the native result into something the bridge accepts.
+class PromiseCallback<T> implements SessionCallback<T> {
+  private final Promise promise;
+
+  PromiseCallback(Promise promise) {
+    this.promise = promise;
+  }
+
+  protected Object toJs(T result) {
+    return result;
+  }
+
+  @Override
+  public void onSuccess(T result) {
+    promise.resolve(toJs(result));
+  }
+
+  @Override
+  public void onFailure(String code, String message, Exception e) {
+    promise.reject(code, message, e);
+  }
+}
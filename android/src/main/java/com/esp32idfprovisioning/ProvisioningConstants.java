@@ -0,0 +1,13 @@
+package com.esp32idfprovisioning;
+
+// Constants shared by the module and its helper classes. Kept out of
+// Esp32IdfProvisioningModule so the helpers build without React Native, as
+// the benchmarks do.
+final class ProvisioningConstants {
+  static final String TAG = "FTLABS";
+  // Session used by the single-device methods (doConnectWifiDevice, doProvisioning, ...)
+  static final String DEFAULT_SESSION_ID = "default";
+
+  private ProvisioningConstants() {
+  }
+}
@@ -0,0 +1,48 @@
+package com.esp32idfprovisioning;
+
+import android.bluetooth.BluetoothDevice;
+
+import com.espressif.provisioning.listeners.ProvisionListener;
+import com.espressif.provisioning.listeners.ResponseListener;
+import com.espressif.provisioning.listeners.WiFiScanListener;
+
+import java.util.List;
+
+// The operations a ProvisioningSession needs from an ESP device. EspDeviceAdapter
+// forwards them to the SDK's ESPDevice; tests plug in a simulated device.
+//
+// Connection results are not returned here: like ESPDevice, implementations
+// report them as DeviceConnectionEvents, which end up in
+// ProvisioningSession.onConnectionEvent.
+interface ProvisioningDevice {
+  void connectWiFiDevice(String ssid, String password);
+
+  // The phone is already joined to the device's softAP
+  void connectWiFiDevice();
+
+  void connectBLEDevice(BluetoothDevice bleDevice, String primaryServiceUuid);
+
+  void disconnectDevice();
+
+  void setProofOfPossession(String pop);
+
+  String getProofOfPossession();
+
+  // Runs the security handshake again on the current transport
+  void initSession(ResponseListener listener);
+
+  void scanNetworks(WiFiScanListener listener);
+
+  void provision(String ssid, String passphrase, ProvisionListener listener);
+
+  void sendDataToCustomEndPoint(String path, byte[] data, ResponseListener listener);
+
+  // What the device reported while connecting, null and empty before that
+  String getVersionInfo();
+
+  List<String> getDeviceCapabilities();
+
+  // Security scheme (0, 1 or 2) of the session, as corrected by the device's
+  // version info
+  int getSecurityVersion();
+}
@@ -0,0 +1,322 @@
+package com.esp32idfprovisioning;
+
+import android.os.SystemClock;
+
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.ReactApplicationContext;
+import com.facebook.react.bridge.WritableArray;
+import com.facebook.react.bridge.WritableMap;
+import com.facebook.react.modules.core.DeviceEventManagerModule;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// Sends events to JS through the DeviceEventEmitter.
+//
+// By default every event is a bridge call of its own. With batching on (see
+// configure) events are queued and sent every intervalMs as one
+// Esp32IdfProvisioningEvents event { batch, events: [{ name, body }],
+// coalesced, dropped }, which the JS helper unpacks and acknowledges:
+//  - emit events are lossless and keep their order, use it for anything a
+//    flow waits for (completions, stage transitions)
+//  - emitLatest events replace a queued event of the same name and key, such
+//    as repeated RSSI updates of one device
+//  - emitDroppable events are dropped once maxQueue events wait, which happens
+//    when JS stops acknowledging batches (MAX_IN_FLIGHT unacknowledged ones
+//    hold further batches back for up to ACK_TIMEOUT_MS)
+// A promise that settles after events of its own flow resolves through
+// afterSent, so JS never sees the result before those events.
+class ProvisioningEventEmitter {
+  static final String EVENT_BATCH_PROGRESS = "Esp32IdfProvisioningBatchProgress";
+  static final String EVENT_SCAN_CACHE_UPDATED = "Esp32IdfProvisioningScanCacheUpdated";
+  static final String EVENT_SCAN_RESULT = "Esp32IdfProvisioningScanResult";
+  static final String EVENT_SCAN_COMPLETE = "Esp32IdfProvisioningScanComplete";
+  static final String EVENT_TIMING = "Esp32IdfProvisioningTiming";
+  static final String EVENT_RETRY = "Esp32IdfProvisioningRetry";
+  static final String EVENT_CUSTOM_DATA_PROGRESS = "Esp32IdfProvisioningCustomDataProgress";
+  static final String EVENT_BLE_DEVICE_FOUND = "Esp32IdfProvisioningBleDeviceFound";
+  static final String EVENT_BLE_SCAN_COMPLETE = "Esp32IdfProvisioningBleScanComplete";
+  static final String EVENT_SOFTAP_DEVICE_FOUND = "Esp32IdfProvisioningSoftApDeviceFound";
+  static final String EVENT_BATCH = "Esp32IdfProvisioningEvents";
+
+  // About one frame, superseded updates within it reach JS once
+  static final long DEFAULT_INTERVAL_MS = 16;
+  static final int DEFAULT_MAX_QUEUE = 512;
+  static final int DEFAULT_MAX_BATCH = 128;
+  static final int MAX_IN_FLIGHT = 2;
+  static final long ACK_TIMEOUT_MS = 1000;
+
+  // Events waiting for the next batch, in emit order
+  static class PendingEvents {
+    static class Event {
+      final String name;
+      // Coalescing key, null for events that are never replaced
+      final String key;
+      final boolean droppable;
+      WritableMap body;
+      // Set on the entries queued by afterSent, which carry no event
+      final Runnable action;
+
+      Event(String name, String key, boolean droppable, WritableMap body) {
+        this(name, key, droppable, body, null);
+      }
+
+      Event(String name, String key, boolean droppable, WritableMap body, Runnable action) {
+        this.name = name;
+        this.key = key;
+        this.droppable = droppable;
+        this.body = body;
+        this.action = action;
+      }
+    }
+
+    private int maxQueue;
+    private final List<Event> events = new ArrayList<>();
+    private final Map<String, Event> latest = new HashMap<>();
+    private int coalesced;
+    private int dropped;
+
+    PendingEvents(int maxQueue) {
+      setMaxQueue(maxQueue);
+    }
+
+    void setMaxQueue(int maxQueue) {
+      this.maxQueue = Math.max(1, maxQueue);
+    }
+
+    void add(String name, WritableMap body) {
+      if (events.size() >= maxQueue) {
+        dropDroppable();
+      }
+      events.add(new Event(name, null, false, body));
+    }
+
+    // Replaces the queued event of the same name and key in place, so it
+    // keeps its position relative to the lossless events around it
+    void addLatest(String name, String key, WritableMap body) {
+      String slot = name + '\u0000' + key;
+      Event queued = latest.get(slot);
+      if (queued != null) {
+        queued.body = body;
+        coalesced++;
+        return;
+      }
+      Event event = new Event(name, slot, false, body);
+      latest.put(slot, event);
+      events.add(event);
+    }
+
+    void addDroppable(String name, WritableMap body) {
+      if (events.size() >= maxQueue) {
+        dropped++;
+        return;
+      }
+      events.add(new Event(name, null, true, body));
+    }
+
+    // Runs once the events queued before it have been sent. It never counts
+    // against maxQueue and is never dropped.
+    void addAction(Runnable action) {
+      events.add(new Event(null, null, false, null, action));
+    }
+
+    // Takes up to max events off the head of the queue, with the actions that
+    // directly follow them
+    List<Event> take(int max) {
+      int count = Math.min(max, events.size());
+      while (count < events.size() && events.get(count).action != null) {
+        count++;
+      }
+      List<Event> res = new ArrayList<>(events.subList(0, count));
+      events.subList(0, count).clear();
+      for (Event event : res) {
+        if (event.key != null) {
+          latest.remove(event.key);
+        }
+      }
+      return res;
+    }
+
+    int size() {
+      return events.size();
+    }
+
+    // Returns the count since the last call
+    int takeCoalesced() {
+      int res = coalesced;
+      coalesced = 0;
+      return res;
+    }
+
+    int takeDropped() {
+      int res = dropped;
+      dropped = 0;
+      return res;
+    }
+
+    private void dropDroppable() {
+      Iterator<Event> it = events.iterator();
+      while (it.hasNext()) {
+        if (it.next().droppable) {
+          it.remove();
+          dropped++;
+        }
+      }
+    }
+  }
+
+  private final ReactApplicationContext reactContext;
+  private final ScheduledExecutorService scheduler;
+  private boolean batched;
+  private long intervalMs = DEFAULT_INTERVAL_MS;
+  private int maxBatch = DEFAULT_MAX_BATCH;
+  private final PendingEvents pending = new PendingEvents(DEFAULT_MAX_QUEUE);
+  private boolean flushScheduled;
+  private long sentBatches;
+  private long ackedBatches;
+  private long lastSentAt;
+
+  ProvisioningEventEmitter(ReactApplicationContext reactContext, ScheduledExecutorService scheduler) {
+    this.reactContext = reactContext;
+    this.scheduler = scheduler;
+  }
+
+  // Turning batching off sends what is still queued right away
+  synchronized void configure(boolean batched, long intervalMs, int maxQueue, int maxBatch) {
+    if (!batched && this.batched) {
+      flushAll();
+    }
+    this.batched = batched;
+    this.intervalMs = Math.max(1, intervalMs);
+    this.maxBatch = Math.max(1, maxBatch);
+    pending.setMaxQueue(maxQueue);
+  }
+
+  // JS has handled every batch up to this one
+  synchronized void acknowledge(long batch) {
+    ackedBatches = Math.max(ackedBatches, Math.min(batch, sentBatches));
+  }
+
+  void emit(String eventName, WritableMap params) {
+    synchronized (this) {
+      if (batched) {
+        pending.add(eventName, params);
+        scheduleFlush();
+        return;
+      }
+    }
+    send(eventName, params);
+  }
+
+  void emitLatest(String eventName, String key, WritableMap params) {
+    synchronized (this) {
+      if (batched) {
+        pending.addLatest(eventName, key, params);
+        scheduleFlush();
+        return;
+      }
+    }
+    send(eventName, params);
+  }
+
+  void emitDroppable(String eventName, WritableMap params) {
+    synchronized (this) {
+      if (batched) {
+        pending.addDroppable(eventName, params);
+        scheduleFlush();
+        return;
+      }
+    }
+    send(eventName, params);
+  }
+
+  // Runs action once every event emitted before this call has been sent, right
+  // away when batching is off
+  void afterSent(Runnable action) {
+    synchronized (this) {
+      if (batched && pending.size() > 0) {
+        pending.addAction(action);
+        return;
+      }
+    }
+    action.run();
+  }
+
+  private void scheduleFlush() {
+    if (flushScheduled) {
+      return;
+    }
+    flushScheduled = true;
+    scheduler.schedule(new Runnable() {
+      @Override
+      public void run() {
+        flush();
+      }
+    }, intervalMs, TimeUnit.MILLISECONDS);
+  }
+
+  private synchronized void flush() {
+    flushScheduled = false;
+    if (pending.size() == 0) {
+      return;
+    }
+    long now = SystemClock.elapsedRealtime();
+    if (sentBatches - ackedBatches >= MAX_IN_FLIGHT && now - lastSentAt < ACK_TIMEOUT_MS) {
+      // JS is behind: keep queueing, which coalesces and drops what it can
+      scheduleFlush();
+      return;
+    }
+    sendBatch(pending.take(maxBatch));
+    lastSentAt = now;
+    if (pending.size() > 0) {
+      scheduleFlush();
+    }
+  }
+
+  private void flushAll() {
+    while (pending.size() > 0) {
+      sendBatch(pending.take(maxBatch));
+    }
+  }
+
+  private void sendBatch(List<PendingEvents.Event> events) {
+    WritableArray array = Arguments.createArray();
+    List<Runnable> actions = new ArrayList<>();
+    for (PendingEvents.Event event : events) {
+      if (event.action != null) {
+        actions.add(event.action);
+        continue;
+      }
+      WritableMap item = Arguments.createMap();
+      item.putString("name", event.name);
+      item.putMap("body", event.body);
+      array.pushMap(item);
+    }
+    if (actions.size() < events.size()) {
+      WritableMap batch = Arguments.createMap();
+      batch.putDouble("batch", ++sentBatches);
+      batch.putArray("events", array);
+      batch.putInt("coalesced", pending.takeCoalesced());
+      batch.putInt("dropped", pending.takeDropped());
+      send(EVENT_BATCH, batch);
+    }
+    for (Runnable action : actions) {
+      action.run();
+    }
+  }
+
+  private void send(String eventName, WritableMap params) {
+    if (!reactContext.hasActiveReactInstance()) {
+      ProvisioningLog.d(null, "events", "dropped_no_react_instance", eventName);
+      return;
+    }
+    reactContext
+        .getJSModule(DeviceEventManagerModule.RCTDeviceEventEmitter.class)
+        .emit(eventName, params);
+  }
+}
@@ -0,0 +1,73 @@
+package com.esp32idfprovisioning;
+
+import com.facebook.react.bridge.ReadableMap;
+
+// One device of a batch: the softAP to join or the BLE device to connect to,
+// its proof of possession and the Wi-Fi network it should be provisioned with
+class ProvisioningJob {
+  final int index;
+  // Identifies the job in the journal across app restarts, see key()
+  final String jobId;
+  final String deviceSsid;
+  final String devicePassword;
+  // MAC address of a device found by a BLE scan, null for softAP jobs
+  final String bleDeviceId;
+  final String pop;
+  final SessionSecurity security;
+  // null when the network is chosen from the batch's site networks
+  final String wifiSsid;
+  final String wifiPassword;
+
+  ProvisioningJob(int index, String jobId, String deviceSsid, String devicePassword, String bleDeviceId, String pop,
+      SessionSecurity security, String wifiSsid, String wifiPassword) {
+    this.index = index;
+    this.jobId = jobId;
+    this.deviceSsid = deviceSsid;
+    this.devicePassword = devicePassword;
+    this.bleDeviceId = bleDeviceId;
+    this.pop = pop;
+    this.security = security;
+    this.wifiSsid = wifiSsid;
+    this.wifiPassword = wifiPassword;
+  }
+
+  boolean isBle() {
+    return bleDeviceId != null;
+  }
+
+  // Journal key: the jobId given by JS, or the device and the network it is
+  // provisioned with, so provisioning it with another network is a new job
+  String key() {
+    if (jobId != null) {
+      return jobId;
+    }
+    return (isBle() ? "ble:" + bleDeviceId : "softap:" + deviceSsid) + "/" + (wifiSsid != null ? wifiSsid : "auto");
+  }
+
+  // { jobId, ssid, password, pop, wifiSsid, wifiPassword } for softAP devices,
+  // { jobId, bleDeviceId, pop, wifiSsid, wifiPassword } for BLE devices.
+  // jobId is optional, as are security and username (see SessionSecurity).
+  // wifiSsid is optional too when the batch has site networks to choose from.
+  static ProvisioningJob fromReadableMap(int index, ReadableMap job, boolean siteNetworks) {
+    String bleDeviceId = optString(job, "bleDeviceId");
+    if (bleDeviceId == null && !job.hasKey("ssid")) {
+      throw new IllegalArgumentException("Job " + index + " needs either ssid or bleDeviceId");
+    }
+    if (!siteNetworks && !job.hasKey("wifiSsid")) {
+      throw new IllegalArgumentException("Job " + index + " needs wifiSsid");
+    }
+    return new ProvisioningJob(index,
+        optString(job, "jobId"),
+        optString(job, "ssid"),
+        optString(job, "password"),
+        bleDeviceId,
+        optString(job, "pop"),
+        SessionSecurity.fromReadableMap(job),
+        optString(job, "wifiSsid"),
+        optString(job, "wifiPassword"));
+  }
+
+  private static String optString(ReadableMap map, String key) {
+    return map.hasKey(key) && !map.isNull(key) ? map.getString(key) : null;
+  }
+}
@@ -0,0 +1,318 @@
+package com.esp32idfprovisioning;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+// Stage transitions of provisioning jobs, kept on disk so a batch interrupted
+// by the app being killed can be resumed without redoing finished devices.
+//
+// The journal is an append-only log of records
+//   [int payload length][payload][int CRC32 of payload]
+// where the payload is (key, stage, status, timestamp). Appends are buffered
+// and written with a single fsync per FLUSH_DELAY_MS, so a busy batch costs one
+// disk sync per window instead of one per transition; a crash loses at most
+// that window, which only means a stage is run again. A torn or corrupt record
+// ends the log on load and is cut off before anything is appended.
+//
+// Flushes run on their own executor and write outside the journal's lock, so
+// a slow fsync holds up neither other work nor callers of record.
+//
+// The latest state of every job is kept in memory. Once the log holds
+// COMPACT_RATIO times more records than jobs, it is rewritten with one record
+// per job to a temporary file that replaces the log atomically.
+class ProvisioningJournal {
+  static final String FILE_NAME = "journal.log";
+  static final long FLUSH_DELAY_MS = 100;
+  static final int COMPACT_RATIO = 4;
+  static final int COMPACT_MIN_RECORDS = 256;
+  private static final int RECORD_OVERHEAD = 8;
+  private static final int MAX_PAYLOAD = 4096;
+  // Jobs untouched for this long are dropped on compaction
+  static final long RETENTION_MS = 7L * 24 * 60 * 60 * 1000;
+
+  static class JobState {
+    final String key;
+    final String stage;
+    final String status;
+    final long updatedAt;
+
+    JobState(String key, String stage, String status, long updatedAt) {
+      this.key = key;
+      this.stage = stage;
+      this.status = status;
+      this.updatedAt = updatedAt;
+    }
+
+    boolean is(String stage, String status) {
+      return this.stage.equals(stage) && this.status.equals(status);
+    }
+  }
+
+  private final File directory;
+  private final File file;
+  // Runs the flushes, only used for journal I/O
+  private final ScheduledExecutorService executor;
+  // Held while the file is written, taken before the journal's own lock
+  private final Object io = new Object();
+
+  private final Map<String, JobState> jobs = new LinkedHashMap<>();
+  private final List<JobState> pending = new ArrayList<>();
+  private boolean loaded;
+  private boolean flushScheduled;
+  private int records;
+  // Guarded by io
+  private FileOutputStream output;
+
+  ProvisioningJournal(File directory, ScheduledExecutorService executor) {
+    this.directory = directory;
+    this.file = new File(directory, FILE_NAME);
+    this.executor = executor;
+  }
+
+  synchronized JobState get(String key) {
+    ensureLoaded();
+    return jobs.get(key);
+  }
+
+  synchronized List<JobState> jobs() {
+    ensureLoaded();
+    return new ArrayList<>(jobs.values());
+  }
+
+  // Records a transition. It reaches the disk with the next flush.
+  synchronized void record(String key, String stage, String status) {
+    ensureLoaded();
+    JobState state = new JobState(key, stage, status, System.currentTimeMillis());
+    // Re-inserting keeps the map ordered by last update
+    jobs.remove(key);
+    jobs.put(key, state);
+    pending.add(state);
+    if (!flushScheduled) {
+      flushScheduled = true;
+      executor.schedule(new Runnable() {
+        @Override
+        public void run() {
+          flush();
+        }
+      }, FLUSH_DELAY_MS, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  void clear() {
+    synchronized (io) {
+      synchronized (this) {
+        ensureLoaded();
+        jobs.clear();
+        pending.clear();
+        records = 0;
+      }
+      closeOutput();
+      if (file.exists() && !file.delete()) {
+        ProvisioningLog.w(null, "journal", "delete_failed", file.getPath(), null);
+      }
+    }
+  }
+
+  // Writes the pending records with one fsync, compacting the log when it has
+  // grown well past the number of jobs. The records are taken under the lock
+  // and written outside it.
+  void flush() {
+    synchronized (io) {
+      List<JobState> batch;
+      List<JobState> snapshot = null;
+      synchronized (this) {
+        flushScheduled = false;
+        if (pending.isEmpty()) {
+          return;
+        }
+        batch = new ArrayList<>(pending);
+        pending.clear();
+        if (records + batch.size() >= COMPACT_MIN_RECORDS && records + batch.size() > COMPACT_RATIO * jobs.size()) {
+          dropExpired();
+          snapshot = new ArrayList<>(jobs.values());
+        }
+      }
+      try {
+        if (snapshot != null) {
+          compact(snapshot);
+        } else {
+          append(batch);
+        }
+        synchronized (this) {
+          records = snapshot != null ? snapshot.size() : records + batch.size();
+        }
+      } catch (IOException e) {
+        // Keep the records pending, the next transition retries the write
+        ProvisioningLog.w(null, "journal", "write_failed", e);
+        closeOutput();
+        synchronized (this) {
+          pending.addAll(0, batch);
+        }
+      }
+    }
+  }
+
+  void close() {
+    synchronized (io) {
+      flush();
+      closeOutput();
+    }
+  }
+
+  private void append(List<JobState> batch) throws IOException {
+    if (output == null) {
+      if (!directory.isDirectory() && !directory.mkdirs()) {
+        throw new IOException("Cannot create " + directory);
+      }
+      output = new FileOutputStream(file, true);
+    }
+    BufferedOutputStream buffered = new BufferedOutputStream(output);
+    for (JobState state : batch) {
+      writeRecord(buffered, state);
+    }
+    buffered.flush();
+    output.getFD().sync();
+  }
+
+  private void dropExpired() {
+    long cutoff = System.currentTimeMillis() - RETENTION_MS;
+    Iterator<JobState> it = jobs.values().iterator();
+    while (it.hasNext()) {
+      if (it.next().updatedAt < cutoff) {
+        it.remove();
+      }
+    }
+  }
+
+  private void compact(List<JobState> snapshot) throws IOException {
+    closeOutput();
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Cannot create " + directory);
+    }
+    File compacted = new File(directory, FILE_NAME + ".tmp");
+    FileOutputStream out = new FileOutputStream(compacted);
+    try {
+      BufferedOutputStream buffered = new BufferedOutputStream(out);
+      for (JobState state : snapshot) {
+        writeRecord(buffered, state);
+      }
+      buffered.flush();
+      out.getFD().sync();
+    } finally {
+      out.close();
+    }
+    if (!compacted.renameTo(file)) {
+      throw new IOException("Cannot replace " + file);
+    }
+    ProvisioningLog.d(null, "journal", "compacted", snapshot.size());
+  }
+
+  private void ensureLoaded() {
+    if (loaded) {
+      return;
+    }
+    loaded = true;
+    if (!file.exists()) {
+      return;
+    }
+    long validLength = 0;
+    try {
+      DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+      try {
+        JobState state;
+        int[] size = new int[1];
+        while ((state = readRecord(input, size)) != null) {
+          jobs.remove(state.key);
+          jobs.put(state.key, state);
+          records++;
+          validLength += size[0];
+        }
+      } finally {
+        input.close();
+      }
+      if (validLength < file.length()) {
+        ProvisioningLog.log(ProvisioningLog.WARN, null, "journal", "damaged_tail_dropped", null,
+            file.length() - validLength, null);
+        RandomAccessFile truncate = new RandomAccessFile(file, "rw");
+        try {
+          truncate.setLength(validLength);
+        } finally {
+          truncate.close();
+        }
+      }
+    } catch (IOException e) {
+      ProvisioningLog.w(null, "journal", "read_failed", e);
+    }
+    ProvisioningLog.d(null, "journal", "loaded", records);
+  }
+
+  private static void writeRecord(BufferedOutputStream out, JobState state) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+    DataOutputStream payload = new DataOutputStream(bytes);
+    payload.writeUTF(state.key);
+    payload.writeUTF(state.stage);
+    payload.writeUTF(state.status);
+    payload.writeLong(state.updatedAt);
+    CRC32 crc = new CRC32();
+    crc.update(bytes.toByteArray());
+
+    DataOutputStream record = new DataOutputStream(out);
+    record.writeInt(bytes.size());
+    bytes.writeTo(record);
+    record.writeInt((int) crc.getValue());
+  }
+
+  // Returns null at the end of the log, or at a record that was only partly
+  // written or is damaged. The size of the record is stored in size[0].
+  private static JobState readRecord(DataInputStream input, int[] size) throws IOException {
+    try {
+      int length = input.readInt();
+      if (length <= 0 || length > MAX_PAYLOAD) {
+        return null;
+      }
+      byte[] payload = new byte[length];
+      input.readFully(payload);
+      int expected = input.readInt();
+      CRC32 crc = new CRC32();
+      crc.update(payload);
+      if ((int) crc.getValue() != expected) {
+        return null;
+      }
+      size[0] = RECORD_OVERHEAD + length;
+      DataInputStream fields = new DataInputStream(new ByteArrayInputStream(payload));
+      return new JobState(fields.readUTF(), fields.readUTF(), fields.readUTF(), fields.readLong());
+    } catch (EOFException e) {
+      return null;
+    }
+  }
+
+  private void closeOutput() {
+    if (output == null) {
+      return;
+    }
+    try {
+      output.close();
+    } catch (IOException e) {
+      ProvisioningLog.w(null, "journal", "close_failed", e);
+    }
+    output = null;
+  }
+}
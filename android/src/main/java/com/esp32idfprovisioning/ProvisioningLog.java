@@ -0,0 +1,261 @@
+package com.esp32idfprovisioning;
+
+import android.util.Log;
+
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.WritableArray;
+import com.facebook.react.bridge.WritableMap;
+
+import java.util.Arrays;
+
+// Structured log of the module. Every entry is a typed event
+//   (time, level, device, stage, code, detail, value, error)
+// where stage and code are constants, device is a session or batch id and
+// detail a non-secret identifier such as an SSID. Events are written into
+// preallocated parallel arrays, so recording one allocates nothing; only
+// events at or above the logcat level are also formatted for logcat. Callers
+// pass identifiers and numbers as they are, not concatenated, so nothing is
+// built for an event below the recorded level.
+//
+// Secrets never go into an event: there is no field for them, and where the
+// presence of a password matters it is told by the code (softap_connect vs
+// softap_connect_open). dump() returns the buffer for support tickets.
+final class ProvisioningLog {
+  private static final String TAG = ProvisioningConstants.TAG;
+
+  static final int DEBUG = 3;
+  static final int INFO = 4;
+  static final int WARN = 5;
+  static final int ERROR = 6;
+  static final int NONE = Integer.MAX_VALUE;
+
+  static final int DEFAULT_CAPACITY = 1024;
+  static final long NO_VALUE = Long.MIN_VALUE;
+
+  private static final Object lock = new Object();
+  private static volatile int level = DEBUG;
+  // Formatting for logcat allocates, so by default only problems go there
+  private static volatile int logcatLevel = WARN;
+
+  private static long[] times;
+  private static int[] levels;
+  private static String[] devices;
+  private static String[] stages;
+  private static String[] codes;
+  private static String[] details;
+  private static long[] values;
+  private static Throwable[] errors;
+  // Events recorded since the last clear, the next slot is recorded % capacity
+  private static long recorded;
+
+  static {
+    allocate(DEFAULT_CAPACITY);
+  }
+
+  private ProvisioningLog() {
+  }
+
+  // Levels below level are not recorded, levels below logcatLevel are not
+  // sent to logcat. A new capacity clears the buffer.
+  static void configure(int level, int logcatLevel, int capacity) {
+    synchronized (lock) {
+      ProvisioningLog.level = level;
+      ProvisioningLog.logcatLevel = logcatLevel;
+      if (capacity > 0 && capacity != times.length) {
+        allocate(capacity);
+      }
+    }
+  }
+
+  private static void allocate(int capacity) {
+    times = new long[capacity];
+    levels = new int[capacity];
+    devices = new String[capacity];
+    stages = new String[capacity];
+    codes = new String[capacity];
+    details = new String[capacity];
+    values = new long[capacity];
+    errors = new Throwable[capacity];
+    recorded = 0;
+  }
+
+  static void d(String device, String stage, String code) {
+    log(DEBUG, device, stage, code, null, NO_VALUE, null);
+  }
+
+  static void d(String device, String stage, String code, long value) {
+    log(DEBUG, device, stage, code, null, value, null);
+  }
+
+  static void d(String device, String stage, String code, String detail) {
+    log(DEBUG, device, stage, code, detail, NO_VALUE, null);
+  }
+
+  static void i(String device, String stage, String code, String detail) {
+    log(INFO, device, stage, code, detail, NO_VALUE, null);
+  }
+
+  static void i(String device, String stage, String code, long value) {
+    log(INFO, device, stage, code, null, value, null);
+  }
+
+  static void i(String device, String stage, String code, String detail, long value) {
+    log(INFO, device, stage, code, detail, value, null);
+  }
+
+  static void w(String device, String stage, String code, Throwable error) {
+    log(WARN, device, stage, code, null, NO_VALUE, error);
+  }
+
+  static void w(String device, String stage, String code, String detail, Throwable error) {
+    log(WARN, device, stage, code, detail, NO_VALUE, error);
+  }
+
+  static void e(String device, String stage, String code, Throwable error) {
+    log(ERROR, device, stage, code, null, NO_VALUE, error);
+  }
+
+  static void log(int eventLevel, String device, String stage, String code, String detail, long value,
+      Throwable error) {
+    if (eventLevel >= level) {
+      long now = System.currentTimeMillis();
+      synchronized (lock) {
+        int slot = (int) (recorded % times.length);
+        times[slot] = now;
+        levels[slot] = eventLevel;
+        devices[slot] = device;
+        stages[slot] = stage;
+        codes[slot] = code;
+        details[slot] = detail;
+        values[slot] = value;
+        errors[slot] = error;
+        recorded++;
+      }
+    }
+    if (eventLevel >= logcatLevel) {
+      logcat(eventLevel, format(device, stage, code, detail, value), error);
+    }
+  }
+
+  static void clear() {
+    synchronized (lock) {
+      Arrays.fill(devices, null);
+      Arrays.fill(stages, null);
+      Arrays.fill(codes, null);
+      Arrays.fill(details, null);
+      Arrays.fill(errors, null);
+      recorded = 0;
+    }
+  }
+
+  // { capacity, recorded, dropped, events: [{ time, level, device, stage, code,
+  //   detail, value, error }] }, oldest event first
+  static WritableMap dump() {
+    WritableMap res = Arguments.createMap();
+    WritableArray events = Arguments.createArray();
+    synchronized (lock) {
+      int capacity = times.length;
+      long first = Math.max(0, recorded - capacity);
+      for (long n = first; n < recorded; n++) {
+        int slot = (int) (n % capacity);
+        WritableMap event = Arguments.createMap();
+        event.putDouble("time", times[slot]);
+        event.putString("level", levelName(levels[slot]));
+        putIfSet(event, "device", devices[slot]);
+        putIfSet(event, "stage", stages[slot]);
+        putIfSet(event, "code", codes[slot]);
+        putIfSet(event, "detail", details[slot]);
+        if (values[slot] != NO_VALUE) {
+          event.putDouble("value", values[slot]);
+        }
+        if (errors[slot] != null) {
+          event.putString("error", errors[slot].toString());
+        }
+        events.pushMap(event);
+      }
+      res.putInt("capacity", capacity);
+      res.putDouble("recorded", recorded);
+      res.putDouble("dropped", first);
+    }
+    res.putArray("events", events);
+    return res;
+  }
+
+  static int parseLevel(String name) {
+    switch (name) {
+      case "debug":
+        return DEBUG;
+      case "info":
+        return INFO;
+      case "warn":
+        return WARN;
+      case "error":
+        return ERROR;
+      case "none":
+        return NONE;
+      default:
+        throw new IllegalArgumentException("Unknown log level " + name);
+    }
+  }
+
+  static String levelName(int level) {
+    switch (level) {
+      case DEBUG:
+        return "debug";
+      case INFO:
+        return "info";
+      case WARN:
+        return "warn";
+      case ERROR:
+        return "error";
+      default:
+        return "none";
+    }
+  }
+
+  static int level() {
+    return level;
+  }
+
+  static int logcatLevel() {
+    return logcatLevel;
+  }
+
+  private static void putIfSet(WritableMap map, String key, String value) {
+    if (value != null) {
+      map.putString(key, value);
+    }
+  }
+
+  private static String format(String device, String stage, String code, String detail, long value) {
+    StringBuilder line = new StringBuilder(64);
+    if (device != null) {
+      line.append('[').append(device).append("] ");
+    }
+    line.append(stage).append(' ').append(code);
+    if (detail != null) {
+      line.append(' ').append(detail);
+    }
+    if (value != NO_VALUE) {
+      line.append(' ').append(value);
+    }
+    return line.toString();
+  }
+
+  private static void logcat(int eventLevel, String message, Throwable error) {
+    switch (eventLevel) {
+      case ERROR:
+        Log.e(TAG, message, error);
+        break;
+      case WARN:
+        Log.w(TAG, message, error);
+        break;
+      case INFO:
+        Log.i(TAG, message);
+        break;
+      default:
+        Log.d(TAG, message, error);
+        break;
+    }
+  }
+}
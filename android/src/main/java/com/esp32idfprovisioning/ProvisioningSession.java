@@ -0,0 +1,992 @@
+package com.esp32idfprovisioning;
+
+import android.bluetooth.BluetoothDevice;
+import android.os.SystemClock;
+
+// ESP Provisioning SDK Import
+import com.espressif.provisioning.ESPConstants;
+import com.espressif.provisioning.WiFiAccessPoint;
+import com.espressif.provisioning.listeners.ProvisionListener;
+import com.espressif.provisioning.listeners.ResponseListener;
+import com.espressif.provisioning.listeners.WiFiScanListener;
+
+// Java Imports
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// State of a single ESP device being provisioned. Each session owns its own
+// device and its own callback slots, so several devices can be driven at the
+// same time without one JS call overwriting the pending promise of another.
+//
+// Every slot is completed at most once: the SDK can report more than one
+// failure for the same operation, only the first one is delivered.
+//
+// Operations that go through the encrypted session are started with
+// withSecureSession. The session cipher allows one request at a time, so they
+// wait for a keep-alive ping in flight, and a session that may have been
+// dropped by the device is re-established before they run.
+//
+// Connect, scan, provision and custom data calls may have a deadline (see
+// OperationDeadlines). An operation that misses it, or a call to cancel,
+// fails every pending slot and every operation registered by another class
+// (startOperation) and disconnects the device, so a hung unit does not keep
+// the phone's radio on its softAP.
+class ProvisioningSession {
+  // Failure code of a scan callback whose slot was taken by a later scan
+  static final String SCAN_SUPERSEDED = "Network scan superseded";
+
+  // Told whether each operation found the session established, see SessionKeepAlive
+  interface ReuseListener {
+    void onOperation(boolean warm);
+
+    void onRewarm();
+
+    void onRewarmFailed();
+  }
+
+  // Request used to check that an idle session still works
+  interface Probe {
+    String path();
+
+    byte[] request();
+
+    boolean isHealthy(byte[] response);
+  }
+
+  // Told about every established connection, before its callback completes
+  interface ConnectListener {
+    void onConnected(ProvisioningSession session);
+  }
+
+  // Owner of an operation another class runs over several requests (paged
+  // scan, chunked send, status poll), told when cancel or its deadline ends it
+  interface OperationOwner {
+    void onCancelled(String code, String message, Exception reason);
+  }
+
+  // Sends the Wi-Fi credentials in place of ESPDevice.provision, reporting
+  // on the same listener, see WiFiConfigProvisioner
+  interface Provisioner {
+    void provision(ProvisioningSession session, String ssid, String passphrase, ProvisionListener listener);
+  }
+
+  final String id;
+  final ProvisioningDevice device;
+  final ESPConstants.TransportType transport;
+  final ProvisioningTimings.SessionTimer timer;
+  private final RetryEngine retryEngine;
+
+  // Status variables
+  volatile boolean deviceConnected = false;
+
+  private ReuseListener reuseListener;
+  private ConnectListener connectListener;
+  // Runs operations that start with a security handshake, whose key exchange
+  // can take a while on slow phones (SRP6a with Security2)
+  private Executor handshakeExecutor;
+  private Provisioner provisioner;
+  private DeadlineWheel deadlineWheel;
+  private volatile OperationDeadlines deadlines = OperationDeadlines.NONE;
+  // Set for this session rather than taken from the module's defaults
+  private volatile boolean customDeadlines;
+  // The encrypted session with the device is known to work
+  private volatile boolean established;
+  // It worked, but the device may have dropped it since (idle timeout, failed
+  // ping); it is re-established before the next operation
+  private boolean stale;
+  private boolean pinging;
+  private boolean rewarming;
+  // Operations started by other classes directly on the device
+  private final List<Operation> operations = new ArrayList<>();
+  private final List<Runnable> deferred = new ArrayList<>();
+  private volatile long lastActivityAt = SystemClock.elapsedRealtime();
+  private volatile long lastPingAt;
+
+  private SessionCallback<Void> connectionCallback;
+  private SessionCallback<List<WiFiAccessPoint>> networkScanCallback;
+  private SessionCallback<Void> networkProvisionCallback;
+  private SessionCallback<byte[]> customDataCallback;
+
+  // Arguments of the pending connect / provision, kept so a retry can repeat them
+  private String connectSsid;
+  private String connectPassword;
+  // The phone was already on the device's softAP, only the transport is set up
+  private boolean connectJoined;
+  private BluetoothDevice connectBleDevice;
+  private String connectServiceUuid;
+  private int connectAttempt;
+  private String provisionSsid;
+  private String provisionPassword;
+  private int provisionAttempt;
+
+  ProvisioningSession(String id, ProvisioningDevice device, ProvisioningTimings timings, RetryEngine retryEngine) {
+    this(id, device, ESPConstants.TransportType.TRANSPORT_SOFTAP, timings, retryEngine);
+  }
+
+  ProvisioningSession(String id, ProvisioningDevice device, ESPConstants.TransportType transport,
+      ProvisioningTimings timings, RetryEngine retryEngine) {
+    this.id = id;
+    this.device = device;
+    this.transport = transport;
+    this.timer = timings.forSession(id);
+    this.retryEngine = retryEngine;
+  }
+
+  void setReuseListener(ReuseListener reuseListener) {
+    this.reuseListener = reuseListener;
+  }
+
+  void setConnectListener(ConnectListener connectListener) {
+    this.connectListener = connectListener;
+  }
+
+  void setHandshakeExecutor(Executor handshakeExecutor) {
+    this.handshakeExecutor = handshakeExecutor;
+  }
+
+  void setProvisioner(Provisioner provisioner) {
+    this.provisioner = provisioner;
+  }
+
+  void setDeadlineWheel(DeadlineWheel deadlineWheel) {
+    this.deadlineWheel = deadlineWheel;
+  }
+
+  // Applies to operations started afterwards
+  void setDeadlines(OperationDeadlines deadlines, boolean custom) {
+    this.deadlines = deadlines;
+    this.customDeadlines = custom;
+  }
+
+  OperationDeadlines deadlines() {
+    return deadlines;
+  }
+
+  boolean hasCustomDeadlines() {
+    return customDeadlines;
+  }
+
+  boolean isEstablished() {
+    return established;
+  }
+
+  // Time since the last request to the device, pings included
+  long idleMs(long now) {
+    return now - Math.max(lastActivityAt, lastPingAt);
+  }
+
+  // Time since the last operation, pings excluded
+  long inactiveMs(long now) {
+    return now - lastActivityAt;
+  }
+
+  // Called with the outcome of every request over the encrypted session
+  void onSecureResponse(boolean success) {
+    lastActivityAt = SystemClock.elapsedRealtime();
+    established = success;
+  }
+
+  // Registers an operation of another class, which keeps keep-alive pings
+  // out until it finishes and is failed by cancel like the slots are.
+  // deadlineMs 0 means no deadline of its own.
+  Operation startOperation(String name, long deadlineMs, OperationOwner owner) {
+    Operation operation = new Operation(name, deadlineMs, owner);
+    synchronized (this) {
+      operations.add(operation);
+    }
+    DeadlineWheel wheel = deadlineWheel;
+    if (wheel != null && deadlineMs > 0) {
+      operation.timeout = wheel.schedule(operation, deadlineMs);
+    }
+    return operation;
+  }
+
+  private boolean hasPendingOperation() {
+    return !operations.isEmpty() || connectionCallback != null || networkScanCallback != null
+        || networkProvisionCallback != null || customDataCallback != null;
+  }
+
+  void withSecureSession(Runnable operation) {
+    runSecure(operation, true);
+  }
+
+  private void runSecure(Runnable operation, boolean count) {
+    boolean warm;
+    boolean defer;
+    boolean startRewarm = false;
+    synchronized (this) {
+      lastActivityAt = SystemClock.elapsedRealtime();
+      warm = established && !stale;
+      if (stale && !rewarming && !pinging) {
+        rewarming = true;
+        startRewarm = true;
+      }
+      defer = pinging || rewarming;
+      if (defer) {
+        deferred.add(operation);
+      }
+    }
+    if (count && reuseListener != null) {
+      reuseListener.onOperation(warm);
+    }
+    if (startRewarm) {
+      runHandshake(new Runnable() {
+        @Override
+        public void run() {
+          rewarm();
+        }
+      });
+    } else if (!defer) {
+      if (warm) {
+        operation.run();
+      } else {
+        runHandshake(operation);
+      }
+    }
+  }
+
+  private void runHandshake(Runnable operation) {
+    if (handshakeExecutor != null) {
+      handshakeExecutor.execute(operation);
+    } else {
+      operation.run();
+    }
+  }
+
+  // Runs the security handshake now rather than with the first operation, so
+  // its cost is paid while the user is still busy with something else
+  void establish(final SessionCallback<Void> callback) {
+    withSecureSession(new Runnable() {
+      @Override
+      public void run() {
+        if (established) {
+          callback.onSuccess(null);
+          return;
+        }
+        timer.start(ProvisioningTimings.PHASE_HANDSHAKE);
+        ResponseListener listener = new ResponseListener() {
+          @Override
+          public void onSuccess(byte[] data) {
+            timer.stop(ProvisioningTimings.PHASE_HANDSHAKE, true);
+            onSecureResponse(true);
+            callback.onSuccess(null);
+          }
+
+          @Override
+          public void onFailure(Exception e) {
+            ProvisioningLog.w(id, "handshake", "failed", e);
+            timer.stop(ProvisioningTimings.PHASE_HANDSHAKE, false);
+            onSecureResponse(false);
+            callback.onFailure("Session error", "Security handshake with the device failed", e);
+          }
+        };
+        try {
+          device.initSession(listener);
+        } catch (Exception e) {
+          listener.onFailure(e);
+        }
+      }
+    });
+  }
+
+  private void runDeferred() {
+    List<Runnable> operations;
+    synchronized (this) {
+      operations = new ArrayList<>(deferred);
+      deferred.clear();
+    }
+    for (Runnable operation : operations) {
+      runSecure(operation, false);
+    }
+  }
+
+  private void rewarm() {
+    ProvisioningLog.d(id, "handshake", "rewarm");
+    if (reuseListener != null) {
+      reuseListener.onRewarm();
+    }
+    timer.start(ProvisioningTimings.PHASE_HANDSHAKE);
+    ResponseListener listener = new ResponseListener() {
+      @Override
+      public void onSuccess(byte[] data) {
+        timer.stop(ProvisioningTimings.PHASE_HANDSHAKE, true);
+        synchronized (ProvisioningSession.this) {
+          rewarming = false;
+          stale = false;
+        }
+        onSecureResponse(true);
+        runDeferred();
+      }
+
+      @Override
+      public void onFailure(Exception e) {
+        ProvisioningLog.w(id, "handshake", "rewarm_failed", e);
+        timer.stop(ProvisioningTimings.PHASE_HANDSHAKE, false);
+        if (reuseListener != null) {
+          reuseListener.onRewarmFailed();
+        }
+        // Leave the handshake to the SDK, which starts one for a session that
+        // is not established
+        synchronized (ProvisioningSession.this) {
+          rewarming = false;
+          stale = false;
+        }
+        onSecureResponse(false);
+        runDeferred();
+      }
+    };
+    // A handshake that throws must still release the deferred operations
+    try {
+      device.initSession(listener);
+    } catch (Exception e) {
+      listener.onFailure(e);
+    }
+  }
+
+  // Health check of an idle session. Returns false without sending anything
+  // when the session is busy or not established.
+  boolean ping(final Probe probe, final SessionCallback<Void> callback) {
+    synchronized (this) {
+      if (pinging || rewarming || stale || !established || hasPendingOperation()) {
+        return false;
+      }
+      pinging = true;
+    }
+    lastPingAt = SystemClock.elapsedRealtime();
+    device.sendDataToCustomEndPoint(probe.path(), probe.request(),
+        new ResponseListener() {
+          @Override
+          public void onSuccess(byte[] data) {
+            boolean healthy = probe.isHealthy(data);
+            endPing(healthy);
+            if (healthy) {
+              callback.onSuccess(null);
+            } else {
+              callback.onFailure("Keep-alive failed", "Unexpected keep-alive response", null);
+            }
+          }
+
+          @Override
+          public void onFailure(Exception e) {
+            endPing(false);
+            callback.onFailure("Keep-alive failed", e.toString(), e);
+          }
+        });
+    return true;
+  }
+
+  private void endPing(boolean healthy) {
+    synchronized (this) {
+      pinging = false;
+      if (!healthy) {
+        stale = true;
+      }
+    }
+    runDeferred();
+  }
+
+  // The session was idle for too long, keep-alives stop and the next operation
+  // re-establishes it. Returns false when there was nothing to expire.
+  synchronized boolean expire() {
+    if (!established || stale) {
+      return false;
+    }
+    stale = true;
+    return true;
+  }
+
+  private synchronized SessionCallback<Void> takeConnectionCallback() {
+    SessionCallback<Void> callback = connectionCallback;
+    connectionCallback = null;
+    return callback;
+  }
+
+  private synchronized SessionCallback<List<WiFiAccessPoint>> takeNetworkScanCallback() {
+    SessionCallback<List<WiFiAccessPoint>> callback = networkScanCallback;
+    networkScanCallback = null;
+    return callback;
+  }
+
+  private synchronized SessionCallback<Void> takeNetworkProvisionCallback() {
+    SessionCallback<Void> callback = networkProvisionCallback;
+    networkProvisionCallback = null;
+    return callback;
+  }
+
+  private synchronized SessionCallback<byte[]> takeCustomDataCallback() {
+    SessionCallback<byte[]> callback = customDataCallback;
+    customDataCallback = null;
+    return callback;
+  }
+
+  // Retryable failures happen before the device has taken the credentials, so
+  // sending them again over the same connection may succeed. Failures reported
+  // by the device itself (wrong password, network not found) are final.
+  private void failProvisioning(String message, Exception e, boolean retryable) {
+    timer.stop(ProvisioningTimings.PHASE_CONFIG_SEND, false);
+    timer.stop(ProvisioningTimings.PHASE_CONFIG_APPLY, false);
+    timer.stop(ProvisioningTimings.PHASE_STATUS, false);
+    if (retryable && retryProvisioning(e)) {
+      return;
+    }
+    timer.stop(ProvisioningTimings.PHASE_PROVISION, false);
+    SessionCallback<Void> callback = takeNetworkProvisionCallback();
+    if (callback != null) {
+      callback.onFailure("Error in provision listener", message, e);
+    }
+  }
+
+  private boolean retryProvisioning(Exception reason) {
+    final int failedAttempt;
+    synchronized (this) {
+      if (networkProvisionCallback == null) {
+        return false;
+      }
+      failedAttempt = provisionAttempt;
+    }
+    return retryEngine.retry(id, RetryEngine.STAGE_PROVISION, failedAttempt, reason, new Runnable() {
+      @Override
+      public void run() {
+        synchronized (ProvisioningSession.this) {
+          if (networkProvisionCallback == null) {
+            return;
+          }
+          provisionAttempt = failedAttempt + 1;
+        }
+        withSecureSession(new Runnable() {
+          @Override
+          public void run() {
+            timer.start(ProvisioningTimings.PHASE_CONFIG_SEND);
+            try {
+              sendConfig(provisionSsid, provisionPassword);
+            } catch (Exception e) {
+              failProvisioning("Provisioning retry failed to start", e, true);
+            }
+          }
+        });
+      }
+    });
+  }
+
+  private void sendConfig(String ssid, String pass) {
+    Provisioner current = provisioner;
+    if (current != null) {
+      current.provision(this, ssid, pass, provisionListener);
+    } else {
+      device.provision(ssid, pass, provisionListener);
+    }
+  }
+
+  private boolean retryConnection(Exception reason) {
+    final int failedAttempt;
+    synchronized (this) {
+      if (connectionCallback == null) {
+        return false;
+      }
+      failedAttempt = connectAttempt;
+    }
+    return retryEngine.retry(id, RetryEngine.STAGE_CONNECT, failedAttempt, reason, new Runnable() {
+      @Override
+      public void run() {
+        synchronized (ProvisioningSession.this) {
+          if (connectionCallback == null) {
+            return;
+          }
+          connectAttempt = failedAttempt + 1;
+        }
+        timer.start(ProvisioningTimings.PHASE_CONNECT);
+        try {
+          connectDevice();
+        } catch (Exception e) {
+          onConnectionEvent(ESPConstants.EVENT_DEVICE_CONNECTION_FAILED);
+        }
+      }
+    });
+  }
+
+  // Will scan for wifi networks and then return a list of them
+  final WiFiScanListener wiFiScanListener = new WiFiScanListener() {
+    @Override
+    public void onWifiListReceived(ArrayList<WiFiAccessPoint> wifiList) {
+      onSecureResponse(true);
+      timer.stop(ProvisioningTimings.PHASE_SCAN, true);
+      SessionCallback<List<WiFiAccessPoint>> callback = takeNetworkScanCallback();
+      if (callback != null) {
+        callback.onSuccess(wifiList);
+      }
+    }
+
+    @Override
+    public void onWiFiScanFailed(Exception e) {
+      onSecureResponse(false);
+      timer.stop(ProvisioningTimings.PHASE_SCAN, false);
+      SessionCallback<List<WiFiAccessPoint>> callback = takeNetworkScanCallback();
+      if (callback != null) {
+        callback.onFailure("Network Scan Error", "WiFi networks scan has failed", e);
+      }
+    }
+  };
+
+  // Native method to provision using SoftAP and it's callbacks
+  final ProvisionListener provisionListener = new ProvisionListener() {
+    @Override
+    public void createSessionFailed(Exception e) {
+      ProvisioningLog.w(id, "provision", "create_session_failed", e);
+      onSecureResponse(false);
+      failProvisioning("Session creation is failed", e, true);
+    }
+
+    @Override
+    public void wifiConfigSent() {
+      ProvisioningLog.d(id, "provision", "config_sent");
+      onSecureResponse(true);
+      timer.next(ProvisioningTimings.PHASE_CONFIG_SEND, ProvisioningTimings.PHASE_CONFIG_APPLY);
+    }
+
+    @Override
+    public void wifiConfigFailed(Exception e) {
+      ProvisioningLog.w(id, "provision", "config_send_failed", e);
+      failProvisioning("Wi-Fi credentials failed to send to the device", e, true);
+    }
+
+    @Override
+    public void wifiConfigApplied() {
+      ProvisioningLog.d(id, "provision", "config_applied");
+      timer.next(ProvisioningTimings.PHASE_CONFIG_APPLY, ProvisioningTimings.PHASE_STATUS);
+    }
+
+    @Override
+    public void wifiConfigApplyFailed(Exception e) {
+      ProvisioningLog.w(id, "provision", "config_apply_failed", e);
+      failProvisioning("Wi-Fi credentials failed to apply to the device", e, true);
+    }
+
+    @Override
+    public void provisioningFailedFromDevice(ESPConstants.ProvisionFailureReason failureReason) {
+      ProvisioningLog.w(id, "provision", "device_failed", failureReason.name(), null);
+      failProvisioning("provisioningFailedFromDevice: " + failureReason.toString(), new Exception(), false);
+    }
+
+    @Override
+    public void deviceProvisioningSuccess() {
+      ProvisioningLog.i(id, "provision", "succeeded", null);
+      timer.stop(ProvisioningTimings.PHASE_STATUS, true);
+      timer.stop(ProvisioningTimings.PHASE_PROVISION, true);
+      SessionCallback<Void> callback = takeNetworkProvisionCallback();
+      if (callback != null) {
+        callback.onSuccess(null);
+      }
+    }
+
+    @Override
+    public void onProvisioningFailed(Exception e) {
+      ProvisioningLog.w(id, "provision", "failed", e);
+      failProvisioning("Provisioning is failed", e, false);
+    }
+  };
+
+  // Response listener for custom data
+  final ResponseListener responseListener = new ResponseListener() {
+    @Override
+    public void onSuccess(byte[] data) {
+      ProvisioningLog.d(id, "custom", "sent");
+      onSecureResponse(true);
+      SessionCallback<byte[]> callback = takeCustomDataCallback();
+      if (callback != null) {
+        callback.onSuccess(data);
+      }
+    }
+
+    @Override
+    public void onFailure(Exception e) {
+      ProvisioningLog.w(id, "custom", "send_failed", e);
+      onSecureResponse(false);
+      SessionCallback<byte[]> callback = takeCustomDataCallback();
+      if (callback != null) {
+        callback.onFailure("Error in response listener", "Custom data sending failed", e);
+      }
+    }
+  };
+
+  // Starts joining the device's softAP. The result arrives later through
+  // onConnectionEvent once the SDK posts a DeviceConnectionEvent.
+  void connectWifiDevice(String ssid, String password, SessionCallback<Void> callback) {
+    callback = withDeadline("Connection", deadlines.connectMs, callback);
+    synchronized (this) {
+      connectionCallback = callback;
+      connectSsid = ssid;
+      connectPassword = password;
+      connectJoined = false;
+      connectBleDevice = null;
+      connectServiceUuid = null;
+      connectAttempt = 1;
+    }
+    timer.start(ProvisioningTimings.PHASE_CONNECT);
+    connectDevice();
+  }
+
+  // Variant of connectWifiDevice for when the phone is already joined to the
+  // device's softAP, which skips the join
+  void connectJoinedWifiDevice(String ssid, SessionCallback<Void> callback) {
+    callback = withDeadline("Connection", deadlines.connectMs, callback);
+    synchronized (this) {
+      connectionCallback = callback;
+      connectSsid = ssid;
+      connectPassword = null;
+      connectJoined = true;
+      connectBleDevice = null;
+      connectServiceUuid = null;
+      connectAttempt = 1;
+    }
+    timer.start(ProvisioningTimings.PHASE_CONNECT);
+    connectDevice();
+  }
+
+  // BLE counterpart of connectWifiDevice, the result arrives the same way
+  void connectBleDevice(BluetoothDevice bleDevice, String primaryServiceUuid, SessionCallback<Void> callback) {
+    callback = withDeadline("Connection", deadlines.connectMs, callback);
+    synchronized (this) {
+      connectionCallback = callback;
+      connectSsid = null;
+      connectPassword = null;
+      connectJoined = false;
+      connectBleDevice = bleDevice;
+      connectServiceUuid = primaryServiceUuid;
+      connectAttempt = 1;
+    }
+    timer.start(ProvisioningTimings.PHASE_CONNECT);
+    connectDevice();
+  }
+
+  static String softApDeviceKey(String ssid) {
+    return "softap:" + ssid;
+  }
+
+  static String bleDeviceKey(String address) {
+    return "ble:" + address;
+  }
+
+  // Identity of the device of the last connection, see DeviceCapabilityCache
+  synchronized String deviceKey() {
+    if (connectBleDevice != null) {
+      return bleDeviceKey(connectBleDevice.getAddress());
+    }
+    return connectSsid != null ? softApDeviceKey(connectSsid) : null;
+  }
+
+  private void connectDevice() {
+    BluetoothDevice bleDevice;
+    String serviceUuid;
+    String ssid;
+    String password;
+    boolean joined;
+    synchronized (this) {
+      joined = connectJoined;
+      bleDevice = connectBleDevice;
+      serviceUuid = connectServiceUuid;
+      ssid = connectSsid;
+      password = connectPassword;
+    }
+    if (bleDevice != null) {
+      device.connectBLEDevice(bleDevice, serviceUuid);
+    } else if (joined) {
+      device.connectWiFiDevice();
+    } else {
+      device.connectWiFiDevice(ssid, password);
+    }
+  }
+
+  // A scan started while another one is pending takes its slot, the earlier
+  // callback fails with SCAN_SUPERSEDED
+  void scanNetworks(SessionCallback<List<WiFiAccessPoint>> callback) {
+    startScan(callback, true);
+  }
+
+  // Background variant of scanNetworks: returns false without scanning when a
+  // scan is already pending, so it never displaces a caller's scan
+  boolean scanNetworksIfIdle(SessionCallback<List<WiFiAccessPoint>> callback) {
+    return startScan(callback, false);
+  }
+
+  private boolean startScan(SessionCallback<List<WiFiAccessPoint>> callback, boolean replace) {
+    SessionCallback<List<WiFiAccessPoint>> displaced;
+    synchronized (this) {
+      if (!replace && networkScanCallback != null) {
+        return false;
+      }
+      displaced = networkScanCallback;
+      networkScanCallback = withDeadline("Network scan", deadlines.scanMs, callback);
+    }
+    if (displaced != null) {
+      displaced.onFailure(SCAN_SUPERSEDED, "Another network scan was started on this session", null);
+    }
+    withSecureSession(new Runnable() {
+      @Override
+      public void run() {
+        timer.start(ProvisioningTimings.PHASE_SCAN);
+        try {
+          device.scanNetworks(wiFiScanListener);
+        } catch (Exception e) {
+          wiFiScanListener.onWiFiScanFailed(e);
+        }
+      }
+    });
+    return true;
+  }
+
+  void provision(final String ssid, final String pass, SessionCallback<Void> callback) {
+    callback = withDeadline("Provisioning", deadlines.provisionMs, callback);
+    synchronized (this) {
+      networkProvisionCallback = callback;
+      provisionSsid = ssid;
+      provisionPassword = pass;
+      provisionAttempt = 1;
+    }
+    timer.start(ProvisioningTimings.PHASE_PROVISION);
+    withSecureSession(new Runnable() {
+      @Override
+      public void run() {
+        timer.start(ProvisioningTimings.PHASE_CONFIG_SEND);
+        try {
+          sendConfig(ssid, pass);
+        } catch (Exception e) {
+          failProvisioning("Provisioning failed to start", e, true);
+        }
+      }
+    });
+  }
+
+  void sendCustomData(final String path, final byte[] data, SessionCallback<byte[]> callback) {
+    callback = withDeadline("Custom data", deadlines.customDataMs, callback);
+    synchronized (this) {
+      customDataCallback = callback;
+    }
+    withSecureSession(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          device.sendDataToCustomEndPoint(path, data, responseListener);
+        } catch (Exception e) {
+          responseListener.onFailure(e);
+        }
+      }
+    });
+  }
+
+  // Events that we can watch to see if the device is connected or not
+  // These events are fired by the ESP Provisioning SDK
+  void onConnectionEvent(short eventType) {
+    SessionCallback<Void> callback;
+    switch (eventType) {
+      case ESPConstants.EVENT_DEVICE_CONNECTED:
+        ProvisioningLog.i(id, "connect", "connected", null);
+        deviceConnected = true;
+        resetSecureSession();
+        timer.stop(ProvisioningTimings.PHASE_CONNECT, true);
+        if (connectListener != null) {
+          connectListener.onConnected(this);
+        }
+        callback = takeConnectionCallback();
+        if (callback != null) {
+          callback.onSuccess(null);
+        }
+        break;
+
+      case ESPConstants.EVENT_DEVICE_DISCONNECTED:
+        ProvisioningLog.i(id, "connect", "disconnected", null);
+        deviceConnected = false;
+        resetSecureSession();
+        break;
+
+      case ESPConstants.EVENT_DEVICE_CONNECTION_FAILED:
+        ProvisioningLog.w(id, "connect", "failed", null);
+        timer.stop(ProvisioningTimings.PHASE_CONNECT, false);
+        if (retryConnection(new Exception("The device connection has failed"))) {
+          break;
+        }
+        callback = takeConnectionCallback();
+        if (callback != null) {
+          callback.onFailure("Device connection failed",
+              "The device connection has failed",
+              new Exception());
+        }
+        break;
+    }
+  }
+
+  void disconnect() {
+    device.disconnectDevice();
+    deviceConnected = false;
+    resetSecureSession();
+  }
+
+  // Fails every pending operation with code and disconnects the device.
+  // Results the SDK delivers afterwards find the slots empty and are dropped.
+  // Returns whether an operation was pending.
+  boolean cancel(String code, String message) {
+    SessionCallback<Void> connection = takeConnectionCallback();
+    SessionCallback<List<WiFiAccessPoint>> scan = takeNetworkScanCallback();
+    SessionCallback<Void> provision = takeNetworkProvisionCallback();
+    SessionCallback<byte[]> customData = takeCustomDataCallback();
+    List<Operation> running;
+    synchronized (this) {
+      // Operations waiting for a ping or a rewarm would still go out
+      deferred.clear();
+      running = new ArrayList<>(operations);
+    }
+    timer.stop(ProvisioningTimings.PHASE_CONNECT, false);
+    timer.stop(ProvisioningTimings.PHASE_SCAN, false);
+    timer.stop(ProvisioningTimings.PHASE_CONFIG_SEND, false);
+    timer.stop(ProvisioningTimings.PHASE_CONFIG_APPLY, false);
+    timer.stop(ProvisioningTimings.PHASE_STATUS, false);
+    timer.stop(ProvisioningTimings.PHASE_PROVISION, false);
+    try {
+      disconnect();
+    } catch (Exception e) {
+      ProvisioningLog.w(id, "cancel", "disconnect_failed", e);
+    }
+    Exception reason = new Exception(message);
+    boolean pending = false;
+    if (connection != null) {
+      connection.onFailure(code, message, reason);
+      pending = true;
+    }
+    if (scan != null) {
+      scan.onFailure(code, message, reason);
+      pending = true;
+    }
+    if (provision != null) {
+      provision.onFailure(code, message, reason);
+      pending = true;
+    }
+    if (customData != null) {
+      customData.onFailure(code, message, reason);
+      pending = true;
+    }
+    for (Operation operation : running) {
+      if (operation.end()) {
+        operation.owner.onCancelled(code, message, reason);
+        pending = true;
+      }
+    }
+    ProvisioningLog.i(id, "cancel", pending ? "cancelled" : "nothing_pending", code);
+    return pending;
+  }
+
+  private <T> SessionCallback<T> withDeadline(String operation, long deadlineMs, SessionCallback<T> callback) {
+    DeadlineWheel wheel = deadlineWheel;
+    if (callback == null || wheel == null || deadlineMs <= 0) {
+      return callback;
+    }
+    DeadlineCallback<T> timed = new DeadlineCallback<>(operation, deadlineMs, callback);
+    // Armed before the callback is stored, so it cannot complete unarmed
+    timed.timeout = wheel.schedule(timed, deadlineMs);
+    return timed;
+  }
+
+  // Completes the wrapped callback once: with the operation's result, or
+  // with "Timeout" when the deadline fires first, which also cancels the
+  // session
+  private final class DeadlineCallback<T> implements SessionCallback<T>, Runnable {
+    private final String operation;
+    private final long deadlineMs;
+    private final SessionCallback<T> callback;
+    private final AtomicBoolean done = new AtomicBoolean();
+    volatile DeadlineWheel.Timeout timeout;
+
+    DeadlineCallback(String operation, long deadlineMs, SessionCallback<T> callback) {
+      this.operation = operation;
+      this.deadlineMs = deadlineMs;
+      this.callback = callback;
+    }
+
+    @Override
+    public void onSuccess(T result) {
+      if (done.compareAndSet(false, true)) {
+        timeout.cancel();
+        callback.onSuccess(result);
+      }
+    }
+
+    @Override
+    public void onFailure(String code, String message, Exception e) {
+      if (done.compareAndSet(false, true)) {
+        timeout.cancel();
+        callback.onFailure(code, message, e);
+      }
+    }
+
+    @Override
+    public void run() {
+      if (!done.compareAndSet(false, true)) {
+        return;
+      }
+      String message = operation + " did not finish within " + deadlineMs + " ms";
+      ProvisioningLog.w(id, "deadline", "expired", message, null);
+      callback.onFailure("Timeout", message, new TimeoutException(message));
+      cancel("Cancelled", operation + " timed out, the device has been disconnected");
+    }
+  }
+
+  // Handle of an operation registered with startOperation. Its owner checks
+  // isDone before every request and calls finish once it completes.
+  final class Operation implements Runnable {
+    private final String name;
+    private final long deadlineMs;
+    private final OperationOwner owner;
+    private final AtomicBoolean done = new AtomicBoolean();
+    private volatile DeadlineWheel.Timeout timeout;
+
+    private Operation(String name, long deadlineMs, OperationOwner owner) {
+      this.name = name;
+      this.deadlineMs = deadlineMs;
+      this.owner = owner;
+    }
+
+    // Finished, cancelled or past its deadline
+    boolean isDone() {
+      return done.get();
+    }
+
+    // Returns false when the operation was cancelled first, the owner has
+    // been told already then
+    boolean finish() {
+      return end();
+    }
+
+    private boolean end() {
+      if (!done.compareAndSet(false, true)) {
+        return false;
+      }
+      DeadlineWheel.Timeout current = timeout;
+      if (current != null) {
+        current.cancel();
+      }
+      synchronized (ProvisioningSession.this) {
+        operations.remove(this);
+      }
+      return true;
+    }
+
+    // The deadline expired
+    @Override
+    public void run() {
+      if (!end()) {
+        return;
+      }
+      String message = name + " did not finish within " + deadlineMs + " ms";
+      ProvisioningLog.w(id, "deadline", "expired", message, null);
+      owner.onCancelled("Timeout", message, new TimeoutException(message));
+      cancel("Cancelled", name + " timed out, the device has been disconnected");
+    }
+  }
+
+  // A new or closed transport has no encrypted session yet
+  private synchronized void resetSecureSession() {
+    established = false;
+    stale = false;
+  }
+}
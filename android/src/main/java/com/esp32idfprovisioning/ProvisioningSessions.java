@@ -0,0 +1,101 @@
+package com.esp32idfprovisioning;
+
+import android.bluetooth.BluetoothDevice;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+// Registry of open sessions, keyed by the session id handed out to JS
+class ProvisioningSessions {
+  private final Map<String, ProvisioningSession> sessions = new ConcurrentHashMap<>();
+  private final AtomicInteger sessionCounter = new AtomicInteger();
+  // DeviceConnectionEvent does not say which device it belongs to, so connection
+  // events are routed to the session that last started a connection
+  private final AtomicReference<ProvisioningSession> connectingSession = new AtomicReference<>();
+
+  String nextId() {
+    return "session-" + sessionCounter.incrementAndGet();
+  }
+
+  void put(ProvisioningSession session) {
+    sessions.put(session.id, session);
+  }
+
+  ProvisioningSession get(String sessionId) {
+    return sessions.get(sessionId);
+  }
+
+  ProvisioningSession remove(String sessionId) {
+    ProvisioningSession session = sessions.remove(sessionId);
+    if (session != null) {
+      clearConnecting(session);
+    }
+    return session;
+  }
+
+  Set<String> ids() {
+    return sessions.keySet();
+  }
+
+  Collection<ProvisioningSession> all() {
+    return sessions.values();
+  }
+
+  void connectWifiDevice(ProvisioningSession session, String ssid, String password,
+      SessionCallback<Void> callback) {
+    connectingSession.set(session);
+    session.connectWifiDevice(ssid, password, untilConnected(session, callback));
+  }
+
+  void connectJoinedWifiDevice(ProvisioningSession session, String ssid, SessionCallback<Void> callback) {
+    connectingSession.set(session);
+    session.connectJoinedWifiDevice(ssid, untilConnected(session, callback));
+  }
+
+  void connectBleDevice(ProvisioningSession session, BluetoothDevice bleDevice, String primaryServiceUuid,
+      SessionCallback<Void> callback) {
+    connectingSession.set(session);
+    session.connectBleDevice(bleDevice, primaryServiceUuid, untilConnected(session, callback));
+  }
+
+  // The session stops being the connection target once its connect has
+  // succeeded, failed for good, timed out or been cancelled
+  private SessionCallback<Void> untilConnected(final ProvisioningSession session,
+      final SessionCallback<Void> callback) {
+    return new SessionCallback<Void>() {
+      @Override
+      public void onSuccess(Void result) {
+        clearConnecting(session);
+        callback.onSuccess(result);
+      }
+
+      @Override
+      public void onFailure(String code, String message, Exception e) {
+        clearConnecting(session);
+        callback.onFailure(code, message, e);
+      }
+    };
+  }
+
+  private void clearConnecting(ProvisioningSession session) {
+    connectingSession.compareAndSet(session, null);
+  }
+
+  // Session that should receive the next DeviceConnectionEvent. Outside a
+  // connect the event can only be attributed when a single session is open;
+  // with several open it returns null and the event is dropped rather than
+  // applied to an unrelated session.
+  ProvisioningSession connectionTarget() {
+    ProvisioningSession session = connectingSession.get();
+    if (session == null && sessions.size() == 1) {
+      for (ProvisioningSession only : sessions.values()) {
+        session = only;
+      }
+    }
+    return session;
+  }
+}
@@ -0,0 +1,162 @@
+package com.esp32idfprovisioning;
+
+import android.os.SystemClock;
+
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.WritableMap;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Records how long each provisioning phase takes per device and aggregates the
+// durations across devices, so slow phases can be found per phone model.
+// Timestamps come from SystemClock.elapsedRealtimeNanos, which is monotonic.
+//
+// Phases follow the SDK callbacks:
+// - connect: connectWiFiDevice -> EVENT_DEVICE_CONNECTED
+// - scan: scanNetworks -> onWifiListReceived
+// - configSend: provision -> wifiConfigSent, includes the security handshake
+//   when the session is not established yet
+// - configApply: wifiConfigSent -> wifiConfigApplied
+// - status: wifiConfigApplied -> deviceProvisioningSuccess
+// - provision: provision -> deviceProvisioningSuccess
+// - handshake: initSession -> its response, for sessions established ahead of
+//   time or re-established after going idle
+class ProvisioningTimings {
+  static final String PHASE_CONNECT = "connect";
+  static final String PHASE_SCAN = "scan";
+  static final String PHASE_CONFIG_SEND = "configSend";
+  static final String PHASE_CONFIG_APPLY = "configApply";
+  static final String PHASE_STATUS = "status";
+  static final String PHASE_PROVISION = "provision";
+  static final String PHASE_HANDSHAKE = "handshake";
+
+  // Percentiles are computed over the most recent samples of each phase
+  private static final int SAMPLES_PER_PHASE = 512;
+
+  interface Listener {
+    void onPhaseCompleted(String sessionId, String phase, long durationNanos, boolean success);
+  }
+
+  private final Map<String, PhaseRecorder> phases = new LinkedHashMap<>();
+  private volatile Listener listener;
+
+  void setListener(Listener listener) {
+    this.listener = listener;
+  }
+
+  SessionTimer forSession(String sessionId) {
+    return new SessionTimer(sessionId);
+  }
+
+  private void record(String sessionId, String phase, long durationNanos, boolean success) {
+    synchronized (phases) {
+      PhaseRecorder recorder = phases.get(phase);
+      if (recorder == null) {
+        recorder = new PhaseRecorder();
+        phases.put(phase, recorder);
+      }
+      recorder.record(durationNanos, success);
+    }
+    Listener current = listener;
+    if (current != null) {
+      current.onPhaseCompleted(sessionId, phase, durationNanos, success);
+    }
+  }
+
+  // { [phase]: { count, failures, meanMs, p50Ms, p95Ms, p99Ms, maxMs } }
+  WritableMap toWritableMap() {
+    WritableMap res = Arguments.createMap();
+    synchronized (phases) {
+      for (Map.Entry<String, PhaseRecorder> entry : phases.entrySet()) {
+        res.putMap(entry.getKey(), entry.getValue().toWritableMap());
+      }
+    }
+    return res;
+  }
+
+  void reset() {
+    synchronized (phases) {
+      phases.clear();
+    }
+  }
+
+  // Open phases of one session
+  class SessionTimer {
+    private final String sessionId;
+    private final Map<String, Long> startedAt = new HashMap<>();
+
+    private SessionTimer(String sessionId) {
+      this.sessionId = sessionId;
+    }
+
+    synchronized void start(String phase) {
+      startedAt.put(phase, SystemClock.elapsedRealtimeNanos());
+    }
+
+    // Ends a phase; ignored if the phase was not started
+    void stop(String phase, boolean success) {
+      Long start;
+      synchronized (this) {
+        start = startedAt.remove(phase);
+      }
+      if (start != null) {
+        record(sessionId, phase, SystemClock.elapsedRealtimeNanos() - start, success);
+      }
+    }
+
+    // Ends a phase and starts the next one at the same instant
+    void next(String finished, String started) {
+      stop(finished, true);
+      start(started);
+    }
+  }
+
+  private static class PhaseRecorder {
+    private final long[] samples = new long[SAMPLES_PER_PHASE];
+    private int count;
+    private int failures;
+    private long totalNanos;
+    private long maxNanos;
+
+    void record(long durationNanos, boolean success) {
+      if (!success) {
+        failures++;
+        return;
+      }
+      samples[count % SAMPLES_PER_PHASE] = durationNanos;
+      count++;
+      totalNanos += durationNanos;
+      maxNanos = Math.max(maxNanos, durationNanos);
+    }
+
+    WritableMap toWritableMap() {
+      int size = Math.min(count, SAMPLES_PER_PHASE);
+      long[] sorted = Arrays.copyOf(samples, size);
+      Arrays.sort(sorted);
+      WritableMap res = Arguments.createMap();
+      res.putInt("count", count);
+      res.putInt("failures", failures);
+      res.putDouble("meanMs", count == 0 ? 0 : toMs(totalNanos / count));
+      res.putDouble("p50Ms", percentile(sorted, 0.50));
+      res.putDouble("p95Ms", percentile(sorted, 0.95));
+      res.putDouble("p99Ms", percentile(sorted, 0.99));
+      res.putDouble("maxMs", toMs(maxNanos));
+      return res;
+    }
+
+    private static double percentile(long[] sorted, double quantile) {
+      if (sorted.length == 0) {
+        return 0;
+      }
+      int index = (int) Math.ceil(quantile * sorted.length) - 1;
+      return toMs(sorted[Math.max(0, Math.min(index, sorted.length - 1))]);
+    }
+  }
+
+  static double toMs(long nanos) {
+    return nanos / 1e6;
+  }
+}
@@ -0,0 +1,86 @@
+package com.esp32idfprovisioning;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+// Retries a failed session stage after an exponential backoff with jitter.
+// Only the failing stage is repeated: a failed join rejoins the softAP, a failed
+// config send or apply re-sends the credentials over the existing connection.
+// Every stage defaults to a single attempt, so nothing is retried until a
+// policy is set.
+class RetryEngine {
+  static final String STAGE_CONNECT = "connect";
+  static final String STAGE_PROVISION = "provision";
+
+  interface Listener {
+    void onRetryScheduled(String sessionId, String stage, int attempt, int maxAttempts, long delayMs,
+        Exception reason);
+  }
+
+  static class StagePolicy {
+    static final StagePolicy NO_RETRY = new StagePolicy(1, 0, 0, 0);
+
+    final int maxAttempts;
+    final long baseDelayMs;
+    final long maxDelayMs;
+    // Fraction of the delay that is randomized, 0 = fixed delay, 1 = full jitter
+    final double jitter;
+
+    StagePolicy(int maxAttempts, long baseDelayMs, long maxDelayMs, double jitter) {
+      this.maxAttempts = Math.max(1, maxAttempts);
+      this.baseDelayMs = Math.max(0, baseDelayMs);
+      this.maxDelayMs = Math.max(this.baseDelayMs, maxDelayMs);
+      this.jitter = Math.max(0, Math.min(1, jitter));
+    }
+
+    // Delay before the given attempt, attempt 2 being the first retry
+    long delayBefore(int attempt) {
+      int exponent = Math.min(attempt - 2, 30);
+      long delay = Math.min(maxDelayMs, baseDelayMs << exponent);
+      long randomized = (long) (delay * jitter * ThreadLocalRandom.current().nextDouble());
+      return delay - randomized;
+    }
+  }
+
+  private final ScheduledExecutorService scheduler;
+  private final Map<String, StagePolicy> policies = new HashMap<>();
+  private volatile Listener listener;
+
+  RetryEngine(ScheduledExecutorService scheduler) {
+    this.scheduler = scheduler;
+  }
+
+  void setListener(Listener listener) {
+    this.listener = listener;
+  }
+
+  synchronized void setPolicy(String stage, StagePolicy policy) {
+    policies.put(stage, policy);
+  }
+
+  synchronized StagePolicy getPolicy(String stage) {
+    StagePolicy policy = policies.get(stage);
+    return policy != null ? policy : StagePolicy.NO_RETRY;
+  }
+
+  // Schedules attempt number failedAttempt + 1 of a stage. Returns false when
+  // the stage has no attempts left, in which case the caller reports the failure.
+  boolean retry(String sessionId, String stage, int failedAttempt, Exception reason, Runnable attempt) {
+    StagePolicy policy = getPolicy(stage);
+    int nextAttempt = failedAttempt + 1;
+    if (nextAttempt > policy.maxAttempts) {
+      return false;
+    }
+    long delayMs = policy.delayBefore(nextAttempt);
+    ProvisioningLog.d(sessionId, stage, "retry_scheduled", delayMs);
+    Listener current = listener;
+    if (current != null) {
+      current.onRetryScheduled(sessionId, stage, nextAttempt, policy.maxAttempts, delayMs, reason);
+    }
+    scheduler.schedule(attempt, delayMs, TimeUnit.MILLISECONDS);
+    return true;
+  }
+}
@@ -0,0 +1,93 @@
+package com.esp32idfprovisioning;
+
+import android.os.SystemClock;
+
+import com.espressif.provisioning.WiFiAccessPoint;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// Wi-Fi scan results keyed by site. Devices on the same site see the same
+// access points, so a scan made through one device can be handed out to the
+// next one instead of spending several seconds on the ESP32 radio again.
+// Entries expire after ttlMs and the least recently used site is evicted once
+// more than maxEntries sites are cached.
+class ScanResultCache {
+  static final long DEFAULT_TTL_MS = 5 * 60 * 1000;
+  static final int DEFAULT_MAX_ENTRIES = 16;
+
+  static class CachedScan {
+    final List<WiFiAccessPoint> networks;
+    final long scannedAt;
+
+    CachedScan(List<WiFiAccessPoint> networks, long scannedAt) {
+      this.networks = networks;
+      this.scannedAt = scannedAt;
+    }
+
+    long ageMs() {
+      return SystemClock.elapsedRealtime() - scannedAt;
+    }
+  }
+
+  private long ttlMs = DEFAULT_TTL_MS;
+  private int maxEntries = DEFAULT_MAX_ENTRIES;
+  private final Set<String> refreshing = new HashSet<>();
+  private final LinkedHashMap<String, CachedScan> entries = new LinkedHashMap<String, CachedScan>(16, 0.75f, true) {
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, CachedScan> eldest) {
+      return size() > maxEntries;
+    }
+  };
+
+  synchronized void configure(long ttlMs, int maxEntries) {
+    this.ttlMs = ttlMs;
+    this.maxEntries = Math.max(1, maxEntries);
+    // Shrink right away when the bound was lowered
+    while (entries.size() > this.maxEntries) {
+      String eldest = entries.keySet().iterator().next();
+      entries.remove(eldest);
+    }
+  }
+
+  // Returns the cached scan of a site, or null when there is none or it expired
+  synchronized CachedScan get(String siteKey) {
+    CachedScan entry = entries.get(siteKey);
+    if (entry == null) {
+      return null;
+    }
+    if (entry.ageMs() > ttlMs) {
+      entries.remove(siteKey);
+      return null;
+    }
+    return entry;
+  }
+
+  synchronized CachedScan put(String siteKey, List<WiFiAccessPoint> networks) {
+    CachedScan entry = new CachedScan(Collections.unmodifiableList(new ArrayList<>(networks)), SystemClock.elapsedRealtime());
+    entries.put(siteKey, entry);
+    return entry;
+  }
+
+  synchronized void clear(String siteKey) {
+    if (siteKey == null) {
+      entries.clear();
+    } else {
+      entries.remove(siteKey);
+    }
+  }
+
+  // Marks a site as being refreshed, returns false if a refresh is already running
+  synchronized boolean beginRefresh(String siteKey) {
+    return refreshing.add(siteKey);
+  }
+
+  synchronized void endRefresh(String siteKey) {
+    refreshing.remove(siteKey);
+  }
+}
@@ -0,0 +1,56 @@
+package com.esp32idfprovisioning;
+
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.WritableMap;
+
+import com.espressif.provisioning.WiFiAccessPoint;
+
+// Access point seen by the device. Unlike WiFiAccessPoint it keeps the BSSID and
+// channel reported by the prov-scan endpoint; both are unknown (null / 0) when
+// the entry comes from the SDK's own scanNetworks.
+class ScannedAccessPoint {
+  final String ssid;
+  final String bssid;
+  final int channel;
+  final int rssi;
+  final int security;
+
+  ScannedAccessPoint(String ssid, String bssid, int channel, int rssi, int security) {
+    this.ssid = ssid;
+    this.bssid = bssid;
+    this.channel = channel;
+    this.rssi = rssi;
+    this.security = security;
+  }
+
+  static ScannedAccessPoint fromWiFiAccessPoint(WiFiAccessPoint wiFiAccessPoint) {
+    return new ScannedAccessPoint(wiFiAccessPoint.getWifiName(), null, 0, wiFiAccessPoint.getRssi(),
+        wiFiAccessPoint.getSecurity());
+  }
+
+  static String formatBssid(byte[] bssid) {
+    if (bssid == null || bssid.length == 0) {
+      return null;
+    }
+    StringBuilder sb = new StringBuilder(bssid.length * 3);
+    for (int i = 0; i < bssid.length; i++) {
+      if (i > 0) {
+        sb.append(':');
+      }
+      sb.append(String.format("%02x", bssid[i] & 0xff));
+    }
+    return sb.toString();
+  }
+
+  WritableMap toWritableMap() {
+    WritableMap res = Arguments.createMap();
+    res.putString("ssid", ssid);
+    res.putInt("rssi", rssi);
+    res.putInt("security", security);
+    res.putInt("channel", channel);
+    if (bssid != null) {
+      res.putString("bssid", bssid);
+    }
+    return res;
+  }
+}
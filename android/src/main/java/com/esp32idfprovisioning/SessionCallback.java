@@ -0,0 +1,10 @@
+package com.esp32idfprovisioning;
+
+// Completion of a single asynchronous operation on a ProvisioningSession.
+// JS calls wrap their Promise in a PromiseCallback, native pipelines (batch
+// provisioning) wait on a StageWaiter instead.
+interface SessionCallback<T> {
+  void onSuccess(T result);
+
+  void onFailure(String code, String message, Exception e);
+}
@@ -0,0 +1,231 @@
+package com.esp32idfprovisioning;
+
+import android.os.SystemClock;
+
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.WritableMap;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import espressif.Constants;
+import espressif.WifiScan;
+
+// Keeps the encrypted sessions of connected devices warm between operations, so
+// repeated scans, custom data requests and provisioning on the same device skip
+// the security handshake.
+//
+// Off until configured, pings are requests the caller did not make. Once on,
+// one ticker on the module scheduler walks the sessions every TICK_MS, and
+// stops when no sessions remain. A session
+// idle for intervalMs gets a ping (ProvisioningSession.ping), which keeps the
+// device from dropping it; one without operations for idleTimeoutMs is left to
+// expire and is re-established by its next operation. Reuse is counted per
+// operation: a warm hit ran on an established session, a cold start needed a
+// handshake first.
+class SessionKeepAlive implements ProvisioningSession.ReuseListener {
+  static final long DEFAULT_INTERVAL_MS = 15000;
+  static final long DEFAULT_IDLE_TIMEOUT_MS = 120000;
+  static final long MIN_INTERVAL_MS = 2000;
+  private static final long TICK_MS = 1000;
+
+  // A prov-scan status request, the cheapest request the firmware answers
+  static final ProvisioningSession.Probe SCAN_STATUS_PROBE = new ProvisioningSession.Probe() {
+    @Override
+    public String path() {
+      return PagedWiFiScanner.SCAN_ENDPOINT;
+    }
+
+    @Override
+    public byte[] request() {
+      return PagedWiFiScanner.statusRequest().toByteArray();
+    }
+
+    @Override
+    public boolean isHealthy(byte[] response) {
+      try {
+        return WifiScan.WiFiScanPayload.parseFrom(response).getStatus() == Constants.Status.Success;
+      } catch (Exception e) {
+        return false;
+      }
+    }
+  };
+
+  private final ProvisioningSessions sessions;
+  private final ScheduledExecutorService scheduler;
+
+  private volatile boolean enabled;
+  private volatile long intervalMs = DEFAULT_INTERVAL_MS;
+  private volatile long idleTimeoutMs = DEFAULT_IDLE_TIMEOUT_MS;
+  private final ProvisioningSession.Probe probe;
+  private ScheduledFuture<?> ticker;
+
+  private final AtomicLong warmHits = new AtomicLong();
+  private final AtomicLong coldStarts = new AtomicLong();
+  private final AtomicLong pings = new AtomicLong();
+  private final AtomicLong pingFailures = new AtomicLong();
+  private final AtomicLong rewarms = new AtomicLong();
+  private final AtomicLong rewarmFailures = new AtomicLong();
+  private final AtomicLong idleExpirations = new AtomicLong();
+
+  SessionKeepAlive(ProvisioningSessions sessions, ScheduledExecutorService scheduler) {
+    this(sessions, scheduler, SCAN_STATUS_PROBE);
+  }
+
+  SessionKeepAlive(ProvisioningSessions sessions, ScheduledExecutorService scheduler,
+      ProvisioningSession.Probe probe) {
+    this.sessions = sessions;
+    this.scheduler = scheduler;
+    this.probe = probe;
+  }
+
+  synchronized void configure(boolean enabled, long intervalMs, long idleTimeoutMs) {
+    this.enabled = enabled;
+    this.intervalMs = Math.max(MIN_INTERVAL_MS, intervalMs);
+    this.idleTimeoutMs = Math.max(this.intervalMs, idleTimeoutMs);
+    if (enabled) {
+      start();
+    } else {
+      stop();
+    }
+  }
+
+  // Starts the ticker, unless it runs already or keep-alive is disabled
+  synchronized void start() {
+    if (!enabled || ticker != null) {
+      return;
+    }
+    ticker = scheduler.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        tick(SystemClock.elapsedRealtime());
+      }
+    }, TICK_MS, TICK_MS, TimeUnit.MILLISECONDS);
+  }
+
+  synchronized void stop() {
+    if (ticker != null) {
+      ticker.cancel(false);
+      ticker = null;
+    }
+  }
+
+  synchronized boolean isRunning() {
+    return ticker != null;
+  }
+
+  // Checked again under the lock, a session created meanwhile calls start
+  // after it is added and finds the ticker either running or stopped
+  private synchronized void stopIfNoSessions() {
+    if (sessions.all().isEmpty()) {
+      stop();
+    }
+  }
+
+  void tick(long now) {
+    if (sessions.all().isEmpty()) {
+      stopIfNoSessions();
+      return;
+    }
+    for (final ProvisioningSession session : sessions.all()) {
+      if (!session.deviceConnected || !session.isEstablished()) {
+        continue;
+      }
+      if (session.inactiveMs(now) >= idleTimeoutMs) {
+        if (session.expire()) {
+          idleExpirations.incrementAndGet();
+          ProvisioningLog.d(session.id, "keepalive", "idle_expired", idleTimeoutMs);
+        }
+        continue;
+      }
+      if (session.idleMs(now) < intervalMs) {
+        continue;
+      }
+      boolean sent = session.ping(probe, new SessionCallback<Void>() {
+        @Override
+        public void onSuccess(Void result) {
+        }
+
+        @Override
+        public void onFailure(String code, String message, Exception e) {
+          pingFailures.incrementAndGet();
+          ProvisioningLog.w(session.id, "keepalive", "ping_failed", message, e);
+        }
+      });
+      if (sent) {
+        pings.incrementAndGet();
+      }
+    }
+  }
+
+  @Override
+  public void onOperation(boolean warm) {
+    (warm ? warmHits : coldStarts).incrementAndGet();
+  }
+
+  @Override
+  public void onRewarm() {
+    rewarms.incrementAndGet();
+  }
+
+  @Override
+  public void onRewarmFailed() {
+    rewarmFailures.incrementAndGet();
+  }
+
+  long warmHits() {
+    return warmHits.get();
+  }
+
+  long coldStarts() {
+    return coldStarts.get();
+  }
+
+  long pings() {
+    return pings.get();
+  }
+
+  long pingFailures() {
+    return pingFailures.get();
+  }
+
+  long rewarms() {
+    return rewarms.get();
+  }
+
+  long idleExpirations() {
+    return idleExpirations.get();
+  }
+
+  // { enabled, intervalMs, idleTimeoutMs, warmHits, coldStarts, hitRate, pings,
+  //   pingFailures, rewarms, rewarmFailures, idleExpirations }
+  WritableMap toWritableMap() {
+    long hits = warmHits.get();
+    long misses = coldStarts.get();
+    WritableMap res = Arguments.createMap();
+    res.putBoolean("enabled", enabled);
+    res.putDouble("intervalMs", intervalMs);
+    res.putDouble("idleTimeoutMs", idleTimeoutMs);
+    res.putDouble("warmHits", hits);
+    res.putDouble("coldStarts", misses);
+    res.putDouble("hitRate", hits + misses > 0 ? (double) hits / (hits + misses) : 0);
+    res.putDouble("pings", pings.get());
+    res.putDouble("pingFailures", pingFailures.get());
+    res.putDouble("rewarms", rewarms.get());
+    res.putDouble("rewarmFailures", rewarmFailures.get());
+    res.putDouble("idleExpirations", idleExpirations.get());
+    return res;
+  }
+
+  void reset() {
+    warmHits.set(0);
+    coldStarts.set(0);
+    pings.set(0);
+    pingFailures.set(0);
+    rewarms.set(0);
+    rewarmFailures.set(0);
+    idleExpirations.set(0);
+  }
+}
@@ -0,0 +1,75 @@
+package com.esp32idfprovisioning;
+
+import com.espressif.provisioning.ESPConstants;
+import com.facebook.react.bridge.ReadableMap;
+
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+// Security scheme of a device session, read from { security, username }.
+// security is 0, 1 or 2 and defaults to 1, which is what the module always
+// used. Security2 authenticates with SRP6a using username and the proof of
+// possession as password.
+class SessionSecurity {
+  // Username of the ESP-IDF provisioning examples
+  static final String DEFAULT_USERNAME = "wifiprov";
+
+  static final SessionSecurity DEFAULT = new SessionSecurity(ESPConstants.SecurityType.SECURITY_1, null);
+
+  final ESPConstants.SecurityType type;
+  // Security2 only
+  final String username;
+
+  SessionSecurity(ESPConstants.SecurityType type, String username) {
+    this.type = type;
+    this.username = username;
+  }
+
+  static SessionSecurity fromReadableMap(ReadableMap options) {
+    if (options == null || !options.hasKey("security") || options.isNull("security")) {
+      return DEFAULT;
+    }
+    String username = options.hasKey("username") && !options.isNull("username")
+        ? options.getString("username")
+        : null;
+    return forVersion(options.getInt("security"), username);
+  }
+
+  // username null for the default one
+  static SessionSecurity forVersion(int version, String username) {
+    switch (version) {
+      case 0:
+        return new SessionSecurity(ESPConstants.SecurityType.SECURITY_0, null);
+      case 1:
+        return DEFAULT;
+      case 2:
+        return new SessionSecurity(ESPConstants.SecurityType.SECURITY_2,
+            username != null ? username : DEFAULT_USERNAME);
+      default:
+        throw new IllegalArgumentException("Unsupported security version " + version);
+    }
+  }
+
+  int version() {
+    return type.ordinal();
+  }
+
+  // Looks up and initializes the JCA services the handshakes use, AES-CTR and
+  // SHA-256 for Security1, AES-GCM and SHA-512 for Security2, and seeds
+  // SecureRandom. The first lookup of each scans the installed providers.
+  static void warmUpCrypto() throws GeneralSecurityException {
+    byte[] bytes = new byte[16];
+    new SecureRandom().nextBytes(bytes);
+    SecretKeySpec key = new SecretKeySpec(bytes, "AES");
+    Cipher.getInstance("AES/CTR/NoPadding").init(Cipher.ENCRYPT_MODE, key, new IvParameterSpec(bytes));
+    Cipher.getInstance("AES/GCM/NoPadding").init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(128, bytes, 0, 12));
+    MessageDigest.getInstance("SHA-256").digest(bytes);
+    MessageDigest.getInstance("SHA-512").digest(bytes);
+  }
+}
@@ -0,0 +1,239 @@
+package com.esp32idfprovisioning;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.wifi.ScanResult;
+import android.net.wifi.WifiManager;
+import android.os.SystemClock;
+
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+// Finds ESP device softAPs with the phone's own Wi-Fi scans, so technicians
+// do not have to type their SSIDs or pick them in the system settings.
+//
+// Android allows an app 4 scans per 2 minutes in the foreground and silently
+// answers further startScan calls with the previous results. The discovery
+// therefore reads the system's cached scan results every intervalMs, which is
+// free and also picks up scans run by the system or other apps, and only
+// starts a scan of its own when the ScanBudget has room for it. The SDK's
+// WiFiScanner calls startScan on every search, which is why it is not used.
+//
+// Everything but the broadcast receiver runs on the module's scheduler.
+class SoftApDiscovery {
+  static final int MAX_SCANS = 4;
+  static final long SCAN_WINDOW_MS = 2 * 60 * 1000;
+  static final long DEFAULT_INTERVAL_MS = 5000;
+  private static final String JOURNAL_SOFTAP_PREFIX = "softap:";
+
+  interface Listener {
+    void onDeviceFound(SoftApIndex.SoftAp device, long nowMs);
+  }
+
+  // Sliding window of the scans started by the app. Scans are also spread
+  // evenly over the window, so the budget is not spent in the first seconds
+  // and then leaves the discovery without fresh results for minutes.
+  static class ScanBudget {
+    private final long windowMs;
+    private final long spacingMs;
+    // Start times of the scans in the window, oldest at head
+    private final long[] startedAt;
+    private int head;
+    private int count;
+
+    ScanBudget(int maxScans, long windowMs) {
+      this.windowMs = windowMs;
+      this.spacingMs = windowMs / maxScans;
+      this.startedAt = new long[maxScans];
+    }
+
+    synchronized boolean tryAcquire(long nowMs) {
+      if (nowMs < nextAt(nowMs)) {
+        return false;
+      }
+      startedAt[(head + count) % startedAt.length] = nowMs;
+      count++;
+      return true;
+    }
+
+    // Earliest time a scan may be started, nowMs when one may be started now
+    synchronized long nextAt(long nowMs) {
+      expire(nowMs);
+      long next = nowMs;
+      if (count == startedAt.length) {
+        next = startedAt[head] + windowMs;
+      }
+      if (count > 0) {
+        next = Math.max(next, startedAt[(head + count - 1) % startedAt.length] + spacingMs);
+      }
+      return Math.max(next, nowMs);
+    }
+
+    synchronized int remaining(long nowMs) {
+      expire(nowMs);
+      return startedAt.length - count;
+    }
+
+    private void expire(long nowMs) {
+      while (count > 0 && nowMs - startedAt[head] >= windowMs) {
+        head = (head + 1) % startedAt.length;
+        count--;
+      }
+    }
+  }
+
+  private final Context context;
+  private final ScheduledExecutorService scheduler;
+  private final SoftApIndex index;
+  private final ProvisioningJournal journal;
+  private final Listener listener;
+  // Kept across discoveries, the system counts every scan of the app
+  private final ScanBudget budget = new ScanBudget(MAX_SCANS, SCAN_WINDOW_MS);
+  private WifiManager wifiManager;
+  private BroadcastReceiver receiver;
+  private ScheduledFuture<?> ticks;
+  private int scansStarted;
+  private int scansDeferred;
+
+  SoftApDiscovery(Context context, ScheduledExecutorService scheduler, SoftApIndex index, ProvisioningJournal journal,
+      Listener listener) {
+    this.context = context.getApplicationContext();
+    this.scheduler = scheduler;
+    this.index = index;
+    this.journal = journal;
+    this.listener = listener;
+  }
+
+  synchronized boolean isRunning() {
+    return ticks != null;
+  }
+
+  // Starts the discovery, or changes its settings when it is running
+  synchronized void start(String prefix, long intervalMs, long staleMs) {
+    if (wifiManager == null) {
+      wifiManager = (WifiManager) context.getSystemService(Context.WIFI_SERVICE);
+      if (wifiManager == null) {
+        throw new IllegalStateException("Wi-Fi is not available on this phone");
+      }
+    }
+    index.configure(prefix, staleMs);
+    if (ticks != null) {
+      ticks.cancel(false);
+    }
+    if (receiver == null) {
+      receiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+          scheduler.execute(new Runnable() {
+            @Override
+            public void run() {
+              readResults();
+            }
+          });
+        }
+      };
+      context.registerReceiver(receiver, new IntentFilter(WifiManager.SCAN_RESULTS_AVAILABLE_ACTION));
+    }
+    ticks = scheduler.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        tick();
+      }
+    }, 0, Math.max(1000, intervalMs), TimeUnit.MILLISECONDS);
+    ProvisioningLog.d(null, "discovery", "started", prefix);
+  }
+
+  synchronized void stop() {
+    if (ticks == null) {
+      return;
+    }
+    ticks.cancel(false);
+    ticks = null;
+    try {
+      context.unregisterReceiver(receiver);
+    } catch (IllegalArgumentException e) {
+      ProvisioningLog.w(null, "discovery", "receiver_not_registered", e);
+    }
+    receiver = null;
+    ProvisioningLog.d(null, "discovery", "stopped", scansStarted);
+  }
+
+  synchronized int scansStarted() {
+    return scansStarted;
+  }
+
+  synchronized int scansDeferred() {
+    return scansDeferred;
+  }
+
+  int scansRemaining() {
+    return budget.remaining(SystemClock.elapsedRealtime());
+  }
+
+  private void tick() {
+    refreshProvisioned();
+    readResults();
+    long now = SystemClock.elapsedRealtime();
+    if (!budget.tryAcquire(now)) {
+      synchronized (this) {
+        scansDeferred++;
+      }
+      return;
+    }
+    synchronized (this) {
+      scansStarted++;
+    }
+    try {
+      // false when the system throttled the scan anyway, the cached results
+      // read on the next tick are then all there is
+      if (!wifiManager.startScan()) {
+        ProvisioningLog.d(null, "discovery", "scan_throttled");
+      }
+    } catch (Exception e) {
+      ProvisioningLog.w(null, "discovery", "scan_failed", e);
+    }
+  }
+
+  private void readResults() {
+    List<ScanResult> results;
+    try {
+      results = wifiManager.getScanResults();
+    } catch (SecurityException e) {
+      // Reading scan results needs the location permission
+      ProvisioningLog.w(null, "discovery", "results_not_permitted", e);
+      return;
+    }
+    if (results == null) {
+      return;
+    }
+    long now = SystemClock.elapsedRealtime();
+    for (ScanResult result : results) {
+      // timestamp is in microseconds since boot, like elapsedRealtime
+      SoftApIndex.SoftAp changed = index.onSighting(result.SSID, result.BSSID, result.capabilities, result.level,
+          result.frequency, result.timestamp / 1000, now);
+      if (changed != null) {
+        listener.onDeviceFound(changed, now);
+      }
+    }
+  }
+
+  // Jobs journaled with a jobId are not recognized here, their key does not
+  // carry the SSID
+  private void refreshProvisioned() {
+    for (ProvisioningJournal.JobState state : journal.jobs()) {
+      if (!state.key.startsWith(JOURNAL_SOFTAP_PREFIX)
+          || !state.is(BatchProvisioner.STAGE_PROVISION, BatchProvisioner.STATUS_COMPLETED)) {
+        continue;
+      }
+      int end = state.key.indexOf('/', JOURNAL_SOFTAP_PREFIX.length());
+      String ssid = state.key.substring(JOURNAL_SOFTAP_PREFIX.length(), end < 0 ? state.key.length() : end);
+      if (!index.isProvisioned(ssid)) {
+        index.markProvisioned(ssid);
+      }
+    }
+  }
+}
@@ -0,0 +1,197 @@
+package com.esp32idfprovisioning;
+
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.WritableMap;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// ESP device softAPs seen by the phone's own Wi-Fi scans, keyed by SSID. The
+// same access point shows up in every scan result list the system hands out,
+// so sightings are merged and only new devices or a clear change of signal
+// are reported to JS.
+//
+// Devices that are already provisioned, or claimed by a pipeline that is
+// connecting to them, are kept in the index but never handed out by
+// claimNext, which always picks the strongest signal, i.e. the closest board.
+class SoftApIndex {
+  static final int DEFAULT_MAX_DEVICES = 64;
+  // Three scan periods of the discovery, see SoftApDiscovery
+  static final long DEFAULT_STALE_MS = 90 * 1000;
+  // How long a claimed device is kept from claimNext when it is not released
+  static final long DEFAULT_CLAIM_MS = 2 * 60 * 1000;
+  // Change of RSSI, in dBm, that is reported again
+  static final int RSSI_REPORT_DELTA = 4;
+
+  // Immutable, every sighting replaces the entry
+  static class SoftAp {
+    final String ssid;
+    final String bssid;
+    final String capabilities;
+    final int rssi;
+    final int frequency;
+    final long lastSeenMs;
+    // RSSI at the time the device was last reported to JS
+    final int reportedRssi;
+
+    SoftAp(String ssid, String bssid, String capabilities, int rssi, int frequency, long lastSeenMs,
+        int reportedRssi) {
+      this.ssid = ssid;
+      this.bssid = bssid;
+      this.capabilities = capabilities;
+      this.rssi = rssi;
+      this.frequency = frequency;
+      this.lastSeenMs = lastSeenMs;
+      this.reportedRssi = reportedRssi;
+    }
+
+    boolean isSecured() {
+      return capabilities != null
+          && (capabilities.contains("WPA") || capabilities.contains("WEP") || capabilities.contains("SAE"));
+    }
+
+    WritableMap toWritableMap(long nowMs) {
+      WritableMap res = Arguments.createMap();
+      res.putString("ssid", ssid);
+      res.putString("bssid", bssid);
+      res.putInt("rssi", rssi);
+      res.putInt("frequency", frequency);
+      res.putBoolean("secured", isSecured());
+      res.putDouble("ageMs", nowMs - lastSeenMs);
+      return res;
+    }
+  }
+
+  private static final Comparator<SoftAp> BY_SIGNAL = new Comparator<SoftAp>() {
+    @Override
+    public int compare(SoftAp a, SoftAp b) {
+      return b.rssi - a.rssi;
+    }
+  };
+
+  private String prefix;
+  private long staleMs = DEFAULT_STALE_MS;
+  // Ordered by last update, the least recently updated device is dropped past
+  // DEFAULT_MAX_DEVICES. Cached sightings can be older than devices updated
+  // before them, so the order says nothing about staleness.
+  private final LinkedHashMap<String, SoftAp> devices = new LinkedHashMap<String, SoftAp>() {
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, SoftAp> eldest) {
+      return size() > DEFAULT_MAX_DEVICES;
+    }
+  };
+  private final Set<String> provisioned = new HashSet<>();
+  // SSID to the time the claim runs out
+  private final Map<String, Long> claims = new HashMap<>();
+
+  // prefix null matches every SSID
+  synchronized void configure(String prefix, long staleMs) {
+    this.prefix = prefix;
+    this.staleMs = staleMs;
+    Iterator<SoftAp> it = devices.values().iterator();
+    while (it.hasNext()) {
+      if (!matches(it.next().ssid)) {
+        it.remove();
+      }
+    }
+  }
+
+  synchronized boolean matches(String ssid) {
+    return ssid != null && !ssid.isEmpty() && (prefix == null || ssid.startsWith(prefix));
+  }
+
+  // Merges one entry of a scan result list. seenMs is when the system last saw
+  // the access point, which for cached results can be well before nowMs.
+  // Returns the updated entry when it should be reported to JS, null when the
+  // SSID does not match or nothing worth reporting changed.
+  synchronized SoftAp onSighting(String ssid, String bssid, String capabilities, int rssi, int frequency,
+      long seenMs, long nowMs) {
+    if (!matches(ssid) || nowMs - seenMs > staleMs) {
+      return null;
+    }
+    evictStale(nowMs);
+    SoftAp previous = devices.get(ssid);
+    if (previous != null && previous.lastSeenMs >= seenMs) {
+      // Same system scan read again
+      return null;
+    }
+    boolean report = previous == null || Math.abs(rssi - previous.reportedRssi) >= RSSI_REPORT_DELTA;
+    SoftAp updated = new SoftAp(ssid, bssid, capabilities, rssi, frequency, seenMs,
+        report ? rssi : previous.reportedRssi);
+    devices.remove(ssid);
+    devices.put(ssid, updated);
+    return report ? updated : null;
+  }
+
+  synchronized void markProvisioned(String ssid) {
+    provisioned.add(ssid);
+    claims.remove(ssid);
+  }
+
+  synchronized boolean isProvisioned(String ssid) {
+    return provisioned.contains(ssid);
+  }
+
+  // Strongest device that is neither provisioned nor claimed, claimed for
+  // claimMs so parallel pipelines do not connect to the same board. null
+  // when no such device is in range.
+  synchronized SoftAp claimNext(long nowMs, long claimMs) {
+    SoftAp best = null;
+    for (SoftAp device : devices(nowMs)) {
+      Long claimedUntil = claims.get(device.ssid);
+      if (!provisioned.contains(device.ssid) && (claimedUntil == null || claimedUntil <= nowMs)) {
+        best = device;
+        break;
+      }
+    }
+    if (best != null) {
+      claims.put(best.ssid, nowMs + claimMs);
+    }
+    return best;
+  }
+
+  // Hands a claimed device back, e.g. after provisioning it failed
+  synchronized void release(String ssid) {
+    claims.remove(ssid);
+  }
+
+  synchronized SoftAp get(String ssid) {
+    return devices.get(ssid);
+  }
+
+  // Devices seen within staleMs, strongest signal first
+  synchronized List<SoftAp> devices(long nowMs) {
+    evictStale(nowMs);
+    List<SoftAp> res = new ArrayList<>(devices.values());
+    Collections.sort(res, BY_SIGNAL);
+    return res;
+  }
+
+  synchronized int size() {
+    return devices.size();
+  }
+
+  // Forgets the devices and claims, the provisioned SSIDs are kept
+  synchronized void clear() {
+    devices.clear();
+    claims.clear();
+  }
+
+  // Walks every device, the index holds at most DEFAULT_MAX_DEVICES
+  private void evictStale(long nowMs) {
+    Iterator<SoftAp> it = devices.values().iterator();
+    while (it.hasNext()) {
+      if (nowMs - it.next().lastSeenMs > staleMs) {
+        it.remove();
+      }
+    }
+  }
+}
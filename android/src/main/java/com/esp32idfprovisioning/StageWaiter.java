@@ -0,0 +1,42 @@
+package com.esp32idfprovisioning;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+// Blocking SessionCallback used by native pipelines running on worker threads
+class StageWaiter<T> implements SessionCallback<T> {
+  private final CountDownLatch done = new CountDownLatch(1);
+  private volatile T result;
+  private volatile StageException failure;
+
+  @Override
+  public void onSuccess(T result) {
+    this.result = result;
+    done.countDown();
+  }
+
+  @Override
+  public void onFailure(String code, String message, Exception e) {
+    this.failure = new StageException(code, message, e);
+    done.countDown();
+  }
+
+  T await(long timeoutMs) throws StageException, InterruptedException {
+    if (!done.await(timeoutMs, TimeUnit.MILLISECONDS)) {
+      throw new StageException("Timeout", "No response from the device after " + timeoutMs + " ms", null);
+    }
+    if (failure != null) {
+      throw failure;
+    }
+    return result;
+  }
+
+  static class StageException extends Exception {
+    final String code;
+
+    StageException(String code, String message, Exception cause) {
+      super(message, cause);
+      this.code = code;
+    }
+  }
+}
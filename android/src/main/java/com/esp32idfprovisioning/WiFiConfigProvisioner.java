@@ -0,0 +1,274 @@
+package com.esp32idfprovisioning;
+
+import android.os.SystemClock;
+
+import com.espressif.provisioning.ESPConstants;
+import com.espressif.provisioning.listeners.ProvisionListener;
+import com.espressif.provisioning.listeners.ResponseListener;
+import com.google.protobuf.ByteString;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import espressif.Constants;
+import espressif.WifiConfig;
+import espressif.WifiConstants;
+
+// Sends Wi-Fi credentials over the prov-config endpoint itself instead of
+// through ESPDevice.provision, so the station status poll that follows
+// wifiConfigApplied runs on our schedule: the first polls come quickly, then
+// the delay grows by PollPolicy.backoff up to maxDelayMs until the device
+// reports Connected or ConnectionFailed, or deadlineMs has passed.
+//
+// Polls of every device are timers on the one module scheduler thread and
+// requests are asynchronous, so a slow device never holds up the others.
+// Results are reported on the session's ProvisionListener, exactly like the
+// SDK reports them. Every attempt is registered with the session, so a
+// cancelled or timed out session, or a disconnected device, is not polled any
+// further. Without a policy the SDK provisions as before.
+class WiFiConfigProvisioner implements ProvisioningSession.Provisioner {
+  private static final String CONFIG_ENDPOINT = "prov-config";
+  // The device may miss a request while its radio joins the network
+  private static final int MAX_CONSECUTIVE_POLL_ERRORS = 3;
+
+  static class PollPolicy {
+    final long initialDelayMs;
+    final long maxDelayMs;
+    final double backoff;
+    // From wifiConfigApplied until the device has to report a final state
+    final long deadlineMs;
+
+    PollPolicy(long initialDelayMs, long maxDelayMs, double backoff, long deadlineMs) {
+      this.initialDelayMs = Math.max(50, initialDelayMs);
+      this.maxDelayMs = Math.max(this.initialDelayMs, maxDelayMs);
+      this.backoff = Math.max(1, backoff);
+      this.deadlineMs = Math.max(this.initialDelayMs, deadlineMs);
+    }
+
+    // Delay before the given poll, poll 1 being the first
+    long delayBefore(int poll) {
+      double delay = initialDelayMs * Math.pow(backoff, Math.min(poll - 1, 30));
+      return (long) Math.min(maxDelayMs, delay);
+    }
+  }
+
+  static final PollPolicy DEFAULT_POLICY = new PollPolicy(250, 2000, 1.5, 30000);
+
+  private final ScheduledExecutorService scheduler;
+  private volatile PollPolicy policy;
+
+  WiFiConfigProvisioner(ScheduledExecutorService scheduler) {
+    this.scheduler = scheduler;
+  }
+
+  // null hands provisioning back to the SDK
+  void setPolicy(PollPolicy policy) {
+    this.policy = policy;
+  }
+
+  @Override
+  public void provision(ProvisioningSession session, String ssid, String passphrase, ProvisionListener listener) {
+    PollPolicy current = policy;
+    if (current == null) {
+      session.device.provision(ssid, passphrase, listener);
+      return;
+    }
+    new Attempt(session, current, listener).start(ssid, passphrase);
+  }
+
+  private class Attempt {
+    private final ProvisioningSession session;
+    private final PollPolicy policy;
+    private final ProvisionListener listener;
+    private long deadline;
+    private int polls;
+    private int pollErrors;
+    private ProvisioningSession.Operation operation;
+
+    Attempt(ProvisioningSession session, PollPolicy policy, ProvisionListener listener) {
+      this.session = session;
+      this.policy = policy;
+      this.listener = listener;
+    }
+
+    void start(String ssid, String passphrase) {
+      // The provision slot has its own deadline and is failed by cancel, the
+      // attempt only has to stop
+      operation = session.startOperation("Provisioning", 0, new ProvisioningSession.OperationOwner() {
+        @Override
+        public void onCancelled(String code, String message, Exception reason) {
+          ProvisioningLog.d(session.id, "status", "attempt_cancelled", polls);
+        }
+      });
+      sendConfig(ssid, passphrase);
+    }
+
+    private void sendConfig(String ssid, String passphrase) {
+      WifiConfig.WiFiConfigPayload payload = WifiConfig.WiFiConfigPayload.newBuilder()
+          .setMsg(WifiConfig.WiFiConfigMsgType.TypeCmdSetConfig)
+          .setCmdSetConfig(WifiConfig.CmdSetConfig.newBuilder()
+              .setSsid(ByteString.copyFromUtf8(ssid))
+              .setPassphrase(ByteString.copyFromUtf8(passphrase != null ? passphrase : "")))
+          .build();
+      send(payload, new ResponseListener() {
+        @Override
+        public void onSuccess(byte[] data) {
+          try {
+            check(WifiConfig.WiFiConfigPayload.parseFrom(data).getRespSetConfig().getStatus());
+          } catch (Exception e) {
+            if (operation.finish()) {
+              listener.wifiConfigFailed(e);
+            }
+            return;
+          }
+          listener.wifiConfigSent();
+          applyConfig();
+        }
+
+        @Override
+        public void onFailure(Exception e) {
+          if (operation.finish()) {
+            listener.wifiConfigFailed(e);
+          }
+        }
+      });
+    }
+
+    private void applyConfig() {
+      WifiConfig.WiFiConfigPayload payload = WifiConfig.WiFiConfigPayload.newBuilder()
+          .setMsg(WifiConfig.WiFiConfigMsgType.TypeCmdApplyConfig)
+          .setCmdApplyConfig(WifiConfig.CmdApplyConfig.newBuilder())
+          .build();
+      send(payload, new ResponseListener() {
+        @Override
+        public void onSuccess(byte[] data) {
+          try {
+            check(WifiConfig.WiFiConfigPayload.parseFrom(data).getRespApplyConfig().getStatus());
+          } catch (Exception e) {
+            if (operation.finish()) {
+              listener.wifiConfigApplyFailed(e);
+            }
+            return;
+          }
+          listener.wifiConfigApplied();
+          deadline = SystemClock.elapsedRealtime() + policy.deadlineMs;
+          schedulePoll();
+        }
+
+        @Override
+        public void onFailure(Exception e) {
+          if (operation.finish()) {
+            listener.wifiConfigApplyFailed(e);
+          }
+        }
+      });
+    }
+
+    private void schedulePoll() {
+      long delay = policy.delayBefore(++polls);
+      long left = deadline - SystemClock.elapsedRealtime();
+      if (left <= 0) {
+        if (operation.finish()) {
+          listener.onProvisioningFailed(new RuntimeException(
+              "Device did not report its Wi-Fi status within " + policy.deadlineMs + " ms"));
+        }
+        return;
+      }
+      scheduler.schedule(new Runnable() {
+        @Override
+        public void run() {
+          poll();
+        }
+      }, Math.min(delay, left), TimeUnit.MILLISECONDS);
+    }
+
+    private void poll() {
+      if (operation.isDone()) {
+        return;
+      }
+      if (!session.deviceConnected) {
+        if (operation.finish()) {
+          listener.onProvisioningFailed(new IllegalStateException("The device disconnected during the status poll"));
+        }
+        return;
+      }
+      WifiConfig.WiFiConfigPayload payload = WifiConfig.WiFiConfigPayload.newBuilder()
+          .setMsg(WifiConfig.WiFiConfigMsgType.TypeCmdGetStatus)
+          .setCmdGetStatus(WifiConfig.CmdGetStatus.newBuilder())
+          .build();
+      send(payload, new ResponseListener() {
+        @Override
+        public void onSuccess(byte[] data) {
+          WifiConfig.RespGetStatus status;
+          try {
+            status = WifiConfig.WiFiConfigPayload.parseFrom(data).getRespGetStatus();
+            check(status.getStatus());
+          } catch (Exception e) {
+            onPollError(e);
+            return;
+          }
+          pollErrors = 0;
+          WifiConstants.WifiStationState state = status.getStaState();
+          ProvisioningLog.d(session.id, "status", state.name(), polls);
+          if (state == WifiConstants.WifiStationState.Connected) {
+            if (operation.finish()) {
+              listener.deviceProvisioningSuccess();
+            }
+          } else if (state == WifiConstants.WifiStationState.ConnectionFailed) {
+            if (operation.finish()) {
+              listener.provisioningFailedFromDevice(failureReason(status.getFailReason()));
+            }
+          } else {
+            schedulePoll();
+          }
+        }
+
+        @Override
+        public void onFailure(Exception e) {
+          onPollError(e);
+        }
+      });
+    }
+
+    private void onPollError(Exception e) {
+      if (operation.isDone()) {
+        return;
+      }
+      if (++pollErrors >= MAX_CONSECUTIVE_POLL_ERRORS) {
+        if (operation.finish()) {
+          listener.onProvisioningFailed(e);
+        }
+        return;
+      }
+      ProvisioningLog.w(session.id, "status", "poll_failed", e);
+      schedulePoll();
+    }
+
+    private void send(WifiConfig.WiFiConfigPayload payload, ResponseListener responseListener) {
+      if (operation.isDone()) {
+        return;
+      }
+      try {
+        session.device.sendDataToCustomEndPoint(CONFIG_ENDPOINT, payload.toByteArray(), responseListener);
+      } catch (Exception e) {
+        responseListener.onFailure(e);
+      }
+    }
+  }
+
+  private static void check(Constants.Status status) {
+    if (status != Constants.Status.Success) {
+      throw new IllegalStateException("Device answered with " + status);
+    }
+  }
+
+  private static ESPConstants.ProvisionFailureReason failureReason(WifiConstants.WifiConnectFailedReason reason) {
+    if (reason == WifiConstants.WifiConnectFailedReason.AuthError) {
+      return ESPConstants.ProvisionFailureReason.AUTH_FAILED;
+    }
+    if (reason == WifiConstants.WifiConnectFailedReason.NetworkNotFound) {
+      return ESPConstants.ProvisionFailureReason.NETWORK_NOT_FOUND;
+    }
+    return ESPConstants.ProvisionFailureReason.UNKNOWN;
+  }
+}
@@ -0,0 +1,50 @@
+package com.esp32idfprovisioning;
+
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.WritableArray;
+import com.facebook.react.bridge.WritableMap;
+
+import com.espressif.provisioning.WiFiAccessPoint;
+
+import java.util.List;
+
+// Converts scan results from the ESP SDK into bridge values
+final class WifiAccessPointMarshaller {
+  private WifiAccessPointMarshaller() {
+  }
+
+  static WritableMap toWritableMap(WiFiAccessPoint wiFiAccessPoint) {
+    WritableMap newElement = Arguments.createMap();
+    newElement.putString("ssid", wiFiAccessPoint.getWifiName());
+    newElement.putString("password", wiFiAccessPoint.getPassword());
+    newElement.putInt("rssi", wiFiAccessPoint.getRssi());
+    newElement.putInt("security", wiFiAccessPoint.getSecurity());
+    return newElement;
+  }
+
+  static WritableArray toWritableArray(List<WiFiAccessPoint> wifiList) {
+    WritableArray listOfNetworks = Arguments.createArray();
+    for (WiFiAccessPoint wiFiAccessPoint : wifiList) {
+      listOfNetworks.pushMap(toWritableMap(wiFiAccessPoint));
+    }
+    return listOfNetworks;
+  }
+
+  // Column per field, so a scan costs four arrays instead of a map per network
+  static WritableMap toColumns(List<WiFiAccessPoint> wifiList) {
+    WritableArray ssids = Arguments.createArray();
+    WritableArray rssis = Arguments.createArray();
+    WritableArray securities = Arguments.createArray();
+    for (WiFiAccessPoint wiFiAccessPoint : wifiList) {
+      ssids.pushString(wiFiAccessPoint.getWifiName());
+      rssis.pushInt(wiFiAccessPoint.getRssi());
+      securities.pushInt(wiFiAccessPoint.getSecurity());
+    }
+    WritableMap columns = Arguments.createMap();
+    columns.putInt("count", wifiList.size());
+    columns.putArray("ssid", ssids);
+    columns.putArray("rssi", rssis);
+    columns.putArray("security", securities);
+    return columns;
+  }
+}
@@ -0,0 +1,11 @@
+package com.esp32idfprovisioning;
+
+import com.facebook.react.bridge.ReactApplicationContext;
+
+// New architecture: NativeEsp32IdfProvisioningSpec is generated by codegen from
+// src/NativeEsp32IdfProvisioning.ts and makes the module a TurboModule
+abstract class Esp32IdfProvisioningSpec extends NativeEsp32IdfProvisioningSpec {
+  Esp32IdfProvisioningSpec(ReactApplicationContext context) {
+    super(context);
+  }
+}
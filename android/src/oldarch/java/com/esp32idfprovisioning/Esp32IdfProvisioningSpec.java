@@ -0,0 +1,12 @@
+package com.esp32idfprovisioning;
+
+import com.facebook.react.bridge.ReactApplicationContext;
+import com.facebook.react.bridge.ReactContextBaseJavaModule;
+
+// Old architecture: the module is a plain bridge module and its @ReactMethods
+// are found by reflection
+abstract class Esp32IdfProvisioningSpec extends ReactContextBaseJavaModule {
+  Esp32IdfProvisioningSpec(ReactApplicationContext context) {
+    super(context);
+  }
+}
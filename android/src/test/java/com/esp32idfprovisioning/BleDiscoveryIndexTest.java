@@ -0,0 +1,68 @@
+package com.esp32idfprovisioning;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+import java.util.List;
+
+public class BleDiscoveryIndexTest {
+  @Test
+  public void mergesAdvertisementsOfTheSameDevice() {
+    BleDiscoveryIndex index = new BleDiscoveryIndex();
+    assertNotNull(index.onAdvertisement("AA", null, "PROV_1", "uuid", -60, 0));
+    // Small fluctuations are smoothed and not reported again
+    assertNull(index.onAdvertisement("AA", null, null, null, -64, 100));
+    assertNull(index.onAdvertisement("AA", null, null, null, -58, 200));
+
+    assertEquals(1, index.size());
+    BleDiscoveryIndex.DiscoveredDevice device = index.get("AA");
+    assertEquals(3, device.advertisements);
+    assertEquals(-58, device.lastRssi);
+    assertEquals("PROV_1", device.name);
+    assertEquals("uuid", device.serviceUuid);
+    assertEquals(-60.24, device.rssi, 0.01);
+  }
+
+  @Test
+  public void reportsClearSignalChanges() {
+    BleDiscoveryIndex index = new BleDiscoveryIndex();
+    index.onAdvertisement("AA", null, "PROV_1", "uuid", -80, 0);
+    BleDiscoveryIndex.DiscoveredDevice changed = null;
+    for (int i = 1; changed == null && i < 10; i++) {
+      changed = index.onAdvertisement("AA", null, null, null, -50, i);
+    }
+    assertNotNull(changed);
+    assertEquals(-71.0, changed.rssi, 0.01);
+  }
+
+  @Test
+  public void evictsLeastRecentlySeenDevice() {
+    BleDiscoveryIndex index = new BleDiscoveryIndex();
+    index.configure(2, BleDiscoveryIndex.DEFAULT_STALE_MS);
+    index.onAdvertisement("AA", null, null, null, -50, 0);
+    index.onAdvertisement("BB", null, null, null, -60, 1);
+    index.onAdvertisement("AA", null, null, null, -50, 2);
+    index.onAdvertisement("CC", null, null, null, -70, 3);
+
+    assertEquals(2, index.size());
+    assertNull(index.get("BB"));
+    assertNotNull(index.get("AA"));
+  }
+
+  @Test
+  public void dropsDevicesThatStoppedAdvertising() {
+    BleDiscoveryIndex index = new BleDiscoveryIndex();
+    index.configure(BleDiscoveryIndex.DEFAULT_MAX_DEVICES, 1000);
+    index.onAdvertisement("AA", null, null, null, -70, 0);
+    index.onAdvertisement("BB", null, null, null, -40, 500);
+    index.onAdvertisement("CC", null, null, null, -60, 900);
+
+    List<BleDiscoveryIndex.DiscoveredDevice> devices = index.devices(1200);
+    assertEquals(2, devices.size());
+    assertEquals("BB", devices.get(0).id);
+    assertEquals("CC", devices.get(1).id);
+  }
+}
@@ -0,0 +1,266 @@
+package com.esp32idfprovisioning;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import android.bluetooth.BluetoothDevice;
+
+import com.espressif.provisioning.listeners.ProvisionListener;
+import com.espressif.provisioning.listeners.ResponseListener;
+import com.espressif.provisioning.listeners.WiFiScanListener;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+public class ChunkedPayloadSenderTest {
+  private static final int CHUNK_SIZE = 64;
+  private static final int PAYLOAD_PER_CHUNK = CHUNK_SIZE - ChunkedPayloadSender.HEADER_SIZE;
+
+  private final ExecutorService transport = Executors.newSingleThreadExecutor();
+  private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+
+  @After
+  public void tearDown() {
+    transport.shutdownNow();
+    scheduler.shutdownNow();
+  }
+
+  // Endpoint that reassembles framed chunks like the firmware would
+  private class ReassemblingDevice implements ProvisioningDevice {
+    final ByteArrayOutputStream received = new ByteArrayOutputStream();
+    final boolean asynchronous;
+    int chunks;
+    boolean finalSeen;
+
+    ReassemblingDevice(boolean asynchronous) {
+      this.asynchronous = asynchronous;
+    }
+
+    @Override
+    public void sendDataToCustomEndPoint(String path, final byte[] data, final ResponseListener listener) {
+      if (!path.equals("custom-data")) {
+        // Other endpoints echo the request
+        transport.execute(new Runnable() {
+          @Override
+          public void run() {
+            listener.onSuccess(data);
+          }
+        });
+        return;
+      }
+      Runnable answer = new Runnable() {
+        @Override
+        public void run() {
+          long offset = ((data[0] & 0xffL) << 24) | ((data[1] & 0xffL) << 16) | ((data[2] & 0xffL) << 8)
+              | (data[3] & 0xffL);
+          assertEquals(received.size(), offset);
+          received.write(data, ChunkedPayloadSender.HEADER_SIZE, data.length - ChunkedPayloadSender.HEADER_SIZE);
+          chunks++;
+          finalSeen = (data[4] & ChunkedPayloadSender.FLAG_FINAL) != 0;
+          listener.onSuccess(new byte[] { (byte) chunks });
+        }
+      };
+      if (asynchronous) {
+        transport.execute(answer);
+      } else {
+        answer.run();
+      }
+    }
+
+    @Override
+    public String getVersionInfo() {
+      return null;
+    }
+
+    @Override
+    public List<String> getDeviceCapabilities() {
+      return Collections.emptyList();
+    }
+
+    @Override
+    public int getSecurityVersion() {
+      return 1;
+    }
+
+    @Override
+    public void connectWiFiDevice(String ssid, String password) {
+    }
+
+    @Override
+    public void connectWiFiDevice() {
+    }
+
+    @Override
+    public void connectBLEDevice(BluetoothDevice bleDevice, String primaryServiceUuid) {
+    }
+
+    @Override
+    public void disconnectDevice() {
+    }
+
+    @Override
+    public void setProofOfPossession(String pop) {
+    }
+
+    @Override
+    public String getProofOfPossession() {
+      return null;
+    }
+
+    @Override
+    public void initSession(ResponseListener listener) {
+    }
+
+    @Override
+    public void scanNetworks(WiFiScanListener listener) {
+    }
+
+    @Override
+    public void provision(String ssid, String passphrase, ProvisionListener listener) {
+    }
+  }
+
+  private static class Result implements ChunkedPayloadSender.Listener {
+    final CountDownLatch done = new CountDownLatch(1);
+    int chunks;
+    long sentBytes;
+    String code;
+    String failure;
+
+    @Override
+    public void onProgress(int chunk, long sentBytes) {
+    }
+
+    @Override
+    public void onComplete(int chunks, long sentBytes, byte[] lastResponse) {
+      this.chunks = chunks;
+      this.sentBytes = sentBytes;
+      done.countDown();
+    }
+
+    @Override
+    public void onFailure(String code, String message, Exception e) {
+      this.code = code;
+      failure = message;
+      done.countDown();
+    }
+  }
+
+  private void send(int payloadSize, boolean asynchronous) throws Exception {
+    byte[] payload = new byte[payloadSize];
+    new Random(payloadSize).nextBytes(payload);
+    ReassemblingDevice device = new ReassemblingDevice(asynchronous);
+    ProvisioningSession session = new ProvisioningSession("chunks", device, new ProvisioningTimings(),
+        new RetryEngine(scheduler));
+
+    Result result = new Result();
+    new ChunkedPayloadSender(session, "custom-data", new ByteArrayInputStream(payload), CHUNK_SIZE, result).start();
+    result.done.await(5, TimeUnit.SECONDS);
+
+    assertNull(result.failure);
+    assertArrayEquals(payload, device.received.toByteArray());
+    assertEquals(payloadSize, result.sentBytes);
+    assertEquals(Math.max(1, (payloadSize + PAYLOAD_PER_CHUNK - 1) / PAYLOAD_PER_CHUNK), result.chunks);
+    assertEquals(result.chunks, device.chunks);
+    assertEquals(true, device.finalSeen);
+  }
+
+  @Test
+  public void reassemblesPayloadAcrossChunks() throws Exception {
+    send(40 * 1024 + 7, true);
+  }
+
+  @Test
+  public void flagsFullLastChunkAsFinal() throws Exception {
+    send(PAYLOAD_PER_CHUNK * 3, true);
+  }
+
+  @Test
+  public void handlesDevicesAnsweringSynchronously() throws Exception {
+    send(PAYLOAD_PER_CHUNK * 5 + 1, false);
+  }
+
+  @Test
+  public void sendsEmptyPayloadAsSingleFinalChunk() throws Exception {
+    send(0, true);
+  }
+
+  @Test
+  public void cancelStopsTheSendBetweenChunks() throws Exception {
+    ReassemblingDevice device = new ReassemblingDevice(false);
+    final ProvisioningSession session = new ProvisioningSession("chunks", device, new ProvisioningTimings(),
+        new RetryEngine(scheduler));
+    Result result = new Result() {
+      @Override
+      public void onProgress(int chunk, long sentBytes) {
+        if (chunk == 2) {
+          session.cancel("Cancelled", "test");
+        }
+      }
+    };
+    new ChunkedPayloadSender(session, "custom-data", new ByteArrayInputStream(new byte[PAYLOAD_PER_CHUNK * 5]),
+        CHUNK_SIZE, result).start();
+    assertTrue(result.done.await(5, TimeUnit.SECONDS));
+    assertEquals("Cancelled", result.code);
+    assertEquals(2, device.chunks);
+  }
+
+  @Test
+  public void deadlineCoversTheWholePayload() throws Exception {
+    ReassemblingDevice device = new ReassemblingDevice(false);
+    ProvisioningSession session = new ProvisioningSession("chunks", device, new ProvisioningTimings(),
+        new RetryEngine(scheduler));
+    // Driven by hand, every chunk is answered right away
+    final DeadlineWheel wheel = new DeadlineWheel(null, 10, 8, 0);
+    session.setDeadlineWheel(wheel);
+    session.setDeadlines(new OperationDeadlines(0, 0, 0, 100), true);
+    Result result = new Result() {
+      @Override
+      public void onProgress(int chunk, long sentBytes) {
+        if (chunk == 3) {
+          wheel.advance(100);
+        }
+      }
+    };
+    new ChunkedPayloadSender(session, "custom-data", new ByteArrayInputStream(new byte[PAYLOAD_PER_CHUNK * 5]),
+        CHUNK_SIZE, result).start();
+    assertTrue(result.done.await(5, TimeUnit.SECONDS));
+    assertEquals("Timeout", result.code);
+    assertEquals(3, device.chunks);
+  }
+
+  @Test
+  public void keepsChunkResponsesFromOtherCustomData() throws Exception {
+    ReassemblingDevice device = new ReassemblingDevice(true);
+    final ProvisioningSession session = new ProvisioningSession("chunks", device, new ProvisioningTimings(),
+        new RetryEngine(scheduler));
+    final StageWaiter<byte[]> echoed = new StageWaiter<>();
+    Result result = new Result() {
+      @Override
+      public void onProgress(int chunk, long sentBytes) {
+        if (chunk == 2) {
+          session.sendCustomData("other", new byte[] { 7 }, echoed);
+        }
+      }
+    };
+    new ChunkedPayloadSender(session, "custom-data", new ByteArrayInputStream(new byte[PAYLOAD_PER_CHUNK * 5]),
+        CHUNK_SIZE, result).start();
+    assertTrue(result.done.await(5, TimeUnit.SECONDS));
+    assertNull(result.failure);
+    assertEquals(5, result.chunks);
+    assertArrayEquals(new byte[] { 7 }, echoed.await(5000));
+  }
+}
@@ -0,0 +1,81 @@
+package com.esp32idfprovisioning;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class DeadlineWheelTest {
+  private static Runnable record(final List<String> fired, final String name) {
+    return new Runnable() {
+      @Override
+      public void run() {
+        fired.add(name);
+      }
+    };
+  }
+
+  @Test
+  public void firesDeadlinesOnceTheyAreDue() {
+    List<String> fired = new ArrayList<>();
+    DeadlineWheel wheel = new DeadlineWheel(null, 10, 8, 0);
+    wheel.schedule(record(fired, "a"), 25, 0);
+    wheel.schedule(record(fired, "b"), 30, 0);
+
+    wheel.advance(20);
+    assertTrue(fired.isEmpty());
+    // Rounded up to the next tick, never early
+    wheel.advance(29);
+    assertTrue(fired.isEmpty());
+    wheel.advance(30);
+    assertEquals(2, fired.size());
+    assertEquals(0, wheel.size());
+  }
+
+  @Test
+  public void cancelledDeadlinesDoNotFire() {
+    List<String> fired = new ArrayList<>();
+    DeadlineWheel wheel = new DeadlineWheel(null, 10, 8, 0);
+    DeadlineWheel.Timeout a = wheel.schedule(record(fired, "a"), 50, 0);
+    wheel.schedule(record(fired, "b"), 50, 0);
+
+    assertTrue(a.cancel());
+    assertFalse(a.cancel());
+    wheel.advance(100);
+    assertEquals(1, fired.size());
+    assertEquals("b", fired.get(0));
+  }
+
+  @Test
+  public void keepsDeadlinesLongerThanOneTurn() {
+    List<String> fired = new ArrayList<>();
+    // One turn is 80 ms
+    DeadlineWheel wheel = new DeadlineWheel(null, 10, 8, 0);
+    wheel.schedule(record(fired, "near"), 20, 0);
+    wheel.schedule(record(fired, "far"), 200, 0);
+
+    wheel.advance(100);
+    assertEquals(1, fired.size());
+    wheel.advance(190);
+    assertEquals(1, fired.size());
+    // A late tick catches up without waiting for another turn
+    wheel.advance(1000);
+    assertEquals(2, fired.size());
+    assertEquals("far", fired.get(1));
+  }
+
+  @Test
+  public void startsFromTheCurrentTimeAfterBeingIdle() {
+    List<String> fired = new ArrayList<>();
+    DeadlineWheel wheel = new DeadlineWheel(null, 10, 8, 0);
+    wheel.schedule(record(fired, "a"), 50, 10000);
+    wheel.advance(10040);
+    assertTrue(fired.isEmpty());
+    wheel.advance(10050);
+    assertEquals(1, fired.size());
+  }
+}
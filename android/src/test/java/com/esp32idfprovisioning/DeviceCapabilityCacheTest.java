@@ -0,0 +1,52 @@
+package com.esp32idfprovisioning;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.espressif.provisioning.ESPConstants;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+public class DeviceCapabilityCacheTest {
+  @Test
+  public void entriesSurviveEncoding() {
+    DeviceCapabilityCache.DeviceInfo info = new DeviceCapabilityCache.DeviceInfo("softap:PROV_1",
+        ESPConstants.TransportType.TRANSPORT_SOFTAP, 2, "v1.1;beta", Arrays.asList("wifi_scan", "no_pop"), 1234);
+    DeviceCapabilityCache.DeviceInfo decoded = DeviceCapabilityCache.DeviceInfo.decode(info.key, info.encode());
+
+    assertTrue(decoded.sameAs(info));
+    assertEquals(1234, decoded.updatedAt);
+    assertEquals("v1.1;beta", decoded.versionInfo);
+    assertTrue(decoded.has("no_pop"));
+  }
+
+  @Test
+  public void entriesWithoutVersionOrCapabilities() {
+    DeviceCapabilityCache.DeviceInfo info = new DeviceCapabilityCache.DeviceInfo("ble:AA",
+        ESPConstants.TransportType.TRANSPORT_BLE, 0, null, Collections.<String>emptyList(), 0);
+    DeviceCapabilityCache.DeviceInfo decoded = DeviceCapabilityCache.DeviceInfo.decode(info.key, info.encode());
+
+    assertNull(decoded.versionInfo);
+    assertTrue(decoded.capabilities.isEmpty());
+    assertEquals(ESPConstants.TransportType.TRANSPORT_BLE, decoded.transport);
+  }
+
+  @Test
+  public void reflashedDevicesDoNotMatch() {
+    DeviceCapabilityCache.DeviceInfo before = new DeviceCapabilityCache.DeviceInfo("softap:PROV_1",
+        ESPConstants.TransportType.TRANSPORT_SOFTAP, 1, "v1.1", Arrays.asList("wifi_scan"), 0);
+    DeviceCapabilityCache.DeviceInfo after = new DeviceCapabilityCache.DeviceInfo("softap:PROV_1",
+        ESPConstants.TransportType.TRANSPORT_SOFTAP, 2, "v1.1", Arrays.asList("wifi_scan"), 0);
+    assertFalse(before.sameAs(after));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void rejectsMalformedEntries() {
+    DeviceCapabilityCache.DeviceInfo.decode("softap:PROV_1", "1;TRANSPORT_SOFTAP");
+  }
+}
@@ -0,0 +1,80 @@
+package com.esp32idfprovisioning;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.espressif.provisioning.WiFiAccessPoint;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+public class NetworkRankerTest {
+  private static WiFiAccessPoint accessPoint(String ssid, int rssi, int security) {
+    WiFiAccessPoint accessPoint = new WiFiAccessPoint();
+    accessPoint.setWifiName(ssid);
+    accessPoint.setRssi(rssi);
+    accessPoint.setSecurity(security);
+    return accessPoint;
+  }
+
+  private static NetworkRanker.Options options(boolean autoSelect, String... preferred) {
+    return new NetworkRanker.Options(Arrays.asList(preferred), 3, NetworkRanker.DEFAULT_MIN_RSSI, autoSelect);
+  }
+
+  @Test
+  public void mergesAccessPointsOfTheSameNetwork() {
+    List<WiFiAccessPoint> scan = new ArrayList<>();
+    scan.add(accessPoint("office", -70, NetworkRanker.SECURITY_WPA2_PSK));
+    scan.add(accessPoint("office", -55, NetworkRanker.SECURITY_WPA2_PSK));
+    scan.add(accessPoint("office", -80, NetworkRanker.SECURITY_WPA2_PSK));
+    scan.add(accessPoint("cafe", -55, NetworkRanker.SECURITY_OPEN));
+
+    NetworkRanker.Result result = NetworkRanker.rank(scan, options(false));
+    assertEquals(2, result.shortlist.size());
+    NetworkRanker.Candidate office = result.shortlist.get(0);
+    assertEquals("office", office.ssid);
+    assertEquals(-55, office.rssi);
+    assertEquals(3, office.accessPoints);
+    // Same signal, but secured and with more coverage
+    assertTrue(office.score > result.shortlist.get(1).score);
+    assertNull(result.selected);
+  }
+
+  @Test
+  public void preferredNetworksRankFirstInListOrder() {
+    List<WiFiAccessPoint> scan = new ArrayList<>();
+    scan.add(accessPoint("strong", -40, NetworkRanker.SECURITY_WPA2_PSK));
+    scan.add(accessPoint("backup", -60, NetworkRanker.SECURITY_WPA2_PSK));
+    scan.add(accessPoint("primary", -75, NetworkRanker.SECURITY_WPA2_PSK));
+
+    NetworkRanker.Result result = NetworkRanker.rank(scan, options(true, "primary", "backup"));
+    assertEquals("primary", result.shortlist.get(0).ssid);
+    assertEquals("backup", result.shortlist.get(1).ssid);
+    assertEquals("strong", result.shortlist.get(2).ssid);
+    assertFalse(result.shortlist.get(2).isPreferred());
+    assertEquals("primary", result.selected.ssid);
+  }
+
+  @Test
+  public void leavesOutWeakAndEnterpriseNetworks() {
+    List<WiFiAccessPoint> scan = new ArrayList<>();
+    scan.add(accessPoint("primary", -88, NetworkRanker.SECURITY_WPA2_PSK));
+    scan.add(accessPoint("corp", -40, NetworkRanker.SECURITY_WPA2_ENTERPRISE));
+    scan.add(accessPoint("guest", -50, NetworkRanker.SECURITY_OPEN));
+
+    NetworkRanker.Result result = NetworkRanker.rank(scan, options(true, "primary"));
+    assertEquals(1, result.shortlist.size());
+    assertEquals("guest", result.shortlist.get(0).ssid);
+    // Only preferred networks are picked without asking when there is a list
+    assertNull(result.selected);
+
+    assertEquals("guest", NetworkRanker.rank(scan, options(true)).selected.ssid);
+    assertTrue(NetworkRanker.rank(Collections.<WiFiAccessPoint>emptyList(), options(true)).shortlist.isEmpty());
+  }
+}
@@ -0,0 +1,44 @@
+package com.esp32idfprovisioning;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+public class PackedScanEncoderTest {
+  @Test
+  public void packsRecordsInScanOrder() {
+    byte[] packed = PackedScanEncoder.packScanned(Arrays.asList(
+        new ScannedAccessPoint("Home", null, 6, -42, 3),
+        new ScannedAccessPoint("Caf\u00e9", null, 11, -87, 0)));
+
+    byte[] cafe = "Caf\u00e9".getBytes(StandardCharsets.UTF_8);
+    assertEquals(PackedScanEncoder.HEADER_SIZE + 2 * PackedScanEncoder.RECORD_HEADER_SIZE + 4 + cafe.length,
+        packed.length);
+    assertEquals(PackedScanEncoder.VERSION, packed[0]);
+    assertEquals(2, ((packed[1] & 0xff) << 8) | (packed[2] & 0xff));
+
+    assertEquals(-42, packed[3]);
+    assertEquals(3, packed[4]);
+    assertEquals(6, packed[5]);
+    assertEquals(4, packed[6]);
+    assertEquals("Home", new String(packed, 7, 4, StandardCharsets.UTF_8));
+
+    assertEquals(-87, packed[11]);
+    assertEquals(0, packed[12]);
+    assertEquals(11, packed[13]);
+    assertEquals(cafe.length, packed[14]);
+    assertEquals("Caf\u00e9", new String(packed, 15, cafe.length, StandardCharsets.UTF_8));
+  }
+
+  @Test
+  public void packsMissingSsidAsEmpty() {
+    byte[] packed = PackedScanEncoder.packScanned(Arrays.asList(new ScannedAccessPoint(null, null, 0, -200, 1)));
+    assertEquals(PackedScanEncoder.HEADER_SIZE + PackedScanEncoder.RECORD_HEADER_SIZE, packed.length);
+    // RSSI is clamped to a signed byte
+    assertEquals(Byte.MIN_VALUE, packed[3]);
+    assertEquals(0, packed[6]);
+  }
+}
@@ -0,0 +1,71 @@
+package com.esp32idfprovisioning;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import java.util.List;
+
+public class ProvisioningEventEmitterTest {
+  private static String names(List<ProvisioningEventEmitter.PendingEvents.Event> events) {
+    StringBuilder res = new StringBuilder();
+    for (ProvisioningEventEmitter.PendingEvents.Event event : events) {
+      res.append(event.action != null ? "action" : event.name).append(' ');
+    }
+    return res.toString().trim();
+  }
+
+  @Test
+  public void coalescesLatestEventsInPlace() {
+    ProvisioningEventEmitter.PendingEvents pending = new ProvisioningEventEmitter.PendingEvents(16);
+    pending.addLatest("found", "a", null);
+    pending.add("connected", null);
+    pending.addLatest("found", "b", null);
+    pending.addLatest("found", "a", null);
+    pending.addLatest("found", "a", null);
+    assertEquals(3, pending.size());
+    assertEquals(2, pending.takeCoalesced());
+    assertEquals(0, pending.takeCoalesced());
+    assertEquals("found connected", names(pending.take(2)));
+    // Once sent, a new update is queued again behind the others
+    pending.addLatest("found", "a", null);
+    assertEquals(2, pending.size());
+    assertEquals(0, pending.takeCoalesced());
+  }
+
+  @Test
+  public void dropsOnlyDroppableEventsWhenFull() {
+    ProvisioningEventEmitter.PendingEvents pending = new ProvisioningEventEmitter.PendingEvents(3);
+    pending.addDroppable("timing", null);
+    pending.add("stage1", null);
+    pending.addDroppable("timing", null);
+    pending.addDroppable("timing", null);
+    assertEquals(1, pending.takeDropped());
+    // Lossless events make room by dropping the queued droppable ones
+    pending.add("stage2", null);
+    assertEquals(2, pending.takeDropped());
+    pending.add("stage3", null);
+    pending.add("stage4", null);
+    assertEquals(0, pending.takeDropped());
+    assertEquals("stage1 stage2 stage3 stage4", names(pending.take(16)));
+    assertEquals(0, pending.size());
+  }
+
+  @Test
+  public void sendsActionsWithTheEventsBeforeThem() {
+    ProvisioningEventEmitter.PendingEvents pending = new ProvisioningEventEmitter.PendingEvents(2);
+    Runnable resolve = new Runnable() {
+      @Override
+      public void run() {
+      }
+    };
+    pending.add("result", null);
+    pending.add("complete", null);
+    pending.addAction(resolve);
+    pending.add("next", null);
+    // Actions do not count against the batch size or the queue
+    assertEquals("result complete action", names(pending.take(2)));
+    assertEquals(0, pending.takeDropped());
+    assertEquals("next", names(pending.take(2)));
+  }
+}
@@ -0,0 +1,99 @@
+package com.esp32idfprovisioning;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+public class ProvisioningJournalTest {
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private ScheduledExecutorService scheduler;
+  private File directory;
+
+  @Before
+  public void setUp() {
+    scheduler = Executors.newSingleThreadScheduledExecutor();
+    directory = new File(folder.getRoot(), "journal");
+  }
+
+  @After
+  public void tearDown() {
+    scheduler.shutdownNow();
+  }
+
+  @Test
+  public void keepsLatestStateAcrossRestarts() {
+    ProvisioningJournal journal = new ProvisioningJournal(directory, scheduler);
+    journal.record("softap:PROV_1/site", BatchProvisioner.STAGE_CONNECT, BatchProvisioner.STATUS_STARTED);
+    journal.record("softap:PROV_1/site", BatchProvisioner.STAGE_PROVISION, BatchProvisioner.STATUS_COMPLETED);
+    journal.record("softap:PROV_2/site", BatchProvisioner.STAGE_CONNECT, BatchProvisioner.STATUS_FAILED);
+    journal.close();
+
+    ProvisioningJournal restarted = new ProvisioningJournal(directory, scheduler);
+    assertEquals(2, restarted.jobs().size());
+    assertTrue(restarted.get("softap:PROV_1/site").is(BatchProvisioner.STAGE_PROVISION,
+        BatchProvisioner.STATUS_COMPLETED));
+    assertTrue(restarted.get("softap:PROV_2/site").is(BatchProvisioner.STAGE_CONNECT,
+        BatchProvisioner.STATUS_FAILED));
+  }
+
+  @Test
+  public void dropsTornRecordAndKeepsAppending() throws Exception {
+    ProvisioningJournal journal = new ProvisioningJournal(directory, scheduler);
+    journal.record("a", BatchProvisioner.STAGE_CONNECT, BatchProvisioner.STATUS_COMPLETED);
+    journal.close();
+    // A record cut short by the process being killed mid-write
+    FileOutputStream out = new FileOutputStream(new File(directory, ProvisioningJournal.FILE_NAME), true);
+    out.write(new byte[] { 0, 0, 0, 40, 1, 2, 3 });
+    out.close();
+
+    ProvisioningJournal restarted = new ProvisioningJournal(directory, scheduler);
+    assertEquals(1, restarted.jobs().size());
+    restarted.record("b", BatchProvisioner.STAGE_PROVISION, BatchProvisioner.STATUS_COMPLETED);
+    restarted.close();
+
+    ProvisioningJournal again = new ProvisioningJournal(directory, scheduler);
+    assertEquals(2, again.jobs().size());
+    assertTrue(again.get("b").is(BatchProvisioner.STAGE_PROVISION, BatchProvisioner.STATUS_COMPLETED));
+  }
+
+  @Test
+  public void compactsToOneRecordPerJob() {
+    ProvisioningJournal journal = new ProvisioningJournal(directory, scheduler);
+    File file = new File(directory, ProvisioningJournal.FILE_NAME);
+    for (int i = 0; i < ProvisioningJournal.COMPACT_MIN_RECORDS * 2; i++) {
+      journal.record("job-" + (i % 4), BatchProvisioner.STAGE_CONNECT, BatchProvisioner.STATUS_STARTED);
+      journal.flush();
+    }
+    long compactedLength = file.length();
+    journal.record("job-0", BatchProvisioner.STAGE_PROVISION, BatchProvisioner.STATUS_COMPLETED);
+    journal.close();
+    assertTrue(compactedLength < 40 * ProvisioningJournal.COMPACT_MIN_RECORDS);
+
+    ProvisioningJournal restarted = new ProvisioningJournal(directory, scheduler);
+    assertEquals(4, restarted.jobs().size());
+    assertTrue(restarted.get("job-0").is(BatchProvisioner.STAGE_PROVISION, BatchProvisioner.STATUS_COMPLETED));
+  }
+
+  @Test
+  public void clearForgetsEveryJob() {
+    ProvisioningJournal journal = new ProvisioningJournal(directory, scheduler);
+    journal.record("a", BatchProvisioner.STAGE_CONNECT, BatchProvisioner.STATUS_COMPLETED);
+    journal.close();
+    journal.clear();
+
+    assertNull(new ProvisioningJournal(directory, scheduler).get("a"));
+  }
+}
@@ -0,0 +1,283 @@
+package com.esp32idfprovisioning;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.espressif.provisioning.WiFiAccessPoint;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// Drives many ProvisioningSessions against simulated devices, the same way the
+// module and the batch pipeline do, to catch throughput and retry regressions
+// without hardware.
+public class ProvisioningSessionLoadTest {
+  private static final int DEVICES = 200;
+  private static final long STAGE_TIMEOUT_MS = 10000;
+  private static final double MIN_DEVICES_PER_SECOND = 20;
+
+  private ScheduledExecutorService clock;
+  private ScheduledExecutorService scheduler;
+  private ExecutorService workers;
+  private ProvisioningTimings timings;
+  private RetryEngine retryEngine;
+
+  @Before
+  public void setUp() {
+    clock = Executors.newScheduledThreadPool(4);
+    scheduler = Executors.newSingleThreadScheduledExecutor();
+    workers = Executors.newFixedThreadPool(32);
+    timings = new ProvisioningTimings();
+    retryEngine = new RetryEngine(scheduler);
+  }
+
+  @After
+  public void tearDown() {
+    workers.shutdownNow();
+    scheduler.shutdownNow();
+    clock.shutdownNow();
+  }
+
+  private static class SimulatedSession {
+    ProvisioningSession session;
+    SimulatedProvisioningDevice device;
+  }
+
+  private SimulatedSession newSession(int index, SimulatedProvisioningDevice.Config config) {
+    final SimulatedSession simulated = new SimulatedSession();
+    simulated.device = new SimulatedProvisioningDevice(config, clock,
+        new SimulatedProvisioningDevice.ConnectionEvents() {
+          @Override
+          public void post(short eventType) {
+            simulated.session.onConnectionEvent(eventType);
+          }
+        }, index);
+    simulated.session = new ProvisioningSession("sim-" + index, simulated.device, timings, retryEngine);
+    return simulated;
+  }
+
+  // Routes connection events through the registry, like the module does
+  private SimulatedSession newRegisteredSession(int index, final ProvisioningSessions registry) {
+    final SimulatedSession simulated = new SimulatedSession();
+    simulated.device = new SimulatedProvisioningDevice(siteConfig(), clock,
+        new SimulatedProvisioningDevice.ConnectionEvents() {
+          @Override
+          public void post(short eventType) {
+            ProvisioningSession target = registry.connectionTarget();
+            if (target != null) {
+              target.onConnectionEvent(eventType);
+            }
+          }
+        }, index);
+    simulated.session = new ProvisioningSession("sim-" + index, simulated.device, timings, retryEngine);
+    registry.put(simulated.session);
+    return simulated;
+  }
+
+  // connect -> pop -> scan -> provision, blocking like a batch worker does
+  private static int provision(ProvisioningSession session) throws Exception {
+    StageWaiter<Void> connected = new StageWaiter<>();
+    session.connectWifiDevice("PROV_SIM", "password", connected);
+    connected.await(STAGE_TIMEOUT_MS);
+
+    session.device.setProofOfPossession("abcd1234");
+
+    StageWaiter<List<WiFiAccessPoint>> scanned = new StageWaiter<>();
+    session.scanNetworks(scanned);
+    int networks = scanned.await(STAGE_TIMEOUT_MS).size();
+
+    StageWaiter<Void> provisioned = new StageWaiter<>();
+    session.provision("site-wifi", "site-password", provisioned);
+    provisioned.await(STAGE_TIMEOUT_MS);
+    return networks;
+  }
+
+  private List<Future<Integer>> provisionAll(final List<SimulatedSession> sessions) {
+    List<Future<Integer>> results = new ArrayList<>();
+    for (final SimulatedSession simulated : sessions) {
+      results.add(workers.submit(() -> provision(simulated.session)));
+    }
+    return results;
+  }
+
+  private static SimulatedProvisioningDevice.Config siteConfig() {
+    return new SimulatedProvisioningDevice.Config()
+        .latency(5, 0.5)
+        .pop("abcd1234")
+        .network("site-wifi", -40, 3)
+        .network("guest", -70, 0);
+  }
+
+  @Test
+  public void provisionsManyDevicesConcurrently() throws Exception {
+    List<SimulatedSession> sessions = new ArrayList<>();
+    for (int i = 0; i < DEVICES; i++) {
+      sessions.add(newSession(i, siteConfig()));
+    }
+
+    long start = System.nanoTime();
+    for (Future<Integer> result : provisionAll(sessions)) {
+      assertEquals(2, (int) result.get(30, TimeUnit.SECONDS));
+    }
+    double seconds = (System.nanoTime() - start) / 1e9;
+    // Far below what the simulation reaches, so only a stall trips it
+    assertTrue(DEVICES / seconds > MIN_DEVICES_PER_SECOND);
+
+    for (SimulatedSession simulated : sessions) {
+      assertTrue(simulated.session.deviceConnected);
+      assertEquals(1, simulated.device.connectAttempts.get());
+      assertEquals(1, simulated.device.sessionHandshakes.get());
+    }
+  }
+
+  @Test
+  public void retriesOnlyTheFailingStage() throws Exception {
+    retryEngine.setPolicy(RetryEngine.STAGE_CONNECT, new RetryEngine.StagePolicy(8, 1, 10, 0.5));
+    retryEngine.setPolicy(RetryEngine.STAGE_PROVISION, new RetryEngine.StagePolicy(8, 1, 10, 0.5));
+
+    List<SimulatedSession> sessions = new ArrayList<>();
+    for (int i = 0; i < DEVICES; i++) {
+      sessions.add(newSession(i, siteConfig().connectFailures(0.3).configFailures(0.3)));
+    }
+    for (Future<Integer> result : provisionAll(sessions)) {
+      result.get(30, TimeUnit.SECONDS);
+    }
+
+    int connectAttempts = 0;
+    int provisionAttempts = 0;
+    for (SimulatedSession simulated : sessions) {
+      connectAttempts += simulated.device.connectAttempts.get();
+      provisionAttempts += simulated.device.provisionAttempts.get();
+      // Re-sending the config reuses the session established by the first attempt
+      assertEquals(1, simulated.device.sessionHandshakes.get());
+    }
+    assertTrue(connectAttempts > DEVICES);
+    assertTrue(provisionAttempts > DEVICES);
+  }
+
+  @Test
+  public void doesNotRetryFailuresReportedByTheDevice() throws Exception {
+    retryEngine.setPolicy(RetryEngine.STAGE_PROVISION, new RetryEngine.StagePolicy(5, 1, 10, 0));
+    SimulatedSession simulated = newSession(0, siteConfig().deviceFailures(1));
+
+    try {
+      provision(simulated.session);
+      throw new AssertionError("Provisioning should have failed");
+    } catch (StageWaiter.StageException e) {
+      assertEquals("Error in provision listener", e.code);
+    }
+    assertEquals(1, simulated.device.provisionAttempts.get());
+  }
+
+  @Test
+  public void rejectsWhenTheDeviceDoesNotAnswer() throws Exception {
+    SimulatedSession simulated = newSession(0, siteConfig().latency(500, 0));
+
+    StageWaiter<Void> connected = new StageWaiter<>();
+    simulated.session.connectWifiDevice("PROV_SIM", "password", connected);
+    try {
+      connected.await(50);
+      throw new AssertionError("Connection should have timed out");
+    } catch (StageWaiter.StageException e) {
+      assertEquals("Timeout", e.code);
+    }
+  }
+
+  @Test
+  public void rejectsOperationsPastTheirDeadline() throws Exception {
+    SimulatedSession simulated = newSession(0, siteConfig().latency(500, 0));
+    // Driven by hand, the SystemClock of the tests does not move
+    DeadlineWheel wheel = new DeadlineWheel(null, 10, 8, 0);
+    simulated.session.setDeadlineWheel(wheel);
+    simulated.session.setDeadlines(new OperationDeadlines(100, 0, 0, 0), true);
+
+    StageWaiter<Void> connected = new StageWaiter<>();
+    simulated.session.connectWifiDevice("PROV_SIM", "password", connected);
+    wheel.advance(90);
+    assertEquals(1, wheel.size());
+    wheel.advance(100);
+    try {
+      connected.await(STAGE_TIMEOUT_MS);
+      throw new AssertionError("Connection should have timed out");
+    } catch (StageWaiter.StageException e) {
+      assertEquals("Timeout", e.code);
+    }
+    // The slot is free again, nothing is left to cancel
+    assertFalse(simulated.session.cancel("Cancelled", "test"));
+  }
+
+  @Test
+  public void cancelRejectsPendingOperations() throws Exception {
+    SimulatedSession simulated = newSession(0, siteConfig().latency(500, 0));
+
+    StageWaiter<Void> connected = new StageWaiter<>();
+    simulated.session.connectWifiDevice("PROV_SIM", "password", connected);
+    assertTrue(simulated.session.cancel("Cancelled", "test"));
+    try {
+      connected.await(STAGE_TIMEOUT_MS);
+      throw new AssertionError("Connection should have been cancelled");
+    } catch (StageWaiter.StageException e) {
+      assertEquals("Cancelled", e.code);
+    }
+  }
+
+  @Test
+  public void userScanSupersedesBackgroundRefresh() throws Exception {
+    SimulatedSession simulated = newSession(0, siteConfig());
+    StageWaiter<Void> connected = new StageWaiter<>();
+    simulated.session.connectWifiDevice("PROV_SIM", "password", connected);
+    connected.await(STAGE_TIMEOUT_MS);
+
+    StageWaiter<List<WiFiAccessPoint>> refresh = new StageWaiter<>();
+    assertTrue(simulated.session.scanNetworksIfIdle(refresh));
+    StageWaiter<List<WiFiAccessPoint>> scanned = new StageWaiter<>();
+    simulated.session.scanNetworks(scanned);
+    try {
+      refresh.await(STAGE_TIMEOUT_MS);
+      throw new AssertionError("The refresh should have been superseded");
+    } catch (StageWaiter.StageException e) {
+      assertEquals(ProvisioningSession.SCAN_SUPERSEDED, e.code);
+    }
+    assertEquals(2, scanned.await(STAGE_TIMEOUT_MS).size());
+
+    // A refresh never displaces a pending scan
+    StageWaiter<List<WiFiAccessPoint>> rescanned = new StageWaiter<>();
+    simulated.session.scanNetworks(rescanned);
+    assertFalse(simulated.session.scanNetworksIfIdle(new StageWaiter<List<WiFiAccessPoint>>()));
+    assertEquals(2, rescanned.await(STAGE_TIMEOUT_MS).size());
+  }
+
+  @Test
+  public void dropsConnectionEventsOnceNoConnectIsPending() throws Exception {
+    ProvisioningSessions registry = new ProvisioningSessions();
+    SimulatedSession first = newRegisteredSession(0, registry);
+    SimulatedSession second = newRegisteredSession(1, registry);
+
+    StageWaiter<Void> connected = new StageWaiter<>();
+    registry.connectWifiDevice(first.session, "PROV_SIM", "password", connected);
+    connected.await(STAGE_TIMEOUT_MS);
+    connected = new StageWaiter<>();
+    registry.connectWifiDevice(second.session, "PROV_SIM", "password", connected);
+    connected.await(STAGE_TIMEOUT_MS);
+    assertEquals(null, registry.connectionTarget());
+
+    // The first device going away must not mark the second one disconnected
+    first.device.disconnectDevice();
+    assertTrue(second.session.deviceConnected);
+
+    // With a single session left its events can be attributed again
+    registry.remove(first.session.id);
+    second.device.disconnectDevice();
+    assertFalse(second.session.deviceConnected);
+  }
+}
@@ -0,0 +1,193 @@
+package com.esp32idfprovisioning;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.espressif.provisioning.WiFiAccessPoint;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class SessionKeepAliveTest {
+  private static final long STAGE_TIMEOUT_MS = 5000;
+
+  private ScheduledExecutorService clock;
+  private ScheduledExecutorService scheduler;
+  private ProvisioningSessions sessions;
+  private SessionKeepAlive keepAlive;
+  private SimulatedProvisioningDevice device;
+  private ProvisioningSession session;
+  private volatile boolean deviceHealthy = true;
+
+  @Before
+  public void setUp() throws Exception {
+    clock = Executors.newScheduledThreadPool(2);
+    scheduler = Executors.newSingleThreadScheduledExecutor();
+    sessions = new ProvisioningSessions();
+    keepAlive = new SessionKeepAlive(sessions, scheduler, new ProvisioningSession.Probe() {
+      @Override
+      public String path() {
+        return "ping";
+      }
+
+      @Override
+      public byte[] request() {
+        return new byte[] { deviceHealthy ? (byte) 1 : 0 };
+      }
+
+      // The simulated device echoes the request
+      @Override
+      public boolean isHealthy(byte[] response) {
+        return response[0] == 1;
+      }
+    });
+    SimulatedProvisioningDevice.Config config = new SimulatedProvisioningDevice.Config()
+        .latency(20, 0)
+        .network("site-wifi", -40, 3);
+    device = new SimulatedProvisioningDevice(config, clock, new SimulatedProvisioningDevice.ConnectionEvents() {
+      @Override
+      public void post(short eventType) {
+        session.onConnectionEvent(eventType);
+      }
+    }, 1);
+    session = new ProvisioningSession("keep-alive", device, new ProvisioningTimings(), new RetryEngine(scheduler));
+    session.setReuseListener(keepAlive);
+    sessions.put(session);
+
+    StageWaiter<Void> connected = new StageWaiter<>();
+    session.connectWifiDevice("PROV_SIM", "password", connected);
+    connected.await(STAGE_TIMEOUT_MS);
+  }
+
+  @After
+  public void tearDown() {
+    scheduler.shutdownNow();
+    clock.shutdownNow();
+  }
+
+  private void scan() throws Exception {
+    StageWaiter<List<WiFiAccessPoint>> scanned = new StageWaiter<>();
+    session.scanNetworks(scanned);
+    assertEquals(1, scanned.await(STAGE_TIMEOUT_MS).size());
+  }
+
+  @Test
+  public void repeatedOperationsReuseTheSession() throws Exception {
+    scan();
+    scan();
+    scan();
+
+    assertTrue(session.isEstablished());
+    assertEquals(1, keepAlive.coldStarts());
+    assertEquals(2, keepAlive.warmHits());
+    assertEquals(0, device.sessionHandshakes.get());
+  }
+
+  @Test
+  public void idleSessionIsReestablishedBeforeTheNextOperation() throws Exception {
+    scan();
+    keepAlive.configure(true, SessionKeepAlive.DEFAULT_INTERVAL_MS, 60000);
+    keepAlive.tick(60000);
+    assertEquals(1, keepAlive.idleExpirations());
+    // Already expired, nothing more to count
+    keepAlive.tick(61000);
+    assertEquals(1, keepAlive.idleExpirations());
+
+    // Both operations wait for the one handshake
+    StageWaiter<List<WiFiAccessPoint>> scanned = new StageWaiter<>();
+    StageWaiter<byte[]> echoed = new StageWaiter<>();
+    session.scanNetworks(scanned);
+    session.sendCustomData("custom", new byte[] { 1, 2, 3 }, echoed);
+    assertEquals(1, scanned.await(STAGE_TIMEOUT_MS).size());
+    assertEquals(3, echoed.await(STAGE_TIMEOUT_MS).length);
+
+    assertEquals(1, device.sessionHandshakes.get());
+    assertEquals(1, keepAlive.rewarms());
+    assertTrue(session.isEstablished());
+    scan();
+    assertEquals(1, keepAlive.warmHits());
+  }
+
+  @Test
+  public void failedPingReestablishesTheSession() throws Exception {
+    scan();
+    keepAlive.tick(SessionKeepAlive.DEFAULT_INTERVAL_MS);
+    assertEquals(1, keepAlive.pings());
+    // Still in flight
+    keepAlive.tick(SessionKeepAlive.DEFAULT_INTERVAL_MS);
+    assertEquals(1, keepAlive.pings());
+    scan();
+    assertEquals(0, device.sessionHandshakes.get());
+
+    deviceHealthy = false;
+    keepAlive.tick(2 * SessionKeepAlive.DEFAULT_INTERVAL_MS);
+    scan();
+    assertEquals(1, keepAlive.pingFailures());
+    assertEquals(1, keepAlive.rewarms());
+    assertEquals(1, device.sessionHandshakes.get());
+  }
+
+  @Test
+  public void establishedAheadOfTimeOnTheHandshakeExecutor() throws Exception {
+    final AtomicInteger handshakesStarted = new AtomicInteger();
+    session.setHandshakeExecutor(new Executor() {
+      @Override
+      public void execute(Runnable command) {
+        handshakesStarted.incrementAndGet();
+        scheduler.execute(command);
+      }
+    });
+    StageWaiter<Void> established = new StageWaiter<>();
+    session.establish(established);
+    established.await(STAGE_TIMEOUT_MS);
+    assertTrue(session.isEstablished());
+    assertEquals(1, device.sessionHandshakes.get());
+
+    scan();
+    assertEquals(1, handshakesStarted.get());
+    assertEquals(1, keepAlive.warmHits());
+  }
+
+  @Test
+  public void failedRewarmStillRunsWaitingOperations() throws Exception {
+    scan();
+    session.expire();
+    device.initSessionThrows = true;
+    StageWaiter<List<WiFiAccessPoint>> scanned = new StageWaiter<>();
+    session.scanNetworks(scanned);
+    // Left to the SDK, the simulated device scans without a handshake
+    assertEquals(1, scanned.await(STAGE_TIMEOUT_MS).size());
+    assertEquals(1, keepAlive.rewarms());
+  }
+
+  @Test
+  public void disconnectDropsTheSession() throws Exception {
+    scan();
+    session.disconnect();
+    assertFalse(session.isEstablished());
+    assertFalse(session.expire());
+  }
+
+  @Test
+  public void runsOnlyOnceConfiguredAndWhileSessionsRemain() {
+    keepAlive.start();
+    assertFalse(keepAlive.isRunning());
+    keepAlive.configure(true, SessionKeepAlive.DEFAULT_INTERVAL_MS, SessionKeepAlive.DEFAULT_IDLE_TIMEOUT_MS);
+    assertTrue(keepAlive.isRunning());
+    sessions.remove(session.id);
+    keepAlive.tick(0);
+    assertFalse(keepAlive.isRunning());
+    // The next session starts it again
+    sessions.put(session);
+    keepAlive.start();
+    assertTrue(keepAlive.isRunning());
+  }
+}
@@ -0,0 +1,313 @@
+package com.esp32idfprovisioning;
+
+import android.bluetooth.BluetoothDevice;
+
+import com.espressif.provisioning.ESPConstants;
+import com.espressif.provisioning.WiFiAccessPoint;
+import com.espressif.provisioning.listeners.ProvisionListener;
+import com.espressif.provisioning.listeners.ResponseListener;
+import com.espressif.provisioning.listeners.WiFiScanListener;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// JVM stand-in for an ESP32 running the provisioning firmware. It answers the
+// same calls ESPDevice does, on the same listeners, after a configurable
+// latency, and fails each step with a configurable probability. Randomness is
+// seeded so a run can be repeated exactly.
+class SimulatedProvisioningDevice implements ProvisioningDevice {
+
+  // Where connection events go, ProvisioningSession.onConnectionEvent in tests
+  interface ConnectionEvents {
+    void post(short eventType);
+  }
+
+  static class Config {
+    long latencyMs = 5;
+    // Fraction of latencyMs added or removed at random on every step
+    double jitter = 0.5;
+    double connectFailureRate;
+    double sessionFailureRate;
+    double configFailureRate;
+    double applyFailureRate;
+    // Probability that the device reports AUTH_FAILED once credentials are applied
+    double deviceFailureRate;
+    String expectedPop;
+    List<WiFiAccessPoint> networks = new ArrayList<>();
+    String versionInfo = "v1.1";
+    List<String> capabilities = new ArrayList<>(Arrays.asList(DeviceCapabilityCache.CAP_WIFI_SCAN));
+    int securityVersion = 1;
+
+    Config latency(long latencyMs, double jitter) {
+      this.latencyMs = latencyMs;
+      this.jitter = jitter;
+      return this;
+    }
+
+    Config connectFailures(double rate) {
+      this.connectFailureRate = rate;
+      return this;
+    }
+
+    Config sessionFailures(double rate) {
+      this.sessionFailureRate = rate;
+      return this;
+    }
+
+    Config configFailures(double rate) {
+      this.configFailureRate = rate;
+      return this;
+    }
+
+    Config applyFailures(double rate) {
+      this.applyFailureRate = rate;
+      return this;
+    }
+
+    Config deviceFailures(double rate) {
+      this.deviceFailureRate = rate;
+      return this;
+    }
+
+    Config capabilities(String... capabilities) {
+      this.capabilities = new ArrayList<>(Arrays.asList(capabilities));
+      return this;
+    }
+
+    Config pop(String expectedPop) {
+      this.expectedPop = expectedPop;
+      return this;
+    }
+
+    Config network(String ssid, int rssi, int security) {
+      WiFiAccessPoint accessPoint = new WiFiAccessPoint();
+      accessPoint.setWifiName(ssid);
+      accessPoint.setRssi(rssi);
+      accessPoint.setSecurity(security);
+      networks.add(accessPoint);
+      return this;
+    }
+  }
+
+  final AtomicInteger connectAttempts = new AtomicInteger();
+  final AtomicInteger provisionAttempts = new AtomicInteger();
+  final AtomicInteger sessionHandshakes = new AtomicInteger();
+
+  private final Config config;
+  private final ScheduledExecutorService clock;
+  private final ConnectionEvents events;
+  private final Random random;
+
+  // initSession throws instead of answering, as ESPDevice does for a closed transport
+  volatile boolean initSessionThrows;
+
+  private volatile boolean connected;
+  private volatile boolean sessionEstablished;
+  private volatile String pop;
+
+  SimulatedProvisioningDevice(Config config, ScheduledExecutorService clock, ConnectionEvents events, long seed) {
+    this.config = config;
+    this.clock = clock;
+    this.events = events;
+    this.random = new Random(seed);
+  }
+
+  private synchronized boolean fails(double rate) {
+    return rate > 0 && random.nextDouble() < rate;
+  }
+
+  private synchronized long nextDelayMs() {
+    double spread = config.latencyMs * config.jitter;
+    return Math.max(0, Math.round(config.latencyMs + (random.nextDouble() * 2 - 1) * spread));
+  }
+
+  private void later(Runnable step) {
+    clock.schedule(step, nextDelayMs(), TimeUnit.MILLISECONDS);
+  }
+
+  @Override
+  public void connectWiFiDevice(String ssid, String password) {
+    connect();
+  }
+
+  @Override
+  public void connectWiFiDevice() {
+    connect();
+  }
+
+  // The firmware does not care which transport the phone connected over
+  @Override
+  public void connectBLEDevice(BluetoothDevice bleDevice, String primaryServiceUuid) {
+    connect();
+  }
+
+  private void connect() {
+    connectAttempts.incrementAndGet();
+    later(new Runnable() {
+      @Override
+      public void run() {
+        if (fails(config.connectFailureRate)) {
+          events.post(ESPConstants.EVENT_DEVICE_CONNECTION_FAILED);
+          return;
+        }
+        connected = true;
+        events.post(ESPConstants.EVENT_DEVICE_CONNECTED);
+      }
+    });
+  }
+
+  @Override
+  public void disconnectDevice() {
+    boolean wasConnected = connected;
+    connected = false;
+    sessionEstablished = false;
+    if (wasConnected) {
+      events.post(ESPConstants.EVENT_DEVICE_DISCONNECTED);
+    }
+  }
+
+  @Override
+  public void setProofOfPossession(String pop) {
+    this.pop = pop;
+  }
+
+  @Override
+  public String getProofOfPossession() {
+    return pop;
+  }
+
+  @Override
+  public void initSession(final ResponseListener listener) {
+    if (initSessionThrows) {
+      throw new IllegalStateException("Simulated transport error");
+    }
+    later(new Runnable() {
+      @Override
+      public void run() {
+        if (!connected) {
+          listener.onFailure(new RuntimeException("Simulated device is not connected"));
+          return;
+        }
+        sessionHandshakes.incrementAndGet();
+        if (fails(config.sessionFailureRate)) {
+          sessionEstablished = false;
+          listener.onFailure(new RuntimeException("Simulated handshake failure"));
+          return;
+        }
+        sessionEstablished = true;
+        listener.onSuccess(null);
+      }
+    });
+  }
+
+  @Override
+  public void scanNetworks(final WiFiScanListener listener) {
+    later(new Runnable() {
+      @Override
+      public void run() {
+        if (!connected) {
+          listener.onWiFiScanFailed(new RuntimeException("Simulated device is not connected"));
+          return;
+        }
+        listener.onWifiListReceived(new ArrayList<>(config.networks));
+      }
+    });
+  }
+
+  @Override
+  public void provision(final String ssid, final String passphrase, final ProvisionListener listener) {
+    provisionAttempts.incrementAndGet();
+    later(new Runnable() {
+      @Override
+      public void run() {
+        if (!connected) {
+          listener.createSessionFailed(new RuntimeException("Simulated device is not connected"));
+          return;
+        }
+        if (!sessionEstablished) {
+          sessionHandshakes.incrementAndGet();
+          boolean wrongPop = config.expectedPop != null && !config.expectedPop.equals(pop);
+          if (wrongPop || fails(config.sessionFailureRate)) {
+            listener.createSessionFailed(new RuntimeException("Simulated handshake failure"));
+            return;
+          }
+          sessionEstablished = true;
+        }
+        sendConfig(listener);
+      }
+    });
+  }
+
+  private void sendConfig(final ProvisionListener listener) {
+    later(new Runnable() {
+      @Override
+      public void run() {
+        if (fails(config.configFailureRate)) {
+          listener.wifiConfigFailed(new RuntimeException("Simulated config failure"));
+          return;
+        }
+        listener.wifiConfigSent();
+        applyConfig(listener);
+      }
+    });
+  }
+
+  private void applyConfig(final ProvisionListener listener) {
+    later(new Runnable() {
+      @Override
+      public void run() {
+        if (fails(config.applyFailureRate)) {
+          listener.wifiConfigApplyFailed(new RuntimeException("Simulated apply failure"));
+          return;
+        }
+        listener.wifiConfigApplied();
+        later(new Runnable() {
+          @Override
+          public void run() {
+            if (fails(config.deviceFailureRate)) {
+              listener.provisioningFailedFromDevice(ESPConstants.ProvisionFailureReason.AUTH_FAILED);
+              return;
+            }
+            listener.deviceProvisioningSuccess();
+          }
+        });
+      }
+    });
+  }
+
+  @Override
+  public void sendDataToCustomEndPoint(String path, final byte[] data, final ResponseListener listener) {
+    later(new Runnable() {
+      @Override
+      public void run() {
+        if (!connected) {
+          listener.onFailure(new RuntimeException("Simulated device is not connected"));
+          return;
+        }
+        sessionEstablished = true;
+        // The simulated endpoint echoes the request
+        listener.onSuccess(data);
+      }
+    });
+  }
+
+  @Override
+  public String getVersionInfo() {
+    return connected ? config.versionInfo : null;
+  }
+
+  @Override
+  public List<String> getDeviceCapabilities() {
+    return connected ? config.capabilities : new ArrayList<String>();
+  }
+
+  @Override
+  public int getSecurityVersion() {
+    return config.securityVersion;
+  }
+}
@@ -0,0 +1,93 @@
+package com.esp32idfprovisioning;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.List;
+
+public class SoftApDiscoveryTest {
+  @Test
+  public void spreadsScansOverTheWindow() {
+    SoftApDiscovery.ScanBudget budget = new SoftApDiscovery.ScanBudget(4, 120000);
+    assertTrue(budget.tryAcquire(0));
+    // A second scan right away would be answered with the same results
+    assertFalse(budget.tryAcquire(1000));
+    assertEquals(30000, budget.nextAt(1000));
+    assertTrue(budget.tryAcquire(30000));
+    assertTrue(budget.tryAcquire(60000));
+    assertTrue(budget.tryAcquire(90000));
+    assertEquals(0, budget.remaining(100000));
+    // The first scan leaves the window
+    assertFalse(budget.tryAcquire(119999));
+    assertTrue(budget.tryAcquire(120000));
+    assertEquals(150000, budget.nextAt(120000));
+  }
+
+  @Test
+  public void keepsMatchingSoftApsByPrefix() {
+    SoftApIndex index = new SoftApIndex();
+    index.configure("PROV_", SoftApIndex.DEFAULT_STALE_MS);
+    assertNull(index.onSighting("Office", "aa", "[WPA2-PSK-CCMP]", -40, 2412, 0, 0));
+    assertNull(index.onSighting("", "bb", "[ESS]", -40, 2412, 0, 0));
+    assertNotNull(index.onSighting("PROV_1", "cc", "[WPA2-PSK-CCMP]", -60, 2412, 0, 0));
+    // Reading the same system scan again reports nothing
+    assertNull(index.onSighting("PROV_1", "cc", "[WPA2-PSK-CCMP]", -60, 2412, 0, 500));
+    // Neither does a small change of signal
+    assertNull(index.onSighting("PROV_1", "cc", "[WPA2-PSK-CCMP]", -62, 2412, 1000, 1000));
+    SoftApIndex.SoftAp changed = index.onSighting("PROV_1", "cc", "[WPA2-PSK-CCMP]", -50, 2412, 2000, 2000);
+    assertNotNull(changed);
+    assertEquals(-50, changed.rssi);
+    assertTrue(changed.isSecured());
+    assertEquals(1, index.size());
+  }
+
+  @Test
+  public void ignoresAndDropsStaleSightings() {
+    SoftApIndex index = new SoftApIndex();
+    index.configure(null, 1000);
+    assertNull(index.onSighting("PROV_1", "aa", "[ESS]", -60, 2412, 0, 5000));
+    index.onSighting("PROV_2", "bb", "[ESS]", -60, 2412, 5000, 5000);
+    assertEquals(1, index.devices(6000).size());
+    assertTrue(index.devices(6001).isEmpty());
+  }
+
+  @Test
+  public void dropsStaleDevicesBehindFreshOnes() {
+    SoftApIndex index = new SoftApIndex();
+    index.configure(null, 1000);
+    index.onSighting("PROV_fresh", "aa", "[ESS]", -60, 2412, 5000, 5000);
+    // A cached result, seen long before the device above
+    index.onSighting("PROV_cached", "bb", "[ESS]", -40, 2412, 4500, 5000);
+    assertEquals(2, index.devices(5000).size());
+    List<SoftApIndex.SoftAp> devices = index.devices(5800);
+    assertEquals(1, devices.size());
+    assertEquals("PROV_fresh", devices.get(0).ssid);
+    assertEquals("PROV_fresh", index.claimNext(5800, 1000).ssid);
+  }
+
+  @Test
+  public void claimsClosestUnprovisionedDevice() {
+    SoftApIndex index = new SoftApIndex();
+    index.onSighting("PROV_far", "aa", "[ESS]", -80, 2412, 0, 0);
+    index.onSighting("PROV_near", "bb", "[ESS]", -40, 2412, 0, 0);
+    index.onSighting("PROV_mid", "cc", "[ESS]", -60, 2412, 0, 0);
+    index.markProvisioned("PROV_near");
+
+    List<SoftApIndex.SoftAp> devices = index.devices(0);
+    assertEquals("PROV_near", devices.get(0).ssid);
+    assertEquals("PROV_far", devices.get(2).ssid);
+
+    assertEquals("PROV_mid", index.claimNext(0, 1000).ssid);
+    assertEquals("PROV_far", index.claimNext(0, 1000).ssid);
+    assertNull(index.claimNext(0, 1000));
+    index.release("PROV_far");
+    assertEquals("PROV_far", index.claimNext(0, 1000).ssid);
+    // Claims that are not released run out
+    assertEquals("PROV_mid", index.claimNext(1000, 1000).ssid);
+  }
+}
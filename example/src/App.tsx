@@ -1,18 +1,18 @@
 import * as React from 'react';
 
 import { StyleSheet, View, Text } from 'react-native';
-import { multiply } from 'react-native-esp32-idf-provisioning';
+import { prewarm } from 'react-native-esp32-idf-provisioning';
 
 export default function App() {
-  const [result, setResult] = React.useState<number | undefined>();
+  const [prewarmMs, setPrewarmMs] = React.useState<number | undefined>();
 
   React.useEffect(() => {
-    multiply(3, 7).then(setResult);
+    prewarm().then((result) => setPrewarmMs(result?.totalMs));
   }, []);
 
   return (
     <View style={styles.container}>
-      <Text>Result: {result}</Text>
+      <Text>Prewarm: {prewarmMs} ms</Text>
     </View>
   );
 }
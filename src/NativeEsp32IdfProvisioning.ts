@@ -0,0 +1,136 @@
+import type { TurboModule } from 'react-native';
+import { TurboModuleRegistry } from 'react-native';
+
+// Codegen spec of the Android module. On the new architecture it is a
+// TurboModule generated from this file, on the old one the same methods are
+// exposed through the bridge by Esp32IdfProvisioningModule.
+export interface Spec extends TurboModule {
+  // Status
+  doGetStatus(): Promise<Object>;
+  doGetSessionStatus(sessionId: string): Promise<Object>;
+  doGetStatusSync(): Object;
+  doGetSessionStatusSync(sessionId: string): Object;
+  doListSessions(): Promise<string[]>;
+
+  // Sessions
+  doCreateESPDevice(): Promise<string>;
+  doCreateESPDeviceSession(): Promise<string>;
+  doCreateESPDeviceSessionWithOptions(options: Object | null): Promise<string>;
+  doCloseSession(sessionId: string): Promise<boolean>;
+  doCancelSession(sessionId: string): Promise<boolean>;
+  doSetOperationDeadlines(
+    sessionId: string | null,
+    options: Object
+  ): Promise<boolean>;
+
+  // Connection
+  doConnectWifiDevice(
+    ssid: string,
+    password: string | null
+  ): Promise<Object>;
+  doConnectWifiDeviceForSession(
+    sessionId: string,
+    ssid: string,
+    password: string | null
+  ): Promise<Object>;
+  doStartBleScan(options: Object | null): Promise<Object[]>;
+  doStopBleScan(): void;
+  doGetBleDevices(): Promise<Object[]>;
+  doConnectBleDeviceForSession(
+    sessionId: string,
+    deviceId: string
+  ): Promise<Object>;
+  doSetProofOfPossession(pop: string): Promise<string>;
+  doSetProofOfPossessionForSession(
+    sessionId: string,
+    pop: string
+  ): Promise<string>;
+  doGetProofOfPossession(): Promise<string | null>;
+  doGetProofOfPossessionForSession(sessionId: string): Promise<string | null>;
+  doEstablishSessionForSession(sessionId: string): Promise<Object>;
+  doOpenNetworkSettings(): void;
+
+  // softAP discovery
+  doStartSoftApDiscovery(options: Object | null): Promise<boolean>;
+  doStopSoftApDiscovery(): void;
+  doGetSoftApDevices(): Promise<Object[]>;
+  doNextSoftApDevice(options: Object | null): Promise<Object | null>;
+  doReleaseSoftApDevice(ssid: string, provisioned: boolean): void;
+
+  // Wi-Fi scan
+  doScanNetworks(): Promise<Object[]>;
+  doScanNetworksForSession(sessionId: string): Promise<Object[]>;
+  doRankNetworksForSession(
+    sessionId: string,
+    options: Object | null
+  ): Promise<Object>;
+  doScanNetworksColumnsForSession(sessionId: string): Promise<Object>;
+  doScanNetworksPackedForSession(sessionId: string): Promise<Object>;
+  doScanNetworksStreaming(
+    sessionId: string,
+    options: Object | null
+  ): Promise<Object>;
+  doConfigureScanCache(options: Object): void;
+  doClearScanCache(siteKey: string | null): void;
+  doScanNetworksCached(
+    sessionId: string,
+    siteKey: string,
+    options: Object | null
+  ): Promise<Object>;
+
+  // Provisioning
+  doProvisioning(ssid: string, pass: string | null): Promise<Object>;
+  doProvisioningForSession(
+    sessionId: string,
+    ssid: string,
+    pass: string | null
+  ): Promise<Object>;
+  doSendCustomData(
+    sessionId: string,
+    path: string,
+    data: string
+  ): Promise<Object>;
+  doSendCustomDataChunked(
+    sessionId: string,
+    path: string,
+    source: Object,
+    options: Object | null
+  ): Promise<Object>;
+  doBatchProvision(jobs: Object[], options: Object | null): Promise<Object>;
+  doGetJournal(): Promise<Object[]>;
+  doClearJournal(): void;
+  doSetRetryPolicy(options: Object): void;
+  doSetStatusPollPolicy(options: Object): void;
+
+  // Session keep-alive
+  doConfigureKeepAlive(options: Object): void;
+  doGetSessionReuseMetrics(): Promise<Object>;
+  doResetSessionReuseMetrics(): void;
+
+  // Device capability cache
+  doGetDeviceCache(): Promise<Object>;
+  doClearDeviceCache(device: string | null): void;
+
+  // Metrics
+  doGetTimingMetrics(): Promise<Object>;
+  doResetTimingMetrics(): void;
+  doSetTimingEventsEnabled(enabled: boolean): void;
+
+  // Logs
+  doGetLogs(): Promise<Object>;
+  doClearLogs(): void;
+  doConfigureLogging(options: Object): void;
+
+  // Warm-up
+  doPrewarm(): Promise<Object>;
+
+  // Events
+  doConfigureEvents(options: Object): void;
+  doAckEvents(batch: number): void;
+
+  // NativeEventEmitter
+  addListener(eventName: string): void;
+  removeListeners(count: number): void;
+}
+
+export default TurboModuleRegistry.getEnforcing<Spec>('Esp32IdfProvisioning');
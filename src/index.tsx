@@ -1,4 +1,17 @@
-import { NativeModules, Platform } from 'react-native';
+import {
+  NativeEventEmitter,
+  NativeModules,
+  Platform,
+  type EmitterSubscription,
+} from 'react-native';
+import {
+  decodePackedNetworks,
+  type DecodedNetworks,
+  type PackedNetworks,
+} from './packedNetworks';
+
+export { decodePackedNetworks };
+export type { DecodedNetworks, PackedNetworks };
 
 const LINKING_ERROR =
   `The package 'react-native-esp32-idf-provisioning' doesn't seem to be linked. Make sure: \n\n` +
@@ -6,8 +19,17 @@ const LINKING_ERROR =
   '- You rebuilt the app after installing the package\n' +
   '- You are not using Expo Go\n';
 
-const Esp32IdfProvisioning = NativeModules.Esp32IdfProvisioning
-  ? NativeModules.Esp32IdfProvisioning
+// @ts-expect-error
+const isTurboModuleEnabled = global.__turboModuleProxy != null;
+
+// Only the Android module has a codegen spec, iOS stays a bridge module
+const Esp32IdfProvisioningModule =
+  isTurboModuleEnabled && Platform.OS === 'android'
+    ? require('./NativeEsp32IdfProvisioning').default
+    : NativeModules.Esp32IdfProvisioning;
+
+const Esp32IdfProvisioning = Esp32IdfProvisioningModule
+  ? Esp32IdfProvisioningModule
   : new Proxy(
       {},
       {
@@ -17,6 +39,143 @@ const Esp32IdfProvisioning = NativeModules.Esp32IdfProvisioning
       }
     );
 
-export function multiply(a: number, b: number): Promise<number> {
-  return Esp32IdfProvisioning.multiply(a, b);
+export default Esp32IdfProvisioning;
+
+export type SessionStatus = {
+  sessionId: string;
+  open: boolean;
+  deviceConnected: boolean;
+};
+
+// Reads the status without a promise round trip (Android)
+export function getSessionStatusSync(sessionId = 'default'): SessionStatus {
+  return Esp32IdfProvisioning.doGetSessionStatusSync(sessionId);
+}
+
+export type ScanColumns = {
+  count: number;
+  ssid: string[];
+  rssi: Int8Array;
+  security: Uint8Array;
+};
+
+// Scan results as one column per field, numeric columns as typed arrays (Android)
+export async function scanNetworksColumns(
+  sessionId = 'default'
+): Promise<ScanColumns> {
+  const columns = await Esp32IdfProvisioning.doScanNetworksColumnsForSession(
+    sessionId
+  );
+  return {
+    count: columns.count,
+    ssid: columns.ssid,
+    rssi: Int8Array.from(columns.rssi),
+    security: Uint8Array.from(columns.security),
+  };
+}
+
+// Scan results packed into one buffer natively and decoded here (Android)
+export async function scanNetworksPacked(
+  sessionId = 'default'
+): Promise<DecodedNetworks> {
+  const packed: PackedNetworks =
+    await Esp32IdfProvisioning.doScanNetworksPackedForSession(sessionId);
+  return decodePackedNetworks(packed);
+}
+
+export type PrewarmResult = {
+  cryptoMs: number;
+  eventBusMs: number;
+  storageMs: number;
+  managerMs: number;
+  totalMs: number;
+};
+
+// Loads what the first session needs in the background (Android), e.g. while
+// the user is still on an earlier screen, so the first connect does not pay
+// for it. Resolves with how long each part took.
+export function prewarm(): Promise<PrewarmResult | null> {
+  if (Platform.OS !== 'android') {
+    return Promise.resolve(null);
+  }
+  return Esp32IdfProvisioning.doPrewarm();
+}
+
+export type EventBatchingOptions = {
+  batched: boolean;
+  // How long events are collected before they are sent, 16 by default
+  intervalMs?: number;
+  // Queued events beyond which low-priority ones are dropped
+  maxQueue?: number;
+  maxBatch?: number;
+};
+
+type EventBatch = {
+  batch: number;
+  events: { name: string; body: any }[];
+  coalesced: number;
+  dropped: number;
+};
+
+// Sends native events in batches, one bridge call per interval instead of one
+// per event, with superseded updates coalesced (Android). Listeners added with
+// addProvisioningListener see the same events either way.
+export function configureEvents(options: EventBatchingOptions): void {
+  Esp32IdfProvisioning.doConfigureEvents(options);
+}
+
+const EVENT_BATCH = 'Esp32IdfProvisioningEvents';
+const batchListeners = new Map<string, Set<(body: any) => void>>();
+let eventEmitter: NativeEventEmitter | null = null;
+let batchSubscription: EmitterSubscription | null = null;
+// Listeners added and not yet removed, the batch subscription goes with the last
+let listenerCount = 0;
+
+function onEventBatch(batch: EventBatch) {
+  for (const event of batch.events) {
+    batchListeners.get(event.name)?.forEach((listener) => listener(event.body));
+  }
+  // Lets the module send the next batches, it holds them back while JS is behind
+  Esp32IdfProvisioning.doAckEvents(batch.batch);
+}
+
+// Listens to a module event, e.g. Esp32IdfProvisioningBleDeviceFound, whether
+// it is sent on its own or as part of a batch
+export function addProvisioningListener(
+  eventName: string,
+  listener: (body: any) => void
+): { remove(): void } {
+  if (eventEmitter === null) {
+    eventEmitter = new NativeEventEmitter(Esp32IdfProvisioningModule);
+  }
+  if (batchSubscription === null && Platform.OS === 'android') {
+    batchSubscription = eventEmitter.addListener(EVENT_BATCH, onEventBatch);
+  }
+  let listeners = batchListeners.get(eventName);
+  if (listeners === undefined) {
+    listeners = new Set();
+    batchListeners.set(eventName, listeners);
+  }
+  listeners.add(listener);
+  listenerCount++;
+  const direct = eventEmitter.addListener(eventName, listener);
+  let removed = false;
+  return {
+    remove() {
+      if (removed) {
+        return;
+      }
+      removed = true;
+      direct.remove();
+      listeners?.delete(listener);
+      if (listeners?.size === 0) {
+        batchListeners.delete(eventName);
+      }
+      listenerCount--;
+      if (listenerCount === 0 && batchSubscription !== null) {
+        batchSubscription.remove();
+        batchSubscription = null;
+      }
+    },
+  };
 }
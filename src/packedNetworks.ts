@@ -0,0 +1,102 @@
+// Decoder of the packed scan buffers resolved by doScanNetworksPackedForSession
+// and by the scan methods with the packed option. See PackedScanEncoder.java
+// for the layout.
+
+export type PackedNetworks = {
+  count: number;
+  data: string;
+};
+
+export type DecodedNetworks = {
+  count: number;
+  ssid: string[];
+  rssi: Int8Array;
+  security: Uint8Array;
+  channel: Uint8Array;
+};
+
+const PACKED_VERSION = 1;
+const BASE64 =
+  'ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/';
+const BASE64_LOOKUP = new Uint8Array(128);
+for (let i = 0; i < BASE64.length; i++) {
+  BASE64_LOOKUP[BASE64.charCodeAt(i)] = i;
+}
+
+// atob and TextDecoder are not available on every Hermes version we support
+function decodeBase64(data: string): Uint8Array {
+  let padding = 0;
+  if (data.endsWith('==')) {
+    padding = 2;
+  } else if (data.endsWith('=')) {
+    padding = 1;
+  }
+  const bytes = new Uint8Array((data.length / 4) * 3 - padding);
+  let pos = 0;
+  for (let i = 0; i < data.length; i += 4) {
+    const n =
+      (BASE64_LOOKUP[data.charCodeAt(i)]! << 18) |
+      (BASE64_LOOKUP[data.charCodeAt(i + 1)]! << 12) |
+      (BASE64_LOOKUP[data.charCodeAt(i + 2)]! << 6) |
+      BASE64_LOOKUP[data.charCodeAt(i + 3)]!;
+    bytes[pos++] = n >> 16;
+    if (pos < bytes.length) {
+      bytes[pos++] = (n >> 8) & 0xff;
+    }
+    if (pos < bytes.length) {
+      bytes[pos++] = n & 0xff;
+    }
+  }
+  return bytes;
+}
+
+function decodeUtf8(bytes: Uint8Array, start: number, end: number): string {
+  let out = '';
+  let i = start;
+  while (i < end) {
+    const b = bytes[i++]!;
+    let codePoint: number;
+    if (b < 0x80) {
+      codePoint = b;
+    } else if (b < 0xe0) {
+      codePoint = ((b & 0x1f) << 6) | (bytes[i++]! & 0x3f);
+    } else if (b < 0xf0) {
+      codePoint =
+        ((b & 0x0f) << 12) | ((bytes[i++]! & 0x3f) << 6) | (bytes[i++]! & 0x3f);
+    } else {
+      codePoint =
+        ((b & 0x07) << 18) |
+        ((bytes[i++]! & 0x3f) << 12) |
+        ((bytes[i++]! & 0x3f) << 6) |
+        (bytes[i++]! & 0x3f);
+    }
+    out += String.fromCodePoint(codePoint);
+  }
+  return out;
+}
+
+export function decodePackedNetworks(packed: PackedNetworks): DecodedNetworks {
+  const bytes = decodeBase64(packed.data);
+  if (bytes[0] !== PACKED_VERSION) {
+    throw new Error(`Unsupported packed scan version ${bytes[0]}`);
+  }
+  const count = (bytes[1]! << 8) | bytes[2]!;
+  const decoded: DecodedNetworks = {
+    count,
+    ssid: new Array<string>(count),
+    rssi: new Int8Array(count),
+    security: new Uint8Array(count),
+    channel: new Uint8Array(count),
+  };
+  let pos = 3;
+  for (let i = 0; i < count; i++) {
+    decoded.rssi[i] = bytes[pos]!;
+    decoded.security[i] = bytes[pos + 1]!;
+    decoded.channel[i] = bytes[pos + 2]!;
+    const length = bytes[pos + 3]!;
+    pos += 4;
+    decoded.ssid[i] = decodeUtf8(bytes, pos, pos + length);
+    pos += length;
+  }
+  return decoded;
+}